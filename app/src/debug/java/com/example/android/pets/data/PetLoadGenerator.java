@@ -0,0 +1,519 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for the data layer: seeds a database with pets, then has many threads run a
+ * mix of reads, searches, inserts, updates and deletes through a {@link PetProvider}, and
+ * reports the throughput and the latency percentiles of each kind of operation.
+ *
+ * The provider runs over a database file of its own, created for the run and deleted after
+ * it, so the shelter's real pets are never touched. It is called directly rather than
+ * through a ContentResolver, so the numbers are those of the provider and SQLite, without
+ * binder or cursor window copies.
+ *
+ * Along with the load, every thread also times a reference operation: a plain SQLite lookup of
+ * one pet by _ID, straight on the database. It runs on the same threads, under the same
+ * contention, as the provider calls, so the provider's numbers relative to it hardly depend on
+ * the machine. Results are saved as a baseline in those relative terms, and later runs
+ * compared against it on a faster or slower machine; see
+ * {@link #findRegressions}. PetLoadRegressionTest does that on the JVM in the opt-in
+ * {@code loadRegressionDebugUnitTest} task, and {@link PetLoadReceiver} on a device.
+ */
+final class PetLoadGenerator {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetLoadGenerator.class.getSimpleName();
+
+    /** The database the load runs against */
+    static final String DATABASE_NAME = "shelter_load.db";
+
+    /** Pets seeded per bulk insert */
+    private static final int SEED_CHUNK_SIZE = 500;
+
+    /** Rows a search asks for, as the catalog's search does */
+    private static final int SEARCH_LIMIT = 50;
+
+    /** Operations each thread runs between two reference lookups */
+    private static final int REFERENCE_INTERVAL = 4;
+
+    /** The reference operation, bound to a pet _ID */
+    private static final String SQL_REFERENCE_READ = "SELECT " + PetEntry.COLUMN_PET_NAME +
+            " FROM " + PetContract.TABLE_NAME + " WHERE " + PetEntry._ID + " = ?";
+
+    /**
+     * Latency growth that never counts as a regression, whatever the tolerance, so the jitter
+     * of operations that take a few microseconds doesn't fail a run
+     */
+    private static final long LATENCY_SLACK_MICROS = 50;
+
+    /**
+     * Samples an operation needs before its p99 is compared with the baseline. Below that, the
+     * p99 is one of the few slowest calls, and one lock wait more or less moves it several times
+     * over.
+     */
+    private static final int MIN_P99_SAMPLES = 500;
+
+    /** Breeds the seeded pets get, and that searches look for */
+    private static final String[] BREEDS = {
+            "Tabby", "Siamese", "Persian", "Maine Coon", "Bengal", "Beagle", "Labrador",
+            "Poodle", "Terrier", "Collie", "Boxer", "Husky", "Dachshund", "Unknown"};
+
+    /**
+     * The kinds of operation the load is made of.
+     */
+    enum Operation {
+        /** Looks up a random pet by its URI */
+        READ,
+        /** Searches by a breed prefix */
+        SEARCH,
+        /** Adds a new pet */
+        INSERT,
+        /** Changes the weight of a random pet */
+        UPDATE,
+        /** Deletes a random pet */
+        DELETE;
+
+        /** Name used in reports and baseline keys */
+        String key() {
+            return name().toLowerCase(Locale.US);
+        }
+    }
+
+    /**
+     * What a run does. The mix is given as relative weights, one per {@link Operation}.
+     */
+    static final class Config {
+        int pets = 10000;
+        int threads = 8;
+        int operations = 20000;
+        int[] weights = {60, 15, 10, 10, 5};
+
+        /**
+         * Describes the run, so results are only ever compared with results of the same run.
+         */
+        String describe() {
+            return "pets=" + pets + " threads=" + threads + " operations=" + operations +
+                    " mix=" + Arrays.toString(weights);
+        }
+    }
+
+    /**
+     * Throughput and latencies of a run. Latencies are in microseconds.
+     */
+    static final class Result {
+        final String config;
+        final long elapsedMillis;
+
+        /** Median time of the reference operation during the load */
+        final long referenceNanos;
+        final int[] counts = new int[Operation.values().length];
+        final long[] p50Micros = new long[Operation.values().length];
+        final long[] p99Micros = new long[Operation.values().length];
+        final long[] maxMicros = new long[Operation.values().length];
+        int operations;
+
+        Result(String config, long elapsedMillis, long referenceNanos) {
+            this.config = config;
+            this.elapsedMillis = elapsedMillis;
+            this.referenceNanos = referenceNanos;
+        }
+
+        /** Operations per second, all kinds together */
+        long throughput() {
+            return elapsedMillis > 0 ? operations * 1000L / elapsedMillis : 0;
+        }
+
+        /** Operations done in the time of a thousand reference operations */
+        double relativeThroughput() {
+            return throughput() * (double) referenceNanos / 1000000;
+        }
+
+        /** The given latency in reference operations */
+        double relativeLatency(long micros) {
+            return micros * 1000.0 / Math.max(1, referenceNanos);
+        }
+
+        /**
+         * Returns the result as baseline properties, for {@link #findRegressions}. The
+         * "_ref" values are relative to the reference operation and are the ones compared;
+         * the absolute ones only show what the numbers were on the recording machine.
+         */
+        Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("config", config);
+            properties.setProperty("reference_ns", String.valueOf(referenceNanos));
+            properties.setProperty("throughput_ops", String.valueOf(throughput()));
+            properties.setProperty("throughput_ref", format(relativeThroughput()));
+            for (Operation operation : Operation.values()) {
+                int i = operation.ordinal();
+                if (counts[i] == 0) {
+                    continue;
+                }
+                properties.setProperty(operation.key() + ".p50_us",
+                        String.valueOf(p50Micros[i]));
+                properties.setProperty(operation.key() + ".p99_us",
+                        String.valueOf(p99Micros[i]));
+                properties.setProperty(operation.key() + ".p50_ref",
+                        format(relativeLatency(p50Micros[i])));
+                properties.setProperty(operation.key() + ".p99_ref",
+                        format(relativeLatency(p99Micros[i])));
+            }
+            return properties;
+        }
+
+        private static String format(double value) {
+            return String.format(Locale.US, "%.2f", value);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(config).append('\n');
+            report.append(String.format(Locale.US, "reference read %d ns%n", referenceNanos));
+            report.append(String.format(Locale.US, "%d operations in %d ms, %d ops/s%n",
+                    operations, elapsedMillis, throughput()));
+            for (Operation operation : Operation.values()) {
+                int i = operation.ordinal();
+                report.append(String.format(Locale.US,
+                        "%-7s count=%-7d p50=%dus p99=%dus max=%dus%n",
+                        operation.key(), counts[i], p50Micros[i], p99Micros[i], maxMicros[i]));
+            }
+            return report.toString();
+        }
+    }
+
+    private final Context mContext;
+    private final Config mConfig;
+
+    /** Highest pet _ID handed out so far; reads, updates and deletes pick below it */
+    private final AtomicLong mMaxId = new AtomicLong();
+
+    PetLoadGenerator(Context context, Config config) {
+        mContext = context.getApplicationContext();
+        mConfig = config;
+    }
+
+    /**
+     * Runs the load from a fresh database and returns its results. Blocks until done.
+     *
+     * @throws IllegalStateException if an operation failed; a run with errors has no
+     *                               meaningful numbers
+     */
+    @WorkerThread
+    Result run() throws InterruptedException {
+        mContext.deleteDatabase(DATABASE_NAME);
+        PetDbHelper dbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        ExecutorService executor = Executors.newFixedThreadPool(mConfig.threads);
+        try {
+            PetProvider provider = new PetProvider(dbHelper);
+            provider.attachInfo(mContext, null);
+
+            long seedStart = System.nanoTime();
+            seed(provider);
+            Log.i(LOG_TAG, "Seeded " + mConfig.pets + " pets in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - seedStart) + " ms");
+            SQLiteDatabase database = dbHelper.getReadableDatabase();
+
+            // Every thread gets its share of the operations; all start together
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<long[][]>> workers = new ArrayList<>(mConfig.threads);
+            for (int i = 0; i < mConfig.threads; i++) {
+                int operations = mConfig.operations / mConfig.threads +
+                        (i < mConfig.operations % mConfig.threads ? 1 : 0);
+                workers.add(executor.submit(new Worker(provider, database, operations, i,
+                        start)));
+            }
+
+            long startNanos = System.nanoTime();
+            start.countDown();
+            List<long[][]> samples = new ArrayList<>(mConfig.threads);
+            for (Future<long[][]> worker : workers) {
+                try {
+                    samples.add(worker.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Load operation failed", e.getCause());
+                }
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+            return summarize(samples, elapsedMillis);
+        } finally {
+            executor.shutdownNow();
+            dbHelper.close();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Inserts the configured number of pets, a chunk per transaction.
+     */
+    private void seed(PetProvider provider) {
+        Random random = new Random(0);
+        int seeded = 0;
+        while (seeded < mConfig.pets) {
+            ContentValues[] chunk = new ContentValues[Math.min(SEED_CHUNK_SIZE,
+                    mConfig.pets - seeded)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = newPet(random, seeded + i);
+            }
+            seeded += provider.bulkInsert(PetContract.CONTENT_URI, chunk);
+        }
+        // Seeded pets are numbered from 1 in the fresh database
+        mMaxId.set(seeded);
+    }
+
+    private static ContentValues newPet(Random random, int number) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + number);
+        values.put(PetEntry.COLUMN_PET_BREED, BREEDS[random.nextInt(BREEDS.length)]);
+        values.put(PetEntry.COLUMN_PET_GENDER, random.nextInt(3));
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + random.nextInt(60));
+        return values;
+    }
+
+    /**
+     * One thread of the load. Returns the latencies of its operations in nanoseconds, an
+     * array per {@link Operation}, followed by one for the reference operation.
+     */
+    private final class Worker implements Callable<long[][]> {
+        private final PetProvider mProvider;
+        private final SQLiteDatabase mDatabase;
+        private final int mOperations;
+        private final Random mRandom;
+        private final CountDownLatch mStart;
+
+        Worker(PetProvider provider, SQLiteDatabase database, int operations, int seed,
+               CountDownLatch start) {
+            mProvider = provider;
+            mDatabase = database;
+            mOperations = operations;
+            mRandom = new Random(seed + 1);
+            mStart = start;
+        }
+
+        @Override
+        public long[][] call() throws InterruptedException {
+            Operation[] operations = Operation.values();
+            long[][] latencies = new long[operations.length + 1][mOperations];
+            int[] counts = new int[operations.length + 1];
+            int totalWeight = 0;
+            for (int weight : mConfig.weights) {
+                totalWeight += weight;
+            }
+
+            mStart.await();
+            for (int i = 0; i < mOperations; i++) {
+                Operation operation = pick(mRandom.nextInt(totalWeight));
+                long startNanos = System.nanoTime();
+                perform(operation);
+                latencies[operation.ordinal()][counts[operation.ordinal()]++] =
+                        System.nanoTime() - startNanos;
+
+                if (i % REFERENCE_INTERVAL == 0) {
+                    startNanos = System.nanoTime();
+                    readReference();
+                    latencies[operations.length][counts[operations.length]++] =
+                            System.nanoTime() - startNanos;
+                }
+            }
+
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = Arrays.copyOf(latencies[i], counts[i]);
+            }
+            return latencies;
+        }
+
+        private Operation pick(int roll) {
+            Operation[] operations = Operation.values();
+            for (int i = 0; i < operations.length; i++) {
+                roll -= mConfig.weights[i];
+                if (roll < 0) {
+                    return operations[i];
+                }
+            }
+            return operations[operations.length - 1];
+        }
+
+        private void perform(Operation operation) {
+            switch (operation) {
+                case READ:
+                    consume(mProvider.query(randomPet(), null, null, null, null));
+                    break;
+                case SEARCH:
+                    String breed = BREEDS[mRandom.nextInt(BREEDS.length)];
+                    consume(mProvider.query(PetContract.buildSearchUri(
+                            breed.substring(0, 3), SEARCH_LIMIT), null, null, null, null));
+                    break;
+                case INSERT:
+                    Uri uri = mProvider.insert(PetContract.CONTENT_URI,
+                            newPet(mRandom, mRandom.nextInt()));
+                    if (uri == null) {
+                        throw new IllegalStateException("Insert failed");
+                    }
+                    long id = ContentUris.parseId(uri);
+                    long max;
+                    do {
+                        max = mMaxId.get();
+                    } while (id > max && !mMaxId.compareAndSet(max, id));
+                    break;
+                case UPDATE:
+                    ContentValues values = new ContentValues(1);
+                    values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + mRandom.nextInt(60));
+                    // The pet may have been deleted already, which still costs the lookup
+                    mProvider.update(randomPet(), values, null, null);
+                    break;
+                case DELETE:
+                    mProvider.delete(randomPet(), null, null);
+                    break;
+            }
+        }
+
+        private void readReference() {
+            long id = 1 + (long) (mRandom.nextDouble() * mMaxId.get());
+            consume(mDatabase.rawQuery(SQL_REFERENCE_READ, new String[] {String.valueOf(id)}));
+        }
+
+        private Uri randomPet() {
+            long id = 1 + (long) (mRandom.nextDouble() * mMaxId.get());
+            return ContentUris.withAppendedId(PetContract.CONTENT_URI, id);
+        }
+
+        /** Reads every row, as a real caller would */
+        private void consume(Cursor cursor) {
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Merges the latencies of all threads and works out the percentiles of each operation.
+     */
+    private Result summarize(List<long[][]> samples, long elapsedMillis) {
+        long[] reference = merge(samples, Operation.values().length);
+        Result result = new Result(mConfig.describe(), elapsedMillis,
+                reference.length > 0 ? percentile(reference, 50) : 0);
+        for (Operation operation : Operation.values()) {
+            int i = operation.ordinal();
+            long[] latencies = merge(samples, i);
+            int count = latencies.length;
+
+            result.counts[i] = count;
+            result.operations += count;
+            if (count > 0) {
+                result.p50Micros[i] = percentile(latencies, 50) / 1000;
+                result.p99Micros[i] = percentile(latencies, 99) / 1000;
+                result.maxMicros[i] = latencies[count - 1] / 1000;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the latencies of all threads at the given index, sorted */
+    private static long[] merge(List<long[][]> samples, int index) {
+        int count = 0;
+        for (long[][] thread : samples) {
+            count += thread[index].length;
+        }
+        long[] latencies = new long[count];
+        int offset = 0;
+        for (long[][] thread : samples) {
+            System.arraycopy(thread[index], 0, latencies, offset, thread[index].length);
+            offset += thread[index].length;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /** Returns the nearest-rank percentile of sorted values */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Compares a result with a baseline saved from {@link Result#toProperties()}. The
+     * baseline's relative numbers are first scaled by the reference time of this run, so a
+     * machine that is faster or slower overall moves the baseline along with the result. A
+     * latency percentile then regresses when it is more than the tolerance (and a few
+     * microseconds) above the baseline's, and the throughput when it is more than the
+     * tolerance below. The p99 of an operation is only compared when the run has at least
+     * {@link #MIN_P99_SAMPLES} of it.
+     *
+     * @param tolerance allowed change as a fraction, such as 0.2 for 20%
+     * @return a description of each regression; empty if there is none
+     * @throws IllegalArgumentException if the baseline is from a differently configured run
+     */
+    static List<String> findRegressions(Result result, Properties baseline, double tolerance) {
+        if (!result.config.equals(baseline.getProperty("config"))) {
+            throw new IllegalArgumentException("Baseline is for " +
+                    baseline.getProperty("config") + ", not " + result.config);
+        }
+
+        List<String> regressions = new ArrayList<>();
+        String value = baseline.getProperty("throughput_ref");
+        if (value != null) {
+            double baseThroughput = Double.parseDouble(value);
+            if (result.relativeThroughput() < baseThroughput * (1 - tolerance)) {
+                regressions.add(String.format(Locale.US,
+                        "throughput %d ops/s, baseline %.0f ops/s at this reference time",
+                        result.throughput(),
+                        baseThroughput * 1000000 / Math.max(1, result.referenceNanos)));
+            }
+        }
+        for (Operation operation : Operation.values()) {
+            int i = operation.ordinal();
+            checkLatency(regressions, result, baseline, operation.key() + ".p50",
+                    result.p50Micros[i], tolerance);
+            if (result.counts[i] >= MIN_P99_SAMPLES) {
+                checkLatency(regressions, result, baseline, operation.key() + ".p99",
+                        result.p99Micros[i], tolerance);
+            }
+        }
+        return regressions;
+    }
+
+    private static void checkLatency(List<String> regressions, Result result,
+                                     Properties baseline, String key, long micros,
+                                     double tolerance) {
+        String value = baseline.getProperty(key + "_ref");
+        if (value == null) {
+            return;
+        }
+        double baseMicros = Double.parseDouble(value) * result.referenceNanos / 1000;
+        if (micros > baseMicros * (1 + tolerance) + LATENCY_SLACK_MICROS) {
+            regressions.add(String.format(Locale.US,
+                    "%s %d us, baseline %.0f us at this reference time", key, micros,
+                    baseMicros));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.android.pets.data;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs the {@link PetLoadGenerator} on request from adb, in debug builds only, and checks its
+ * results against a saved baseline:
+ *
+ * <pre>
+ * adb shell am broadcast -a com.example.android.pets.action.RUN_LOAD \
+ *         [--ei pets 10000] [--ei threads 8] [--ei operations 20000] \
+ *         [--ei read 60] [--ei search 15] [--ei insert 10] [--ei update 10] [--ei delete 5] \
+ *         [--ef tolerance 0.2] [--ez record true]
+ * </pre>
+ *
+ * The report goes to logcat, and the broadcast's result code says how the run compares with
+ * the baseline, so a CI script can fail on anything but {@link #RESULT_PASSED}. With
+ * "record", the run's results become the new baseline instead. The baseline is read from the
+ * app's files directory, and failing that from the "pet_load_baseline.properties" asset, so a
+ * baseline pulled from the reference device can be checked in under src/debug/assets.
+ *
+ * The whole run has to fit within the broadcast timeout of about a minute.
+ */
+public class PetLoadReceiver extends BroadcastReceiver {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetLoadReceiver.class.getSimpleName();
+
+    public static final String ACTION_RUN_LOAD = "com.example.android.pets.action.RUN_LOAD";
+
+    /** The run is within the tolerance of the baseline, or was recorded as the baseline */
+    public static final int RESULT_PASSED = 0;
+
+    /** The run regressed past the tolerance */
+    public static final int RESULT_REGRESSED = 1;
+
+    /** There is no baseline for a run like this one */
+    public static final int RESULT_NO_BASELINE = 2;
+
+    /** The run failed */
+    public static final int RESULT_FAILED = 3;
+
+    /** Baseline file name, in the files directory and in the assets */
+    private static final String BASELINE_FILE_NAME = "pet_load_baseline.properties";
+
+    /** Allowed regression as a fraction, unless the broadcast gives one */
+    private static final float DEFAULT_TOLERANCE = 0.2f;
+
+    private static final String[] WEIGHT_EXTRAS = {"read", "search", "insert", "update", "delete"};
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Context appContext = context.getApplicationContext();
+
+        final PetLoadGenerator.Config config = new PetLoadGenerator.Config();
+        config.pets = intent.getIntExtra("pets", config.pets);
+        config.threads = Math.max(1, intent.getIntExtra("threads", config.threads));
+        config.operations = intent.getIntExtra("operations", config.operations);
+        for (int i = 0; i < WEIGHT_EXTRAS.length; i++) {
+            config.weights[i] = Math.max(0, intent.getIntExtra(WEIGHT_EXTRAS[i],
+                    config.weights[i]));
+        }
+        final float tolerance = intent.getFloatExtra("tolerance", DEFAULT_TOLERANCE);
+        final boolean record = intent.getBooleanExtra("record", false);
+
+        final PendingResult pendingResult = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int resultCode = RESULT_FAILED;
+                String summary;
+                try {
+                    resultCode = runLoad(appContext, config, tolerance, record);
+                    summary = "Load run finished with " + resultCode;
+                } catch (InterruptedException e) {
+                    summary = "Load run interrupted";
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Load run failed", e);
+                    summary = "Load run failed: " + e;
+                }
+                pendingResult.setResult(resultCode, summary, null);
+                pendingResult.finish();
+            }
+        }, LOG_TAG).start();
+    }
+
+    /**
+     * Runs the load, logs its report and compares it with the baseline, or records it.
+     *
+     * @return one of the RESULT_ codes
+     */
+    private static int runLoad(Context context, PetLoadGenerator.Config config, float tolerance,
+                               boolean record) throws InterruptedException, IOException {
+        Log.i(LOG_TAG, "Running load: " + config.describe());
+        PetLoadGenerator.Result result = new PetLoadGenerator(context, config).run();
+        Log.i(LOG_TAG, result.toString());
+
+        File baselineFile = new File(context.getFilesDir(), BASELINE_FILE_NAME);
+        if (record) {
+            OutputStream out = new FileOutputStream(baselineFile);
+            try {
+                result.toProperties().store(out, "Pet load baseline");
+            } finally {
+                out.close();
+            }
+            Log.i(LOG_TAG, "Recorded baseline to " + baselineFile);
+            return RESULT_PASSED;
+        }
+
+        Properties baseline = loadBaseline(context, baselineFile);
+        if (baseline == null || !result.config.equals(baseline.getProperty("config"))) {
+            Log.w(LOG_TAG, "No baseline for " + result.config + "; run with record to make one");
+            return RESULT_NO_BASELINE;
+        }
+
+        List<String> regressions = PetLoadGenerator.findRegressions(result, baseline, tolerance);
+        for (String regression : regressions) {
+            Log.e(LOG_TAG, "REGRESSION " + regression);
+        }
+        return regressions.isEmpty() ? RESULT_PASSED : RESULT_REGRESSED;
+    }
+
+    /**
+     * Reads the recorded baseline, or the one shipped in the assets.
+     *
+     * @return the baseline, or null if there is none
+     */
+    private static Properties loadBaseline(Context context, File baselineFile) throws IOException {
+        InputStream in;
+        if (baselineFile.exists()) {
+            in = new FileInputStream(baselineFile);
+        } else {
+            try {
+                in = context.getAssets().open(BASELINE_FILE_NAME);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+        try {
+            Properties baseline = new Properties();
+            baseline.load(in);
+            return baseline;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -2,33 +2,120 @@ package com.example.android.pets;
 
 
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+import com.example.android.pets.data.PetSync;
+import com.example.android.pets.data.PetWriter;
 
-import com.example.android.pets.data.PetDbHelper;
+import java.util.List;
 
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity {
+public class CatalogActivity extends AppCompatActivity
+        implements LoaderManager.LoaderCallbacks<Cursor> {
 
-    private PetDbHelper mDbHelper;
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
+    /** Identifier for the pet count loader */
+    private static final int PET_COUNT_LOADER = 0;
+
+    /** Columns shown in the list of pets */
+    private static final String[] PET_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO_OFFSET,
+            PetEntry.COLUMN_PET_PHOTO_LENGTH};
+
+    /** Adapter for the RecyclerView */
+    private PetCursorAdapter mCursorAdapter;
+
+    /** Pages the pets into the list a screenful at a time */
+    private PetPagedList mPagedList;
+
+    /**
+     * Applies changes to the list as the provider reports them: a single pet's URI only
+     * refreshes the rows around that pet, anything else refreshes the loaded pages.
+     */
+    private final ContentObserver mPetObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // Before Jelly Bean observers aren't told which URI changed
+            mPagedList.refresh();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            List<String> segments = uri != null ? uri.getPathSegments() : null;
+            if (segments != null && segments.size() == 2
+                    && PetContract.PATH_PETS.equals(segments.get(0))
+                    && TextUtils.isDigitsOnly(segments.get(1))) {
+                mPagedList.refreshPet(Long.parseLong(segments.get(1)));
+            } else {
+                mPagedList.refresh();
+            }
+        }
+    };
+
+    /** Header showing the number of pets */
+    private TextView mCountTextView;
+
+    /** Uptime at the start of onCreate, for measuring the time to the first pets on screen */
+    private long mCreateTimeMillis;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mCreateTimeMillis = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
+
+        // Query the first page of pets before inflating anything, so the query (and opening the
+        // database, if the provider hasn't yet) runs on the paging thread while the main thread
+        // builds the views. The rows are handed to the adapter once onCreate has returned.
+        // Later pages are paged in by _id as the list scrolls, keeping only a few pages of
+        // cursors in memory no matter how many pets there are.
+        mCursorAdapter = new PetCursorAdapter(this);
+        mPagedList = new PetPagedList(getContentResolver(), PET_PROJECTION, mCursorAdapter);
+        mCursorAdapter.setPagedList(mPagedList);
+
+        // Update the rows on screen whenever a pet is inserted, updated or deleted. Descendants
+        // are observed too, since the provider notifies the URI of each changed pet. Registered
+        // before the first query, so no change can slip in between.
+        getContentResolver().registerContentObserver(PetContract.CONTENT_URI, true, mPetObserver);
+        mPagedList.start();
+
         setContentView(R.layout.activity_catalog);
 
         // Setup FAB to open EditorActivity
@@ -42,96 +129,165 @@ public class CatalogActivity extends AppCompatActivity {
             }
         });
 
-        mDbHelper = new PetDbHelper(this);
+        mCountTextView = findViewById(R.id.text_view_pet);
+
+        // Find the RecyclerView which will be populated with the pet data
+        final RecyclerView petListView = findViewById(R.id.list);
+        petListView.setLayoutManager(new LinearLayoutManager(this));
+        petListView.setHasFixedSize(true);
+        petListView.setAdapter(mCursorAdapter);
+
+        // Report how long it took to show the first pets, once the list first draws with the
+        // first page in it (or knowing there are no pets)
+        petListView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        if (!mPagedList.isFirstPageLoaded()) {
+                            return true;
+                        }
+                        petListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        onFirstPetsDrawn(petListView.getChildCount());
+                        return true;
+                    }
+                });
+
+        // Kick off the loader for the header. The count runs on a background thread, and the
+        // loader keeps its result across configuration changes and restarts, re-querying only
+        // when the pets content URI is notified of a change.
+        getSupportLoaderManager().initLoader(PET_COUNT_LOADER, null, this);
+    }
 
-        displayDatabaseInfo();
+    /**
+     * Logs the time from onCreate to the first frame showing pets, and reports the activity as
+     * fully drawn so the same time shows up as "Displayed ... (total)" in the system log.
+     */
+    private void onFirstPetsDrawn(int rowsDrawn) {
+        Log.i(LOG_TAG, "First " + rowsDrawn + " pets drawn " +
+                (SystemClock.uptimeMillis() - mCreateTimeMillis) + " ms after onCreate");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            reportFullyDrawn();
+        }
     }
 
     @Override
-    protected void onStart() {
-        super.onStart();
+    protected void onDestroy() {
+        super.onDestroy();
 
-        displayDatabaseInfo();
+        getContentResolver().unregisterContentObserver(mPetObserver);
+        mPagedList.close();
     }
 
     /**
-     * Temporary helper method to display information in the onscreen TextView about the state of
-     * <p>
-     * the pets database.
+     * Helper method to insert hardcoded pet data into the database. For debugging purposes only.
      */
+    private void insertPet() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
+        values.put(PetEntry.COLUMN_PET_BREED, "Terrier");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
 
-    private void displayDatabaseInfo() {
-        // To access our database, we instantiate our subclass of SQLiteOpenHelper
-        // and pass the context, which is the current activity.
-        PetDbHelper mDbHelper = new PetDbHelper(this);
-
-        // Create and/or open a database to read from it
-        SQLiteDatabase db = mDbHelper.getReadableDatabase();
-
-        // Perform this raw SQL query "SELECT * FROM pets"
-        // to get a Cursor that contains all rows from the pets table.
-        String[] projection = {PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED,
-                PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT};
-
-        Cursor cursor = db.query(PetContract.TABLE_NAME,
-                projection,
-                null,
-                null,
-                null,
-                null,
-                null);
+        // Insert a new row for Toto on the PetWriter's background thread. The provider notifies
+        // the new pet's URI, which refreshes the list and the header. Each tap is a save of its
+        // own, so the key is never shared.
+        final Context appContext = getApplicationContext();
+        PetWriter.getInstance(this).save(new Object(), null, values, new PetWriter.Callback() {
+            @Override
+            public void onSuccess(Uri petUri) {
+                // The list updates itself
+            }
 
-        try {
-            // Display the number of rows in the Cursor (which reflects the number of rows in the
-            // pets table in the database).
-            TextView displayView = findViewById(R.id.text_view_pet);
-            displayView.setText("Number of rows in pets database table: " + cursor.getCount() + "\n");
-
-            displayView.append(PetEntry._ID + "\t" +
-                    PetEntry.COLUMN_PET_NAME + "\t" +
-                    PetEntry.COLUMN_PET_BREED + "\t" +
-                    PetEntry.COLUMN_PET_GENDER + "\t" +
-                    PetEntry.COLUMN_PET_WEIGHT + "\n");
-
-            int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
-            int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
-            int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
-            int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
-            int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
-
-
-            while(cursor.moveToNext()) {
-                displayView.append(cursor.getInt(idColumnIndex) + "\t" +
-                        cursor.getString(nameColumnIndex) + "\t" +
-                        cursor.getString(breedColumnIndex) + "\t" +
-                        cursor.getString(genderColumnIndex) + "\t" +
-                        cursor.getInt(weightColumnIndex) +
-                        "\n" );
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(appContext, R.string.catalog_insert_pet_failed,
+                        Toast.LENGTH_SHORT).show();
             }
+        });
+    }
 
-        } finally {
-            // Always close the cursor when you're done reading from it. This releases all its
-            // resources and makes it invalid.
+    /**
+     * Asks the user to confirm deleting every pet, then deletes them in the background.
+     */
+    private void showDeleteAllConfirmationDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.delete_all_dialog_msg);
+        builder.setPositiveButton(R.string.action_delete, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int id) {
+                deleteAllPets();
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
 
-            cursor.close();
-        }
+    /**
+     * Deletes every pet. The provider notifies the content URI once, which refreshes the list
+     * and the header.
+     */
+    private void deleteAllPets() {
+        final Context appContext = getApplicationContext();
+        PetWriter.getInstance(this).deleteAll(new PetWriter.Callback() {
+            @Override
+            public void onSuccess(Uri petUri) {
+                // The list updates itself
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(appContext, R.string.catalog_delete_all_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
-    private void insertPet()
-    {
-        // Gets the data repository in write mode
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+    /**
+     * Exchanges changes with the sync server in the background. Pulled changes refresh the
+     * list through the provider's notifications like any other write.
+     */
+    private void syncPets() {
+        final Context appContext = getApplicationContext();
+        new PetSync(this, getString(R.string.sync_server_url)).requestSync(new PetSync.Callback() {
+            @Override
+            public void onSyncFinished(int pushed, int pulled) {
+                Toast.makeText(appContext,
+                        appContext.getString(R.string.catalog_sync_finished, pushed, pulled),
+                        Toast.LENGTH_SHORT).show();
+            }
 
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
-        values.put(PetEntry.COLUMN_PET_BREED, "Terrier");
-        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+            @Override
+            public void onSyncFailed(Exception e) {
+                Toast.makeText(appContext, R.string.catalog_sync_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        // This loader will execute the ContentProvider's query method on a background thread.
+        // The count is read from the overall stats row the database keeps up to date, so the
+        // pets table isn't scanned at all.
+        return new CursorLoader(this,
+                PetContract.CONTENT_STATS_URI,
+                new String[] { StatsEntry.COLUMN_PET_COUNT },
+                StatsEntry.COLUMN_DIMENSION + "=?",
+                new String[] { StatsEntry.DIMENSION_ALL },
+                null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        // Update the header with the new number of pets
+        if (cursor != null && cursor.moveToFirst()) {
+            mCountTextView.setText(getString(R.string.catalog_pet_count, cursor.getInt(0)));
+        }
+    }
 
-        long newId = db.insert(PetContract.TABLE_NAME, null, values);
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        // Nothing holds on to the count cursor
     }
 
     @Override
@@ -140,6 +296,10 @@ public class CatalogActivity extends AppCompatActivity {
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
 
+        // Syncing is only offered once a sync server is configured
+        menu.findItem(R.id.action_sync).setVisible(
+                !TextUtils.isEmpty(getString(R.string.sync_server_url)));
+
         return true;
     }
 
@@ -151,15 +311,18 @@ public class CatalogActivity extends AppCompatActivity {
             case R.id.action_insert_dummy_data:
 
                 insertPet();
-
-                displayDatabaseInfo();
-
                 return true;
 
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
 
-                // Do nothing for now
+                showDeleteAllConfirmationDialog();
+                return true;
+
+            // Respond to a click on the "Sync now" menu option
+            case R.id.action_sync:
+
+                syncPets();
                 return true;
         }
 
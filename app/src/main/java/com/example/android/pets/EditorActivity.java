@@ -16,30 +16,36 @@
 package com.example.android.pets;
 
 import android.content.ContentValues;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract;
-import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetWriter;
 
 /**
  * Allows user to create a new pet or edit an existing one.
  */
 public class EditorActivity extends AppCompatActivity {
 
+    /** Request code of the photo picker */
+    private static final int REQUEST_PICK_PHOTO = 1;
+
+    /** Key of the picked photo in the saved instance state */
+    private static final String STATE_PHOTO_URI = "photo_uri";
+
     /** EditText field to enter the pet's name */
     private EditText mNameEditText;
 
@@ -52,12 +58,28 @@ public class EditorActivity extends AppCompatActivity {
     /** EditText field to enter the pet's gender */
     private Spinner mGenderSpinner;
 
+    /** Button to pick the pet's photo */
+    private Button mPhotoButton;
+
+    /**
+     * Photo picked for the pet, or null if none was picked. It is only read when the pet is
+     * saved, and then on the writer's thread, so picking a photo never decodes or copies it
+     * on the main thread.
+     */
+    private Uri mPhotoUri;
+
     /**
      * Gender of the pet. The possible values are:
      * 0 for unknown gender, 1 for male, 2 for female.
      */
     private int mGender = 0;
 
+    /**
+     * Identifies this editor's saves to the {@link PetWriter}, so repeated taps on save while a
+     * save is still queued are merged into one write.
+     */
+    private final Object mSaveKey = new Object();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -68,8 +90,52 @@ public class EditorActivity extends AppCompatActivity {
         mBreedEditText = findViewById(R.id.edit_pet_breed);
         mWeightEditText = findViewById(R.id.edit_pet_weight);
         mGenderSpinner = findViewById(R.id.spinner_gender);
+        mPhotoButton = findViewById(R.id.button_pet_photo);
 
         setupSpinner();
+
+        mPhotoButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                pickPhoto();
+            }
+        });
+        if (savedInstanceState != null) {
+            setPhotoUri((Uri) savedInstanceState.getParcelable(STATE_PHOTO_URI));
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_PHOTO_URI, mPhotoUri);
+    }
+
+    /**
+     * Lets the user pick an image for the pet's photo from any app that provides images.
+     */
+    private void pickPhoto() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("image/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(intent, REQUEST_PICK_PHOTO);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_PICK_PHOTO) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                setPhotoUri(data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    private void setPhotoUri(Uri photoUri) {
+        mPhotoUri = photoUri;
+        mPhotoButton.setText(photoUri != null
+                ? R.string.editor_change_photo : R.string.editor_choose_photo);
     }
 
     /**
@@ -111,40 +177,55 @@ public class EditorActivity extends AppCompatActivity {
         });
     }
 
-    /*
-     * Get user input from editor and save new pet into database.
+    /**
+     * Get user input from editor and queue the new pet to be saved into the database. The save
+     * runs on the {@link PetWriter}'s background thread; the editor closes once it succeeds.
      */
-    private void insertPet() {
+    private void savePet() {
         String name = mNameEditText.getText().toString().trim();
         String breed = mBreedEditText.getText().toString().trim();
-        int gender =  mGender;
-        int weight =  Integer.parseInt(mWeightEditText.getText().toString().trim());
+        String weightString = mWeightEditText.getText().toString().trim();
 
-        long newId = 0;
-
-        try {
+        // Validate the input before anything is queued
+        if (TextUtils.isEmpty(name)) {
+            mNameEditText.setError(getString(R.string.editor_error_name_required));
+            return;
+        }
 
-            ContentValues values = new ContentValues();
-            values.put(PetContract.PetEntry.COLUMN_PET_NAME, name);
-            values.put(PetContract.PetEntry.COLUMN_PET_BREED, breed);
-            values.put(PetContract.PetEntry.COLUMN_PET_GENDER, gender);
-            values.put(PetContract.PetEntry.COLUMN_PET_WEIGHT, weight);
+        int weight = 0;
+        if (!TextUtils.isEmpty(weightString)) {
+            try {
+                weight = Integer.parseInt(weightString);
+            } catch (NumberFormatException e) {
+                mWeightEditText.setError(getString(R.string.editor_error_invalid_weight));
+                return;
+            }
+        }
 
-            PetDbHelper petDbHelper = new PetDbHelper(this);
-            SQLiteDatabase db = petDbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(PetContract.PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetContract.PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetContract.PetEntry.COLUMN_PET_GENDER, mGender);
+        values.put(PetContract.PetEntry.COLUMN_PET_WEIGHT, weight);
 
-            newId = db.insert(PetContract.TABLE_NAME, null, values);
+        PetWriter.getInstance(this).save(mSaveKey, null, values, mPhotoUri,
+                new PetWriter.Callback() {
+            @Override
+            public void onSuccess(Uri petUri) {
+                Toast.makeText(EditorActivity.this,
+                        getString(R.string.editor_insert_pet_successful, petUri.getLastPathSegment()),
+                        Toast.LENGTH_SHORT).show();
 
-            if(newId > 0) {
-                Toast.makeText(this, "Pet saved with id: " + String.valueOf(newId), Toast.LENGTH_SHORT).show();
+                // Exit activity
+                finish();
             }
-            else {
-                Toast.makeText(this, "Error with saving pet.", Toast.LENGTH_SHORT).show();
+
+            @Override
+            public void onFailure(Exception e) {
+                Toast.makeText(EditorActivity.this, R.string.editor_insert_pet_failed,
+                        Toast.LENGTH_SHORT).show();
             }
-        }
-        catch(Exception e) {
-            Log.e(EditorActivity.class.getSimpleName(), e.getMessage());
-        }
+        });
     }
 
     @Override
@@ -161,12 +242,8 @@ public class EditorActivity extends AppCompatActivity {
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save pet to database
-                insertPet();
-
-                // Exit activity
-                finish();
-
+                // Save pet to database. The activity exits once the save succeeds.
+                savePet();
                 return true;
 
             // Respond to a click on the "Delete" menu option
@@ -0,0 +1,201 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetRowReader;
+
+/**
+ * {@link PetCursorAdapter} is a {@link RecyclerView.Adapter} that creates a list item layout
+ * for each row of pet data in a {@link PetPagedList}. Only the visible rows are bound, and views
+ * are recycled as the list scrolls. Photo thumbnails are decoded in the background by a
+ * {@link PetThumbnailLoader}.
+ */
+public class PetCursorAdapter extends RecyclerView.Adapter<PetCursorAdapter.PetViewHolder>
+        implements PetPagedList.Callback {
+
+    private final Context mContext;
+
+    /** Pages of pet rows the list is bound to, or null while nothing is bound */
+    private PetPagedList mPagedList;
+
+    /** Reads the rows being bound, resolving the columns once per page cursor */
+    private final PetRowReader mRowReader = new PetRowReader();
+
+    /** Decodes and caches the photo thumbnails off the main thread */
+    private final PetThumbnailLoader mThumbnailLoader;
+
+    /**
+     * Labels used to build the summary line, looked up once instead of on every bind. The
+     * gender labels are indexed by the gender constants in {@link PetEntry}.
+     */
+    private final String[] mGenderLabels;
+    private final String mSummarySeparator;
+    private final String mWeightUnit;
+
+    /**
+     * Constructs a new {@link PetCursorAdapter}.
+     *
+     * @param context The context
+     */
+    public PetCursorAdapter(Context context) {
+        mContext = context;
+        mThumbnailLoader = PetThumbnailLoader.getInstance(context);
+        mGenderLabels = new String[] {
+                context.getString(genderLabel(PetEntry.GENDER_UNKNOWN)),
+                context.getString(genderLabel(PetEntry.GENDER_MALE)),
+                context.getString(genderLabel(PetEntry.GENDER_FEMALE))};
+        mSummarySeparator = context.getString(R.string.pet_summary_separator);
+        mWeightUnit = context.getString(R.string.unit_pet_weight);
+    }
+
+    /**
+     * Binds the adapter to the given paged list. The list must report its changes to this
+     * adapter as its {@link PetPagedList.Callback}.
+     */
+    public void setPagedList(PetPagedList pagedList) {
+        mPagedList = pagedList;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void onItemRangeChanged(int positionStart, int itemCount) {
+        notifyItemRangeChanged(positionStart, itemCount);
+    }
+
+    @Override
+    public void onItemRangeInserted(int positionStart, int itemCount) {
+        notifyItemRangeInserted(positionStart, itemCount);
+    }
+
+    @Override
+    public void onItemRangeRemoved(int positionStart, int itemCount) {
+        notifyItemRangeRemoved(positionStart, itemCount);
+    }
+
+    @NonNull
+    @Override
+    public PetViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(view);
+    }
+
+    /**
+     * Binds the pet data at the given position (e.g. the name for the current row) to the
+     * list item layout. Rows whose page is still loading are shown blank until the page
+     * arrives and the position is rebound.
+     *
+     * The text is copied into buffers owned by the view holder and shown straight from them,
+     * so scrolling doesn't allocate Strings for every row.
+     */
+    @Override
+    public void onBindViewHolder(@NonNull PetViewHolder holder, int position) {
+        Cursor cursor = mPagedList.getRow(position);
+        if (cursor == null) {
+            holder.nameTextView.setText(null);
+            holder.summaryTextView.setText(null);
+            mThumbnailLoader.clear(holder.photoImageView);
+            return;
+        }
+
+        PetRowReader row = mRowReader.moveTo(cursor);
+
+        if (row.hasPhoto()) {
+            mThumbnailLoader.bind(holder.photoImageView, row.getPhotoOffset(),
+                    row.getPhotoLength());
+        } else {
+            mThumbnailLoader.clear(holder.photoImageView);
+        }
+
+        row.copyName(holder.nameBuffer);
+        holder.nameTextView.setText(holder.nameBuffer.data, 0, holder.nameBuffer.sizeCopied);
+
+        // Breed, gender and weight in kg, joined by the separator from resources
+        row.copyBreed(holder.breedBuffer);
+        int gender = row.getGender();
+        StringBuilder summary = holder.summary;
+        summary.setLength(0);
+        summary.append(holder.breedBuffer.data, 0, holder.breedBuffer.sizeCopied)
+                .append(mSummarySeparator)
+                .append(mGenderLabels[PetEntry.isValidGender(gender)
+                        ? gender : PetEntry.GENDER_UNKNOWN])
+                .append(mSummarySeparator)
+                .append(row.getWeight())
+                .append(' ')
+                .append(mWeightUnit);
+        holder.setSummary(summary);
+    }
+
+    /**
+     * Stops decoding the thumbnail of a row that scrolled away before it was shown.
+     */
+    @Override
+    public void onViewRecycled(@NonNull PetViewHolder holder) {
+        mThumbnailLoader.clear(holder.photoImageView);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mPagedList == null ? 0 : mPagedList.getCount();
+    }
+
+    /**
+     * Returns the string resource for the given gender constant from {@link PetEntry}.
+     */
+    static int genderLabel(int gender) {
+        switch (gender) {
+            case PetEntry.GENDER_MALE:
+                return R.string.gender_male;
+            case PetEntry.GENDER_FEMALE:
+                return R.string.gender_female;
+            default:
+                return R.string.gender_unknown;
+        }
+    }
+
+    /**
+     * Holds the views of a single list item so they are looked up once per view, not once per bind.
+     *
+     * Also holds the text buffers of the item. A TextView given a char array keeps showing that
+     * array rather than copying it, so each item needs buffers of its own.
+     */
+    static class PetViewHolder extends RecyclerView.ViewHolder {
+
+        final ImageView photoImageView;
+        final TextView nameTextView;
+        final TextView summaryTextView;
+
+        final CharArrayBuffer nameBuffer = new CharArrayBuffer(32);
+        final CharArrayBuffer breedBuffer = new CharArrayBuffer(32);
+        final StringBuilder summary = new StringBuilder(64);
+        private char[] mSummaryChars = new char[64];
+
+        PetViewHolder(View itemView) {
+            super(itemView);
+            photoImageView = itemView.findViewById(R.id.photo);
+            nameTextView = itemView.findViewById(R.id.name);
+            summaryTextView = itemView.findViewById(R.id.summary);
+        }
+
+        /**
+         * Shows the given text in the summary view, copying it into the holder's own array.
+         */
+        void setSummary(StringBuilder text) {
+            int length = text.length();
+            if (mSummaryChars.length < length) {
+                mSummaryChars = new char[Math.max(length, mSummaryChars.length * 2)];
+            }
+            text.getChars(0, length, mSummaryChars, 0);
+            summaryTextView.setText(mSummaryChars, 0, length);
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pages the pets table into the catalog list through {@link PetContract#buildPageUri}.
+ *
+ * The list is split into pages of up to {@link #PAGE_SIZE} pets, each remembering the _id range
+ * it covers. Pages are queried on a background thread as the list scrolls towards them, the
+ * next page is prefetched before the user reaches the end of the loaded rows, and only the
+ * {@link #MAX_LOADED_PAGES} most recently used pages keep their cursor open. Pages that were
+ * evicted are re-queried by their _id range when they scroll back into view.
+ *
+ * Each page keeps the position of its first row, so finding the page of a position is a binary
+ * search. New pets fill up the tail page before a new page is started.
+ *
+ * When a single pet changes only the page holding it is re-queried, and the page's old and new
+ * _ids are diffed so that just the rows that were changed, inserted or removed are rebound.
+ *
+ * All methods must be called on the main thread.
+ */
+public class PetPagedList {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetPagedList.class.getSimpleName();
+
+    /** Number of pets queried per page */
+    static final int PAGE_SIZE = 50;
+
+    /** Maximum number of pages whose cursors are held in memory at once */
+    static final int MAX_LOADED_PAGES = 8;
+
+    /** How close to the end of the loaded rows binding has to get before the next page loads */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    /**
+     * Receives the position ranges that changed as pages load, reload and grow.
+     */
+    public interface Callback {
+        void onItemRangeChanged(int positionStart, int itemCount);
+
+        void onItemRangeInserted(int positionStart, int itemCount);
+
+        void onItemRangeRemoved(int positionStart, int itemCount);
+    }
+
+    /**
+     * A run of consecutive pets, covering the _id range (afterId, lastId].
+     */
+    private static class Page {
+        /** Index of the page in mPages */
+        final int index;
+
+        /** Exclusive lower bound of the _id range */
+        final long afterId;
+
+        /**
+         * Inclusive upper bound of the _id range, the _id of the last row. While the page is the
+         * tail and holds fewer than {@link #PAGE_SIZE} rows its range is open, so new pets are
+         * added to it when it is re-queried; once it is full the range is fixed.
+         */
+        long lastId;
+
+        /** Position of the first row of the page in the list */
+        int start;
+
+        /** _ids of the rows in the page the last time it was queried, kept after eviction */
+        long[] ids;
+
+        /** Number of rows in the page the last time it was queried */
+        int count;
+
+        /** Open cursor over the rows of the page, or null if the page isn't loaded */
+        Cursor cursor;
+
+        /** True while a query for this page is in flight */
+        boolean loading;
+
+        /** True if any row of the page may have changed since it was last queried */
+        boolean allChanged;
+
+        /** _ids of the rows known to have changed since the page was last queried */
+        final HashSet<Long> changedIds = new HashSet<>();
+
+        /** True if pets may have been added after the open tail since it was last queried */
+        boolean newPets;
+
+        Page(int index, long afterId) {
+            this.index = index;
+            this.afterId = afterId;
+        }
+
+        boolean isStale() {
+            return allChanged || !changedIds.isEmpty() || newPets;
+        }
+
+        boolean covers(long id) {
+            return id > afterId && id <= lastId;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final String[] mProjection;
+    private final Callback mCallback;
+
+    /** Single background thread that runs the page queries in order */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Every page seen so far, in _id order and so in position order. Evicted pages keep their
+     * range, row count and start position.
+     */
+    private final ArrayList<Page> mPages = new ArrayList<>();
+
+    /** Pages with an open cursor, least recently used first */
+    private final ArrayDeque<Page> mLoadedPages = new ArrayDeque<>();
+
+    /** Total number of rows across all pages */
+    private int mCount;
+
+    /** True once a page came back short, meaning there are no pets after the tail page */
+    private boolean mEndReached;
+
+    /** True once the first page query came back, even if it found no pets */
+    private boolean mFirstPageLoaded;
+
+    /** True while the page following the tail page is being queried */
+    private boolean mLoadingNext;
+
+    /** True if the table changed while the next page was being queried */
+    private boolean mNextPageStale;
+
+    /** Bumped when the list is closed, so late query results are dropped */
+    private int mGeneration;
+
+    private boolean mClosed;
+
+    public PetPagedList(ContentResolver resolver, String[] projection, Callback callback) {
+        mResolver = resolver;
+        mProjection = projection;
+        mCallback = callback;
+    }
+
+    /**
+     * Starts loading the first page.
+     */
+    public void start() {
+        loadNextPage();
+    }
+
+    /**
+     * Returns whether the first page has been queried, so {@link #getCount()} reflects the
+     * table rather than the empty list before any query returned.
+     */
+    public boolean isFirstPageLoaded() {
+        return mFirstPageLoaded;
+    }
+
+    /**
+     * Returns the number of rows paged in so far.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the cursor of the page holding the given position, moved to that row, or null if
+     * the page isn't in memory yet. A missing page is queried and reported through
+     * {@link Callback#onItemRangeChanged} once it arrives.
+     */
+    public Cursor getRow(int position) {
+        // Prefetch the next page before the user scrolls to the end of the loaded rows
+        if (position >= mCount - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+
+        if (position < 0 || position >= mCount) {
+            return null;
+        }
+        Page page = mPages.get(pageIndexAt(position));
+        if (page.cursor == null || page.isStale()) {
+            loadPage(page);
+        }
+        if (page.cursor == null) {
+            return null;
+        }
+        touch(page);
+        return page.cursor.moveToPosition(position - page.start) ? page.cursor : null;
+    }
+
+    /**
+     * Marks every page as stale after the pets table changed. Pages in memory are re-queried
+     * right away, evicted pages when they are next needed, and the tail is extended to pick up
+     * any newly inserted pets.
+     */
+    public void refresh() {
+        for (Page page : mPages) {
+            page.allChanged = true;
+        }
+        // The tail goes first, so its query also covers the new pets
+        loadNewPets();
+        for (Page page : new ArrayList<>(mLoadedPages)) {
+            loadPage(page);
+        }
+    }
+
+    /**
+     * Applies a change to the pet with the given _id. Only the page covering that _id is
+     * re-queried (right away if it is in memory, otherwise when it is next needed), or the tail
+     * is extended if the pet is newer than every page.
+     */
+    public void refreshPet(long id) {
+        for (Page page : mPages) {
+            if (page.covers(id)) {
+                page.changedIds.add(id);
+                if (page.cursor != null) {
+                    loadPage(page);
+                }
+                return;
+            }
+        }
+
+        loadNewPets();
+    }
+
+    /**
+     * Extends the tail to pick up pets inserted after it was queried: the short tail page is
+     * re-queried with its range open, or the page after a full tail is loaded.
+     */
+    private void loadNewPets() {
+        mEndReached = false;
+        if (mLoadingNext) {
+            mNextPageStale = true;
+            return;
+        }
+
+        Page tail = mPages.isEmpty() ? null : mPages.get(mPages.size() - 1);
+        if (tail != null && tail.count < PAGE_SIZE) {
+            // A query already in flight may have started before the insert, so this one is
+            // queued behind it
+            tail.newPets = true;
+            loadPage(tail);
+        } else {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * Closes every open page cursor and stops the background thread.
+     */
+    public void close() {
+        mClosed = true;
+        mGeneration++;
+        for (Page page : mLoadedPages) {
+            page.cursor.close();
+            page.cursor = null;
+        }
+        mLoadedPages.clear();
+        mExecutor.shutdown();
+    }
+
+    private void loadNextPage() {
+        if (mClosed || mEndReached || mLoadingNext) {
+            return;
+        }
+
+        Page tail = mPages.isEmpty() ? null : mPages.get(mPages.size() - 1);
+        if (tail != null && tail.count < PAGE_SIZE) {
+            // A short tail is re-queried with its range open, so pets inserted one at a time
+            // join it instead of each starting a page of its own
+            loadPage(tail);
+            return;
+        }
+        mLoadingNext = true;
+
+        final long afterId = tail == null ? 0 : tail.lastId;
+        final int generation = mGeneration;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Cursor cursor = queryRange(afterId, Long.MAX_VALUE);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onNextPageLoaded(generation, afterId, cursor);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onNextPageLoaded(int generation, long afterId, Cursor cursor) {
+        mLoadingNext = false;
+        if (generation != mGeneration || cursor == null) {
+            closeQuietly(cursor);
+            return;
+        }
+        mFirstPageLoaded = true;
+
+        int count = cursor.getCount();
+        if (count < PAGE_SIZE && !mNextPageStale) {
+            mEndReached = true;
+        }
+        if (mNextPageStale) {
+            // The short page may have missed pets inserted while it was being queried
+            mNextPageStale = false;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    loadNextPage();
+                }
+            });
+        }
+        if (count == 0) {
+            cursor.close();
+            return;
+        }
+
+        Page page = new Page(mPages.size(), afterId);
+        page.start = mCount;
+        page.ids = readIds(cursor);
+        page.count = count;
+        page.lastId = page.ids[count - 1];
+        page.cursor = cursor;
+        mPages.add(page);
+        touch(page);
+
+        int positionStart = mCount;
+        mCount += count;
+        mCallback.onItemRangeInserted(positionStart, count);
+    }
+
+    private void loadPage(final Page page) {
+        if (mClosed || page.loading) {
+            return;
+        }
+        page.loading = true;
+
+        // Changes that arrive from here on need another query
+        final boolean allChanged = page.allChanged;
+        final HashSet<Long> changedIds = new HashSet<>(page.changedIds);
+        page.allChanged = false;
+        page.changedIds.clear();
+        page.newPets = false;
+
+        final long afterId = page.afterId;
+        final boolean open = isOpenTail(page);
+        final long upperId = open ? Long.MAX_VALUE : page.lastId;
+        final int generation = mGeneration;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Cursor cursor = queryRange(afterId, upperId);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(generation, page, cursor, open, allChanged, changedIds);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPageLoaded(int generation, Page page, Cursor cursor, boolean open,
+                              boolean allChanged, HashSet<Long> changedIds) {
+        page.loading = false;
+        if (generation != mGeneration || cursor == null) {
+            closeQuietly(cursor);
+            // Put the changes back so the page is queried again when it is next needed
+            page.allChanged |= allChanged;
+            page.changedIds.addAll(changedIds);
+            page.newPets |= open;
+            return;
+        }
+
+        // Rows of a page that wasn't in memory were bound as placeholders, so all need rebinding
+        boolean wasLoaded = page.cursor != null;
+        if (wasLoaded) {
+            page.cursor.close();
+        }
+        page.cursor = cursor;
+        touch(page);
+
+        long[] oldIds = page.ids;
+        long[] newIds = readIds(cursor);
+        page.ids = newIds;
+        page.count = newIds.length;
+        if (open && newIds.length > 0) {
+            page.lastId = newIds[newIds.length - 1];
+        }
+        mCount += newIds.length - oldIds.length;
+        updateStarts(page.index + 1);
+
+        dispatchDiff(page.start, oldIds, newIds, allChanged || !wasLoaded ? null : changedIds);
+
+        if (page.isStale()) {
+            // The rows changed again while they were being queried
+            loadPage(page);
+        } else if (open) {
+            // The open query saw every pet after the page's start
+            mEndReached = newIds.length < PAGE_SIZE;
+        }
+    }
+
+    /**
+     * Reports the difference between the old and new _ids of a page to the callback. Both
+     * arrays are sorted, so one merge pass finds the removed and inserted rows; rows in both
+     * are reported as changed if their _id is in {@code changedIds}, or always if it is null.
+     */
+    private void dispatchDiff(int pageStart, long[] oldIds, long[] newIds,
+                              HashSet<Long> changedIds) {
+        int position = pageStart;
+        int oldIndex = 0;
+        int newIndex = 0;
+        while (oldIndex < oldIds.length || newIndex < newIds.length) {
+            if (newIndex == newIds.length
+                    || (oldIndex < oldIds.length && oldIds[oldIndex] < newIds[newIndex])) {
+                // The pet was deleted; the following rows move up into its position
+                mCallback.onItemRangeRemoved(position, 1);
+                oldIndex++;
+            } else if (oldIndex == oldIds.length || newIds[newIndex] < oldIds[oldIndex]) {
+                mCallback.onItemRangeInserted(position, 1);
+                position++;
+                newIndex++;
+            } else {
+                if (changedIds == null || changedIds.contains(oldIds[oldIndex])) {
+                    mCallback.onItemRangeChanged(position, 1);
+                }
+                position++;
+                oldIndex++;
+                newIndex++;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the page is the tail and not yet full, so its range is still open. It is
+     * closed while the page after it is being queried, so the two can't overlap.
+     */
+    private boolean isOpenTail(Page page) {
+        return page.index == mPages.size() - 1 && page.count < PAGE_SIZE && !mLoadingNext;
+    }
+
+    /**
+     * Runs on the background thread. Queries up to a page of pets in (afterId, upperId] and
+     * fills the cursor window before handing the cursor back to the main thread.
+     */
+    private Cursor queryRange(long afterId, long upperId) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (upperId != Long.MAX_VALUE) {
+            selection = PetEntry._ID + "<=?";
+            selectionArgs = new String[] { String.valueOf(upperId) };
+        }
+
+        try {
+            Cursor cursor = mResolver.query(PetContract.buildPageUri(afterId, PAGE_SIZE),
+                    mProjection, selection, selectionArgs, null);
+            if (cursor != null) {
+                cursor.getCount();
+            }
+            return cursor;
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to load pets after _id " + afterId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Marks the page as most recently used, closing the least recently used page's cursor once
+     * more than {@link #MAX_LOADED_PAGES} are open.
+     */
+    private void touch(Page page) {
+        mLoadedPages.remove(page);
+        mLoadedPages.addLast(page);
+
+        while (mLoadedPages.size() > MAX_LOADED_PAGES) {
+            Page evicted = mLoadedPages.removeFirst();
+            evicted.cursor.close();
+            evicted.cursor = null;
+        }
+    }
+
+    /**
+     * Returns the index of the page holding the given position, which must be in the list, by
+     * a binary search over the pages' start positions.
+     */
+    private int pageIndexAt(int position) {
+        int low = 0;
+        int high = mPages.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mPages.get(mid).start <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        // The last page starting at or before the position; empty pages before it share its
+        // start, so it is the one holding the row
+        return high;
+    }
+
+    /**
+     * Recomputes the start positions of the pages from the given index on, after the row count
+     * of the page before them changed.
+     */
+    private void updateStarts(int fromIndex) {
+        for (int i = Math.max(fromIndex, 1); i < mPages.size(); i++) {
+            Page previous = mPages.get(i - 1);
+            mPages.get(i).start = previous.start + previous.count;
+        }
+    }
+
+    private static long[] readIds(Cursor cursor) {
+        int idColumnIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        long[] ids = new long[cursor.getCount()];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            ids[cursor.getPosition()] = cursor.getLong(idColumnIndex);
+        }
+        return ids;
+    }
+
+    private static void closeQuietly(Cursor cursor) {
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+}
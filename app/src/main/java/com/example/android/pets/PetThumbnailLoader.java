@@ -0,0 +1,270 @@
+package com.example.android.pets;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetPhotoStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shows pet photos from the {@link PetPhotoStore} as square thumbnails, decoding them on
+ * background threads and keeping recently shown thumbnails in memory.
+ *
+ * Photos are downsampled while they are decoded, so a large photo never exists at full size
+ * in memory, and the cache is bounded by the bytes of its bitmaps rather than their number.
+ * An image view rebound to another pet before its thumbnail was ready cancels the decode, so a
+ * fast fling only decodes the rows it stops on.
+ */
+final class PetThumbnailLoader {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetThumbnailLoader.class.getSimpleName();
+
+    /** Threads decoding thumbnails; more than a couple only compete with the UI for the CPU */
+    private static final int DECODE_THREADS = 2;
+
+    /** Share of the app's memory class the cached thumbnails may take */
+    private static final int CACHE_MEMORY_FRACTION = 8;
+
+    private static PetThumbnailLoader sInstance;
+
+    /**
+     * Returns the process-wide loader, so its cache survives the catalog being recreated.
+     */
+    static synchronized PetThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            ActivityManager activityManager =
+                    (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+            int cacheBytes = activityManager.getMemoryClass() * 1024 * 1024
+                    / CACHE_MEMORY_FRACTION;
+            sInstance = new PetThumbnailLoader(PetPhotoStore.getInstance(appContext),
+                    appContext.getResources().getDimensionPixelSize(R.dimen.pet_thumbnail_size),
+                    cacheBytes);
+        }
+        return sInstance;
+    }
+
+    private final PetPhotoStore mPhotoStore;
+
+    /** Width and height of the thumbnails, in pixels */
+    private final int mSizePx;
+
+    /** Thumbnails by photo offset, which is unique since the photo store only appends */
+    private final LruCache<Long, Bitmap> mCache;
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(DECODE_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, LOG_TAG);
+                }
+            });
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private PetThumbnailLoader(PetPhotoStore photoStore, int sizePx, int cacheBytes) {
+        mPhotoStore = photoStore;
+        mSizePx = sizePx;
+        mCache = new LruCache<Long, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(Long offset, Bitmap thumbnail) {
+                return thumbnail.getRowBytes() * thumbnail.getHeight();
+            }
+        };
+    }
+
+    /**
+     * A thumbnail being decoded for an image view. The view's tag points at its request until
+     * the thumbnail is shown or the view is rebound.
+     */
+    private final class Request implements Runnable {
+        final ImageView view;
+        final long offset;
+        final int length;
+        Future<?> future;
+
+        Request(ImageView view, long offset, int length) {
+            this.view = view;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final Bitmap thumbnail = decode(offset, length);
+            if (thumbnail != null) {
+                mCache.put(offset, thumbnail);
+            }
+
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Skip views that were rebound while the thumbnail was decoding
+                    if (view.getTag() == Request.this) {
+                        view.setTag(null);
+                        if (thumbnail != null) {
+                            view.setImageBitmap(thumbnail);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Shows the thumbnail of the photo at the given place in the photo store in the view: at
+     * once if it is cached, otherwise once it has been decoded. Until then the view is empty.
+     */
+    @MainThread
+    void bind(ImageView view, long offset, int length) {
+        Object tag = view.getTag();
+        if (tag instanceof Request) {
+            Request pending = (Request) tag;
+            if (pending.offset == offset) {
+                // Already on its way
+                return;
+            }
+            pending.future.cancel(false);
+        }
+
+        Bitmap thumbnail = mCache.get(offset);
+        if (thumbnail != null) {
+            view.setTag(null);
+            view.setImageBitmap(thumbnail);
+            return;
+        }
+
+        view.setImageDrawable(null);
+        Request request = new Request(view, offset, length);
+        view.setTag(request);
+        request.future = mExecutor.submit(request);
+    }
+
+    /**
+     * Empties the view, cancelling the decode of the thumbnail it was waiting for, if any.
+     */
+    @MainThread
+    void clear(ImageView view) {
+        Object tag = view.getTag();
+        if (tag instanceof Request) {
+            ((Request) tag).future.cancel(false);
+        }
+        view.setTag(null);
+        view.setImageDrawable(null);
+    }
+
+    /**
+     * Decodes the photo straight from the mapped photo store, sampled down to the smallest
+     * power of two that still covers the thumbnail, then crops it to a square.
+     *
+     * @return the thumbnail, or null if the photo is missing or can't be decoded
+     */
+    @WorkerThread
+    private Bitmap decode(long offset, int length) {
+        ByteBuffer photo;
+        try {
+            photo = mPhotoStore.read(offset, length);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read photo at " + offset, e);
+            return null;
+        }
+        if (photo == null) {
+            Log.w(LOG_TAG, "Missing photo at " + offset);
+            return null;
+        }
+
+        // Read the dimensions first, without allocating any pixels
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new ByteBufferInputStream(photo.duplicate()), null, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(LOG_TAG, "Undecodable photo at " + offset);
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(Math.min(options.outWidth, options.outHeight));
+        // Thumbnails have no transparency, and 16 bits a pixel halves their memory
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap sampled = BitmapFactory.decodeStream(new ByteBufferInputStream(photo), null, options);
+        if (sampled == null) {
+            Log.w(LOG_TAG, "Undecodable photo at " + offset);
+            return null;
+        }
+        return ThumbnailUtils.extractThumbnail(sampled, mSizePx, mSizePx,
+                ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+    }
+
+    /**
+     * Returns the largest power of two that can divide the given side of a photo and still
+     * leave it at least as big as a thumbnail.
+     */
+    private int sampleSize(int shortSide) {
+        int sampleSize = 1;
+        while (shortSide / (sampleSize * 2) >= mSizePx) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Streams the remaining bytes of a buffer, which BitmapFactory can't decode from directly.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, mBuffer.remaining());
+            mBuffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
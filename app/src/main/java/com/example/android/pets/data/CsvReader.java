@@ -0,0 +1,107 @@
+package com.example.android.pets.data;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Streams records out of RFC 4180 CSV text one at a time. Fields may be quoted, quoted fields
+ * may contain commas, line breaks and doubled quotes, and records may end with LF or CRLF.
+ * Only the current record is held in memory.
+ */
+final class CsvReader {
+
+    private final Reader mReader;
+    private final StringBuilder mField = new StringBuilder();
+
+    /** Character read ahead of the current position, or -2 if none */
+    private int mPeeked = -2;
+
+    /** Number of the record last returned by {@link #readRecord}, starting at 1 */
+    private long mRecordNumber;
+
+    CsvReader(Reader reader) {
+        mReader = reader;
+    }
+
+    long getRecordNumber() {
+        return mRecordNumber;
+    }
+
+    /**
+     * Reads the next record into {@code fields}, replacing its contents. Returns false at the
+     * end of the input. Blank lines are skipped.
+     */
+    boolean readRecord(List<String> fields) throws IOException {
+        fields.clear();
+
+        int c = read();
+        while (c == '\r' || c == '\n') {
+            c = read();
+        }
+        if (c == -1) {
+            return false;
+        }
+
+        while (true) {
+            mField.setLength(0);
+            if (c == '"') {
+                c = readQuoted();
+                if (c != ',' && c != '\n' && c != '\r' && c != -1) {
+                    throw new IOException("Unexpected text after quoted field in record " +
+                            (mRecordNumber + 1));
+                }
+            } else {
+                while (c != ',' && c != '\n' && c != '\r' && c != -1) {
+                    mField.append((char) c);
+                    c = read();
+                }
+            }
+            fields.add(mField.toString());
+
+            if (c == ',') {
+                c = read();
+                continue;
+            }
+
+            // End of the record; swallow the LF of a CRLF
+            if (c == '\r') {
+                int next = read();
+                if (next != '\n') {
+                    mPeeked = next;
+                }
+            }
+            mRecordNumber++;
+            return true;
+        }
+    }
+
+    /**
+     * Reads a quoted field after its opening quote, returning the character after the closing
+     * quote.
+     */
+    private int readQuoted() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw new IOException("Unterminated quoted field in record " + (mRecordNumber + 1));
+            }
+            if (c == '"') {
+                int next = read();
+                if (next != '"') {
+                    return next;
+                }
+            }
+            mField.append((char) c);
+        }
+    }
+
+    private int read() throws IOException {
+        if (mPeeked != -2) {
+            int c = mPeeked;
+            mPeeked = -2;
+            return c;
+        }
+        return mReader.read();
+    }
+}
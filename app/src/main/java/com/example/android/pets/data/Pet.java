@@ -0,0 +1,75 @@
+package com.example.android.pets.data;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * An immutable snapshot of one row of the pets table.
+ */
+public final class Pet {
+
+    private final long mId;
+    private final String mName;
+    private final String mBreed;
+    private final int mGender;
+    private final int mWeight;
+
+    /**
+     * @param id     the pet's _id
+     * @param name   the pet's name
+     * @param breed  the pet's breed
+     * @param gender one of the gender constants in {@link PetEntry}
+     * @param weight the pet's weight in kg
+     */
+    public Pet(long id, String name, String breed, int gender, int weight) {
+        mId = id;
+        mName = name;
+        mBreed = breed;
+        mGender = gender;
+        mWeight = weight;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getBreed() {
+        return mBreed;
+    }
+
+    public int getGender() {
+        return mGender;
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * Returns the value of the given pets column, or throws if this model doesn't hold it.
+     */
+    Object getColumnValue(String column) {
+        switch (column) {
+            case PetEntry._ID:
+                return mId;
+            case PetEntry.COLUMN_PET_NAME:
+                return mName;
+            case PetEntry.COLUMN_PET_BREED:
+                return mBreed;
+            case PetEntry.COLUMN_PET_GENDER:
+                return mGender;
+            case PetEntry.COLUMN_PET_WEIGHT:
+                return mWeight;
+            default:
+                throw new IllegalArgumentException("Unknown pet column " + column);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Pet{" + mId + ", " + mName + ", " + mBreed + ", " + mGender + ", " + mWeight + "}";
+    }
+}
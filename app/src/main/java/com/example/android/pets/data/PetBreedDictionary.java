@@ -0,0 +1,134 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.HashMap;
+
+/**
+ * The provider's side of the breed dictionary: pets store the id of their breed in
+ * {@link PetContract#BREEDS_TABLE_NAME}, and this turns names into ids on writes, and gives
+ * {@link PetSnapshot} the names of the ids it holds.
+ *
+ * Both work from an in-memory copy of the dictionary, an array of names indexed by id and a
+ * map back. The copy only ever holds committed breeds: it is loaded outside of any
+ * transaction, and breeds are never removed from the dictionary, so an entry can't go stale.
+ * A breed added by a write is picked up before the next write, or by the next query that asks
+ * for the names. Names are always handed out as a whole array when a query runs, so reading a
+ * cursor never has to go to the database.
+ */
+final class PetBreedDictionary {
+
+    private static final String SQL_LOAD = "SELECT " + PetEntry.COLUMN_PET_BREED_ID + ", " +
+            PetEntry.COLUMN_PET_BREED + " FROM " + PetContract.BREEDS_TABLE_NAME;
+
+    private static final String SQL_ADD = "INSERT OR IGNORE INTO " +
+            PetContract.BREEDS_TABLE_NAME + " (" + PetEntry.COLUMN_PET_BREED + ") VALUES (?)";
+
+    private static final String SQL_FIND_ID = "SELECT " + PetEntry.COLUMN_PET_BREED_ID +
+            " FROM " + PetContract.BREEDS_TABLE_NAME +
+            " WHERE " + PetEntry.COLUMN_PET_BREED + " = ?";
+
+    /**
+     * An immutable copy of the dictionary. Breed ids are the dictionary's rowids, which are
+     * dense since breeds are never deleted, so they index the names directly.
+     */
+    private static final class Snapshot {
+        final String[] names;
+        final HashMap<String, Long> ids;
+
+        Snapshot(String[] names, HashMap<String, Long> ids) {
+            this.names = names;
+            this.ids = ids;
+        }
+    }
+
+    private volatile Snapshot mSnapshot = new Snapshot(new String[0],
+            new HashMap<String, Long>());
+
+    /** Set when a write may have added a breed the snapshot doesn't have */
+    private volatile boolean mStale = true;
+
+    /**
+     * Returns the breed names indexed by id, covering every committed breed up to
+     * {@code maxId}, reloading the in-memory copy first if it is stale or doesn't reach that
+     * far. Call this where a query runs, never from a cursor that is being read. Must not be
+     * called inside a transaction, whose breeds may still be rolled back.
+     */
+    String[] names(SQLiteDatabase database, int maxId) {
+        refreshIfStale(database);
+        if (maxId >= mSnapshot.names.length) {
+            reload(database);
+        }
+        return mSnapshot.names;
+    }
+
+    /**
+     * Returns the id of the named breed, adding the breed to the dictionary if it is new. Must
+     * be called inside the transaction of the write that stores the id, so a new breed is
+     * committed or rolled back with it.
+     */
+    long id(SQLiteDatabase database, String name) {
+        Long id = mSnapshot.ids.get(name);
+        if (id != null) {
+            return id;
+        }
+
+        mStale = true;
+        SQLiteStatement add = database.compileStatement(SQL_ADD);
+        try {
+            add.bindString(1, name);
+            add.executeInsert();
+        } finally {
+            add.close();
+        }
+        SQLiteStatement find = database.compileStatement(SQL_FIND_ID);
+        try {
+            find.bindString(1, name);
+            return find.simpleQueryForLong();
+        } finally {
+            find.close();
+        }
+    }
+
+    /**
+     * Reloads the copy if a write may have added breeds since it was loaded. Call it before a
+     * write's transaction; it does nothing inside one, whose breeds aren't committed yet.
+     */
+    void refreshIfStale(SQLiteDatabase database) {
+        if (mStale && !database.inTransaction()) {
+            reload(database);
+        }
+    }
+
+    private synchronized void reload(SQLiteDatabase database) {
+        // Cleared first, so a breed added while this runs marks the copy stale again
+        mStale = false;
+
+        Cursor cursor = database.rawQuery(SQL_LOAD, null);
+        try {
+            HashMap<String, Long> ids = new HashMap<>(cursor.getCount() * 2);
+            long maxId = 0;
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+                maxId = Math.max(maxId, cursor.getLong(0));
+            }
+            String[] names = new String[(int) maxId + 1];
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                names[(int) cursor.getLong(0)] = cursor.getString(1);
+            }
+            mSnapshot = new Snapshot(names, ids);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Returns the number of breeds in the in-memory copy */
+    int size() {
+        return mSnapshot.ids.size();
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Bounded LRU cache of pets keyed by _id, used by {@link PetProvider} to answer single-pet
+ * lookups without a database round trip.
+ *
+ * Every write that can change a pet must call {@link #invalidate} or {@link #invalidateAll}
+ * after it commits. A lookup that missed only caches the row it read if no invalidation
+ * happened since it started, so a reader racing a writer can't put a stale row back.
+ */
+final class PetCache {
+
+    /** Columns a cached {@link Pet} can answer */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    private static final Set<String> COLUMN_SET = new HashSet<>(Arrays.asList(COLUMNS));
+
+    private final LruCache<Long, Pet> mPets;
+
+    /** Bumped by every invalidation; guarded by this */
+    private long mVersion;
+
+    PetCache(int maxPets) {
+        mPets = new LruCache<>(maxPets);
+    }
+
+    /**
+     * Returns true if the given projection only asks for columns a cached pet holds. A null
+     * projection asks for every column of the table, which can be more than a pet caches, so
+     * it always goes to the database.
+     */
+    static boolean canServe(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (!COLUMN_SET.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cached pet, or null on a miss. Hits and misses are counted.
+     */
+    Pet get(long id) {
+        return mPets.get(id);
+    }
+
+    /**
+     * Returns a token to pass to {@link #put} for a row about to be read from the database.
+     */
+    synchronized long version() {
+        return mVersion;
+    }
+
+    /**
+     * Caches a pet read from the database, unless the cache was invalidated since
+     * {@link #version()} returned {@code version}.
+     */
+    synchronized void put(Pet pet, long version) {
+        if (version == mVersion) {
+            mPets.put(pet.getId(), pet);
+        }
+    }
+
+    synchronized void invalidate(long id) {
+        mVersion++;
+        mPets.remove(id);
+    }
+
+    synchronized void invalidateAll() {
+        mVersion++;
+        mPets.evictAll();
+    }
+
+    int hitCount() {
+        return mPets.hitCount();
+    }
+
+    int missCount() {
+        return mPets.missCount();
+    }
+
+    /**
+     * Returns a one-row cursor holding the given projection of the pet.
+     */
+    static Cursor toCursor(Pet pet, String[] projection) {
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            row[i] = pet.getColumnValue(projection[i]);
+        }
+        cursor.addRow(row);
+        return cursor;
+    }
+}
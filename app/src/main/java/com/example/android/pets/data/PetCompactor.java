@@ -0,0 +1,133 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Purges soft deleted pets and gives the space they took back to the file system, on a
+ * background thread once the provider has gone quiet.
+ *
+ * Tombstones are purged a chunk at a time, each chunk in its own short transaction, so other
+ * writes get the database between chunks; with write-ahead logging readers are never blocked.
+ * Free pages are then released with incremental vacuum, again a chunk at a time.
+ */
+final class PetCompactor {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetCompactor.class.getSimpleName();
+
+    /** How long the provider must go without soft deletes before compaction runs */
+    static final long IDLE_DELAY_MS = 10 * 1000;
+
+    /** Tombstones purged per transaction */
+    static final int PURGE_CHUNK_SIZE = 500;
+
+    /** Free pages released per incremental vacuum step */
+    static final int VACUUM_CHUNK_PAGES = 256;
+
+    /** Value of PRAGMA auto_vacuum for incremental mode */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final String SQL_PURGE_CHUNK = PetEntry._ID + " IN (SELECT " + PetEntry._ID +
+            " FROM " + PetContract.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_DELETED + " > 0" +
+            " LIMIT " + PURGE_CHUNK_SIZE + ")";
+
+    private final PetDbHelper mDbHelper;
+    private final Handler mHandler;
+
+    private final Runnable mCompaction = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compact();
+            } catch (RuntimeException e) {
+                // Tombstones are invisible anyway; the next soft delete tries again
+                Log.e(LOG_TAG, "Compaction failed", e);
+            }
+        }
+    };
+
+    PetCompactor(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Runs compaction after {@link #IDLE_DELAY_MS}. Scheduling again before then pushes the
+     * run back, so a burst of deletes is compacted once, after the burst.
+     */
+    void schedule() {
+        mHandler.removeCallbacks(mCompaction);
+        mHandler.postDelayed(mCompaction, IDLE_DELAY_MS);
+    }
+
+    @WorkerThread
+    private void compact() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        long purged = 0;
+        int chunk;
+        do {
+            database.beginTransactionNonExclusive();
+            try {
+                chunk = database.delete(PetContract.TABLE_NAME, SQL_PURGE_CHUNK, null);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            purged += chunk;
+        } while (chunk == PURGE_CHUNK_SIZE);
+
+        if (purged == 0) {
+            return;
+        }
+        Log.i(LOG_TAG, "Purged " + purged + " deleted pets");
+
+        reclaimSpace(database);
+    }
+
+    /**
+     * Releases the free pages at the end of the database file, then checkpoints the WAL so the
+     * file really shrinks. Neither step waits for or blocks readers.
+     */
+    @WorkerThread
+    private static void reclaimSpace(SQLiteDatabase database) {
+        if (DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            // Not converted yet, since that is done when the database is opened (see
+            // PetMigrations.convertToIncrementalVacuum). Later inserts reuse the free pages;
+            // a full VACUUM here would block every writer.
+            Log.i(LOG_TAG, "Shelter database isn't in incremental vacuum mode; keeping free pages");
+        } else {
+            while (DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null) > 0) {
+                step(database, "PRAGMA incremental_vacuum(" + VACUUM_CHUNK_PAGES + ")");
+            }
+        }
+
+        step(database, "PRAGMA wal_checkpoint(PASSIVE)");
+    }
+
+    /**
+     * Runs a statement that may return rows to completion, through rawQuery since execSQL
+     * refuses those.
+     */
+    private static void step(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery(sql, null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
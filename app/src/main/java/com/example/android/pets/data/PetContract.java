@@ -14,16 +14,218 @@ public final class PetContract {
 
         public final static String TABLE_NAME = "pets";
 
+        /**
+         * Full-text search over pet names and breeds. Query it with the search text in
+         * {@link #QUERY_PARAMETER_SEARCH}; every word is prefix matched, so partial input works
+         * for type-ahead, and pets whose name matches come before pets whose breed matches.
+         */
+        public static final String PATH_SEARCH = "search";
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /** FTS table backing {@link #CONTENT_SEARCH_URI}, with docid = pets._id */
+        public final static String SEARCH_TABLE_NAME = "pets_search";
+
+        /**
+         * Query parameters for keyset paging over {@link #CONTENT_URI}. A paged query returns
+         * at most {@link #QUERY_PARAMETER_LIMIT} pets whose _id is greater than
+         * {@link #QUERY_PARAMETER_AFTER_ID}, in _id order, without using OFFSET.
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter for deletes. When "true", the deleted pets are only marked as deleted,
+         * which is much quicker than removing their rows and index entries. They disappear from
+         * every query at once, and their rows are purged later in the background.
+         */
+        public static final String QUERY_PARAMETER_SOFT_DELETE = "soft_delete";
+
+        /**
+         * Query parameter for writes made by {@link PetSync} with changes that came from the
+         * sync server. When "true", the write isn't recorded in the change journal, so it isn't
+         * sent back to the server, and the pets' {@link PetEntry#COLUMN_PET_SYNC_ID} can be set.
+         */
+        public static final String QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER =
+                "caller_is_sync_adapter";
+
+        /**
+         * Journal of the pets changed since they were last pushed to the sync server: one row
+         * per changed pet, with a sequence number that grows with every change. Kept by
+         * triggers on the pets table.
+         */
+        public final static String CHANGES_TABLE_NAME = "pet_changes";
+
+        /**
+         * Dictionary of breed names. Each distinct breed is stored once and pets refer to it by
+         * {@link PetEntry#COLUMN_PET_BREED_ID}; callers only ever see and write the name, in
+         * {@link PetEntry#COLUMN_PET_BREED}.
+         */
+        public final static String BREEDS_TABLE_NAME = "breeds";
+
+        /**
+         * Pet counts and weights, overall and broken down by gender and by breed. The rows are
+         * kept up to date by the database on every write, so reading them never scans the pets
+         * table. See {@link StatsEntry} for the columns.
+         */
+        public static final String PATH_STATS = "stats";
+        public static final Uri CONTENT_STATS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_STATS);
+
+        /** Table backing {@link #CONTENT_STATS_URI} */
+        public final static String STATS_TABLE_NAME = "pet_stats";
+
+        /**
+         * Call counts and latencies of the provider since the process started, one row per URI
+         * pattern and operation. See {@link MetricsEntry} for the columns. Read only.
+         */
+        public static final String PATH_METRICS = "metrics";
+        public static final Uri CONTENT_METRICS_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_METRICS);
+
+    /**
+     * Returns the content URI that searches pet names and breeds for the given text, returning
+     * at most {@code limit} of the best matches.
+     */
+    public static Uri buildSearchUri(String text, int limit) {
+        return CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_SEARCH, text)
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Returns the content URI for the page of at most {@code limit} pets following the pet
+     * with the given _id. Pass 0 to get the first page.
+     */
+    public static Uri buildPageUri(long afterId, int limit) {
+        return CONTENT_URI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    /**
+     * Returns the given pets URI with {@link #QUERY_PARAMETER_SOFT_DELETE} set, for deleting
+     * its pets softly.
+     */
+    public static Uri buildSoftDeleteUri(Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_SOFT_DELETE, "true")
+                .build();
+    }
+
+    /**
+     * Returns the given pets URI with {@link #QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER} set.
+     */
+    public static Uri buildSyncAdapterUri(Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER, "true")
+                .build();
+    }
+
     public static final class PetEntry implements BaseColumns{
 
         public final static String _ID = BaseColumns._ID;
         public final static String COLUMN_PET_NAME = "name";
         public final static String COLUMN_PET_BREED = "breed";
+
+        /**
+         * The pet's breed in {@link PetContract#BREEDS_TABLE_NAME}, which is what the pets table
+         * stores instead of the name. Only the provider uses it; callers read and write
+         * {@link #COLUMN_PET_BREED}.
+         */
+        final static String COLUMN_PET_BREED_ID = "breed_id";
         public final static String COLUMN_PET_GENDER = "gender";
         public final static String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Non-zero for pets that were soft deleted and are waiting to be purged. The provider
+         * never returns these pets, so callers don't need to filter on this column.
+         */
+        public final static String COLUMN_PET_DELETED = "deleted";
+
+        /**
+         * Where the pet's photo is kept in the photo store: the byte offset of the encoded image
+         * and its length in bytes. Both are null for a pet without a photo. Photos are written
+         * with {@link PetPhotoStore#append}, which fills in both columns.
+         */
+        public final static String COLUMN_PET_PHOTO_OFFSET = "photo_offset";
+        public final static String COLUMN_PET_PHOTO_LENGTH = "photo_length";
+
+        /**
+         * Identifies the pet on every device it is synced to. Assigned by the database when
+         * the pet is inserted; only the sync adapter may set it.
+         */
+        public final static String COLUMN_PET_SYNC_ID = "sync_id";
+
         public static final int GENDER_UNKNOWN = 0;
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
+
+        /**
+         * Returns whether or not the given gender is {@link #GENDER_UNKNOWN}, {@link #GENDER_MALE},
+         * or {@link #GENDER_FEMALE}.
+         */
+        public static boolean isValidGender(int gender) {
+            return gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE;
+        }
+    }
+
+    /**
+     * Columns of {@link #CONTENT_STATS_URI}. Each row aggregates the pets of one group: the
+     * single {@link #DIMENSION_ALL} row covers every pet, and there is a row per gender and per
+     * breed that has at least one pet.
+     */
+    public static final class StatsEntry {
+
+        private StatsEntry() {}
+
+        /**
+         * What the row groups pets by: {@link #DIMENSION_ALL}, {@link #DIMENSION_GENDER} or
+         * {@link #DIMENSION_BREED}
+         */
+        public final static String COLUMN_DIMENSION = "dimension";
+
+        /** The gender (as text) or breed of the group; empty for {@link #DIMENSION_ALL} */
+        public final static String COLUMN_VALUE = "value";
+
+        public final static String COLUMN_PET_COUNT = "pet_count";
+        public final static String COLUMN_TOTAL_WEIGHT = "total_weight";
+
+        /** Average weight of the group, computed when queried; 0 for an empty group */
+        public final static String COLUMN_AVERAGE_WEIGHT = "average_weight";
+
+        public static final String DIMENSION_ALL = "all";
+        public static final String DIMENSION_GENDER = "gender";
+        public static final String DIMENSION_BREED = "breed";
+    }
+
+    /**
+     * Columns of {@link #CONTENT_METRICS_URI}. Latencies are in microseconds; the percentiles
+     * are approximate, rounded up to a power of two.
+     */
+    public static final class MetricsEntry {
+
+        private MetricsEntry() {}
+
+        /** The URI pattern, e.g. "pets/#" */
+        public final static String COLUMN_URI = "uri";
+
+        /** "query", "insert", "bulk_insert", "update" or "delete" */
+        public final static String COLUMN_OPERATION = "operation";
+
+        public final static String COLUMN_CALLS = "calls";
+
+        /** Rows returned by queries, or changed by writes */
+        public final static String COLUMN_ROWS = "rows";
+
+        public final static String COLUMN_AVERAGE_MICROS = "average_us";
+        public final static String COLUMN_MAX_MICROS = "max_us";
+        public final static String COLUMN_P50_MICROS = "p50_us";
+        public final static String COLUMN_P95_MICROS = "p95_us";
+        public final static String COLUMN_P99_MICROS = "p99_us";
+
+        /** Calls that took 100 ms or longer and were logged as slow */
+        public final static String COLUMN_SLOW_CALLS = "slow_calls";
     }
 }
@@ -1,17 +1,157 @@
 package com.example.android.pets.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQuery;
+import android.os.Build;
 
+/**
+ * Database helper for the shelter database. There is a single instance per process, obtained
+ * through {@link #getInstance}, so every caller shares the same connection pool instead of
+ * opening (and leaking) its own.
+ */
 public class PetDbHelper extends SQLiteOpenHelper {
-    public static final int DATABASE_VERSION = 1;
+    /** Schema version. Each bump needs a matching step in {@link PetMigrations}. */
+    public static final int DATABASE_VERSION = 8;
     public static final String DATABASE_NAME = "shelter.db";
 
-    public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    /** Page cache per connection, in KiB (negative values are KiB for PRAGMA cache_size) */
+    private static final int CACHE_SIZE_KIB = 4096;
+
+    /**
+     * Prepared statements each connection keeps, up from Android's default of 25, so the
+     * provider's query shapes, the triggers' host statements and the compiled writes all stay
+     * prepared. 100 is the most SQLiteDatabase allows.
+     */
+    private static final int SQL_CACHE_SIZE = SQLiteDatabase.MAX_SQL_CACHE_SIZE;
+
+    /** Bytes of the database file SQLite may memory map for reads */
+    private static final long MMAP_SIZE_BYTES = 32L * 1024 * 1024;
+
+    private static PetDbHelper sInstance;
+
+    /**
+     * A cursor that keeps the query it was created for, so slow queries can be logged with the
+     * SQL that actually ran. Every cursor over the shelter database is one of these.
+     */
+    static final class QueryCursor extends SQLiteCursor {
+        private final SQLiteQuery mQuery;
+
+        QueryCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            super(driver, editTable, query);
+            mQuery = query;
+        }
+
+        /** Returns a description of the query, including its SQL */
+        String describeQuery() {
+            return mQuery.toString();
+        }
+    }
+
+    private static final SQLiteDatabase.CursorFactory CURSOR_FACTORY =
+            new SQLiteDatabase.CursorFactory() {
+                @Override
+                public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver,
+                                        String editTable, SQLiteQuery query) {
+                    return new QueryCursor(driver, editTable, query);
+                }
+            };
+
+    /**
+     * Returns the process-wide helper, creating it on first use. Only the application context
+     * is kept, so passing an activity doesn't leak it.
+     */
+    public static synchronized PetDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetDbHelper(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Creates a helper for a database file of its own, configured and migrated exactly like
+     * the shelter database. Only for tests and tools, such as the debug load generator, that
+     * must not touch the real data; everything else shares {@link #getInstance}.
+     */
+    PetDbHelper(Context context, String name) {
+        super(context, name, CURSOR_FACTORY, DATABASE_VERSION);
+
+        // With write-ahead logging, readers work from their own snapshot and don't block the
+        // writer (or each other), and SQLiteDatabase keeps a pool of reader connections.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        configure(db);
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // onConfigure only exists from Jelly Bean, so older devices are configured here
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+            configure(db);
+        }
+
+        // Outside of the upgrade's transaction, which VACUUM can't run in
+        if (!db.isReadOnly()) {
+            PetMigrations.convertToIncrementalVacuum(db);
+        }
+    }
+
+    /**
+     * Tunes the connection. SQLiteDatabase applies these to its primary connection; pooled
+     * reader connections keep SQLite's defaults for the per-connection settings.
+     */
+    private static void configure(SQLiteDatabase db) {
+        // WAL is safe against corruption with NORMAL; only the last commits may be lost on
+        // power failure, and fsync happens at checkpoints instead of on every commit.
+        pragma(db, "PRAGMA synchronous = NORMAL");
+        pragma(db, "PRAGMA cache_size = -" + CACHE_SIZE_KIB);
+        pragma(db, "PRAGMA mmap_size = " + MMAP_SIZE_BYTES);
+        pragma(db, "PRAGMA temp_store = MEMORY");
+
+        // Unlike the pragmas, this applies to every connection in the pool
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+
+        // Lets PetCompactor hand free pages back to the file system a few at a time. This only
+        // takes effect for a database that is still empty; onOpen converts older ones.
+        pragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+    }
+
+    /**
+     * Runs a pragma through rawQuery, since some pragmas return their new value as a row and
+     * execSQL refuses statements that return rows.
+     */
+    private static void pragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates the version 1 schema and then runs every migration, so a new database goes
+     * through exactly the same steps as an upgraded one.
+     */
     @Override
     public void onCreate(SQLiteDatabase db) {
         String SQL_CREATE_PETS_TABLE = "CREATE TABLE " +
@@ -24,10 +164,12 @@ public class PetDbHelper extends SQLiteOpenHelper {
                 ");" ;
 
         db.execSQL(SQL_CREATE_PETS_TABLE);
+
+        PetMigrations.migrate(db, 1, DATABASE_VERSION);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        PetMigrations.migrate(db, oldVersion, newVersion);
     }
 }
@@ -0,0 +1,220 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.SparseArray;
+
+import com.example.android.pets.data.PetContract.MetricsEntry;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call counts, row counts and latency histograms for {@link PetProvider}, kept per URI match
+ * code and operation.
+ *
+ * Recording is lock-free and doesn't allocate: every counter is an atomic created when the
+ * match code is registered, and latencies go into power-of-two buckets, so percentiles are
+ * approximate (reported as the upper bound of their bucket) but cost nothing to maintain.
+ */
+final class PetMetrics {
+
+    /** Operations timed for each match code */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulk_insert", "update", "delete"};
+
+    /** Operations taking at least this long are reported as slow */
+    static final long SLOW_OPERATION_NANOS = 100L * 1000 * 1000;
+
+    /**
+     * Latency buckets: bucket 0 holds calls under 2 us, bucket i calls from 2^i us up to
+     * 2^(i+1) us, and the last bucket everything from about 1 s up.
+     */
+    private static final int BUCKET_COUNT = 21;
+
+    private static final String[] COLUMNS = {
+            MetricsEntry.COLUMN_URI,
+            MetricsEntry.COLUMN_OPERATION,
+            MetricsEntry.COLUMN_CALLS,
+            MetricsEntry.COLUMN_ROWS,
+            MetricsEntry.COLUMN_AVERAGE_MICROS,
+            MetricsEntry.COLUMN_MAX_MICROS,
+            MetricsEntry.COLUMN_P50_MICROS,
+            MetricsEntry.COLUMN_P95_MICROS,
+            MetricsEntry.COLUMN_P99_MICROS,
+            MetricsEntry.COLUMN_SLOW_CALLS};
+
+    /**
+     * Counters for one operation on one match code.
+     */
+    private static class OperationStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLong slowCalls = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    }
+
+    /**
+     * The operations of one match code, with the URI pattern they are reported under.
+     */
+    private static class Endpoint {
+        final String name;
+        final OperationStats[] operations = new OperationStats[OPERATION_NAMES.length];
+
+        Endpoint(String name) {
+            this.name = name;
+            for (int i = 0; i < operations.length; i++) {
+                operations[i] = new OperationStats();
+            }
+        }
+    }
+
+    /** Endpoints by match code; only written while registering, before any recording */
+    private final SparseArray<Endpoint> mEndpoints = new SparseArray<>();
+
+    /**
+     * Starts tracking the given match code. Must be called for every code before the provider
+     * serves any calls.
+     *
+     * @param name the URI pattern of the code, e.g. "pets/#"
+     */
+    void register(int match, String name) {
+        mEndpoints.put(match, new Endpoint(name));
+    }
+
+    /**
+     * Records one call that started at {@code startNanos} (from {@link System#nanoTime()}) and
+     * returned or changed {@code rows} rows.
+     *
+     * @return how long the call took, in nanoseconds
+     */
+    long record(int match, int operation, long startNanos, long rows) {
+        long elapsed = System.nanoTime() - startNanos;
+        Endpoint endpoint = mEndpoints.get(match);
+        if (endpoint == null) {
+            return elapsed;
+        }
+
+        OperationStats stats = endpoint.operations[operation];
+        stats.calls.incrementAndGet();
+        stats.rows.addAndGet(rows);
+        stats.totalNanos.addAndGet(elapsed);
+        stats.buckets.incrementAndGet(bucketOf(elapsed));
+        if (elapsed >= SLOW_OPERATION_NANOS) {
+            stats.slowCalls.incrementAndGet();
+        }
+
+        long max = stats.maxNanos.get();
+        while (elapsed > max && !stats.maxNanos.compareAndSet(max, elapsed)) {
+            max = stats.maxNanos.get();
+        }
+        return elapsed;
+    }
+
+    private static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 63 - Long.numberOfLeadingZeros(Math.max(micros, 1));
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the upper bound in microseconds of the bucket holding the given percentile of
+     * the calls, or 0 if there were none.
+     */
+    private static long percentileMicros(OperationStats stats, long calls, int percentile) {
+        if (calls == 0) {
+            return 0;
+        }
+        long target = (calls * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += stats.buckets.get(i);
+            if (seen >= target) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << BUCKET_COUNT;
+    }
+
+    /**
+     * Returns a row for every operation that has been called, with the columns of
+     * {@link MetricsEntry}. The counters are read one by one while calls may still be running,
+     * so a row can be off by the calls that finished while it was read.
+     */
+    Cursor toCursor(String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        int[] columnIndices = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnIndices[i] = Arrays.asList(COLUMNS).indexOf(projection[i]);
+            if (columnIndices[i] == -1) {
+                throw new IllegalArgumentException("Unknown metrics column " + projection[i]);
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection);
+        Object[] values = new Object[COLUMNS.length];
+        for (int i = 0; i < mEndpoints.size(); i++) {
+            Endpoint endpoint = mEndpoints.valueAt(i);
+            for (int operation = 0; operation < endpoint.operations.length; operation++) {
+                OperationStats stats = endpoint.operations[operation];
+                long calls = stats.calls.get();
+                if (calls == 0) {
+                    continue;
+                }
+
+                values[0] = endpoint.name;
+                values[1] = OPERATION_NAMES[operation];
+                values[2] = calls;
+                values[3] = stats.rows.get();
+                values[4] = stats.totalNanos.get() / calls / 1000;
+                values[5] = stats.maxNanos.get() / 1000;
+                values[6] = percentileMicros(stats, calls, 50);
+                values[7] = percentileMicros(stats, calls, 95);
+                values[8] = percentileMicros(stats, calls, 99);
+                values[9] = stats.slowCalls.get();
+
+                Object[] row = new Object[projection.length];
+                for (int column = 0; column < row.length; column++) {
+                    row[column] = values[columnIndices[column]];
+                }
+                cursor.addRow(row);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Prints the same numbers as {@link #toCursor}, one line per operation.
+     */
+    void dump(PrintWriter writer) {
+        Cursor cursor = toCursor(null);
+        try {
+            writer.println("Provider calls (latencies in us):");
+            while (cursor.moveToNext()) {
+                writer.println("  " + cursor.getString(0) + " " + cursor.getString(1) + ": " +
+                        cursor.getLong(2) + " calls, " +
+                        cursor.getLong(3) + " rows, " +
+                        "avg " + cursor.getLong(4) + ", " +
+                        "p50 " + cursor.getLong(6) + ", " +
+                        "p95 " + cursor.getLong(7) + ", " +
+                        "p99 " + cursor.getLong(8) + ", " +
+                        "max " + cursor.getLong(5) + ", " +
+                        cursor.getLong(9) + " slow");
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,646 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+/**
+ * Ordered schema migrations for the shelter database.
+ *
+ * Each {@link Migration} moves the schema up exactly one version and must keep existing rows.
+ * To change the schema, bump {@link PetDbHelper#DATABASE_VERSION} and append a migration to
+ * {@link #MIGRATIONS}; never edit a migration that has already shipped. New databases are
+ * created at version 1 and then walked through the same migrations, so fresh installs and
+ * upgraded installs always end up with the same schema.
+ */
+final class PetMigrations {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetMigrations.class.getSimpleName();
+
+    private PetMigrations() {}
+
+    /**
+     * One step of the schema, from {@link #toVersion()} - 1 to {@link #toVersion()}.
+     */
+    interface Migration {
+        /** The schema version this migration produces */
+        int toVersion();
+
+        /** Applies the migration. Runs inside a transaction. */
+        void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * Version 2: indexes for the columns the catalog sorts and filters by. Gender and breed
+     * filters are nearly always sorted by name, so name is the second column of those indexes
+     * and the sort comes straight out of the index.
+     */
+    private static final Migration ADD_SORT_AND_FILTER_INDEXES = new Migration() {
+        @Override
+        public int toVersion() {
+            return 2;
+        }
+
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS pets_name_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_NAME + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS pets_breed_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_NAME + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS pets_gender_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_NAME + ")");
+
+            // Give the query planner statistics for the new indexes
+            db.execSQL("ANALYZE " + PetContract.TABLE_NAME);
+        }
+    };
+
+    /**
+     * Version 3: full-text index over pet names and breeds for search. The index is keyed by
+     * docid = pets._id and kept in sync with the pets table by triggers, so every write path,
+     * including raw SQL, updates it in the same transaction.
+     */
+    private static final Migration ADD_SEARCH_INDEX = new Migration() {
+        @Override
+        public int toVersion() {
+            return 3;
+        }
+
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + PetContract.SEARCH_TABLE_NAME + " USING fts4(" +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + ")");
+
+            // Index the pets that already exist
+            db.execSQL("INSERT INTO " + PetContract.SEARCH_TABLE_NAME + " (docid, " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") " +
+                    "SELECT " + PetEntry._ID + ", " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED +
+                    " FROM " + PetContract.TABLE_NAME);
+
+            db.execSQL("CREATE TRIGGER pets_search_insert AFTER INSERT ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    "INSERT INTO " + PetContract.SEARCH_TABLE_NAME + " (docid, " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") " +
+                    "VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME +
+                    ", new." + PetEntry.COLUMN_PET_BREED + "); END");
+
+            db.execSQL("CREATE TRIGGER pets_search_update AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + " ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    "UPDATE " + PetContract.SEARCH_TABLE_NAME + " SET " +
+                    PetEntry.COLUMN_PET_NAME + " = new." + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + " = new." + PetEntry.COLUMN_PET_BREED +
+                    " WHERE docid = old." + PetEntry._ID + "; END");
+
+            db.execSQL("CREATE TRIGGER pets_search_delete AFTER DELETE ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + PetContract.SEARCH_TABLE_NAME +
+                    " WHERE docid = old." + PetEntry._ID + "; END");
+        }
+    };
+
+    /**
+     * Version 4: materialized pet counts and weights per group, for the stats URI. Triggers
+     * keep the rows current in the same transaction as every write, so the totals are a
+     * primary key lookup instead of a scan of the pets table. Groups other than the overall
+     * one are dropped when their last pet goes.
+     */
+    private static final Migration ADD_STATS = new Migration() {
+        @Override
+        public int toVersion() {
+            return 4;
+        }
+
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + PetContract.STATS_TABLE_NAME + " (" +
+                    StatsEntry.COLUMN_DIMENSION + " TEXT NOT NULL, " +
+                    StatsEntry.COLUMN_VALUE + " TEXT NOT NULL, " +
+                    StatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+                    StatsEntry.COLUMN_TOTAL_WEIGHT + " INTEGER NOT NULL DEFAULT 0, " +
+                    "PRIMARY KEY (" + StatsEntry.COLUMN_DIMENSION + ", " +
+                    StatsEntry.COLUMN_VALUE + "))");
+
+            // Aggregate the pets that already exist. The overall row is always there, even for
+            // an empty table, so the triggers only ever need to update it.
+            db.execSQL("INSERT INTO " + PetContract.STATS_TABLE_NAME +
+                    " SELECT '" + StatsEntry.DIMENSION_ALL + "', '', COUNT(*), " +
+                    "IFNULL(SUM(" + PetEntry.COLUMN_PET_WEIGHT + "), 0) " +
+                    "FROM " + PetContract.TABLE_NAME);
+            db.execSQL("INSERT INTO " + PetContract.STATS_TABLE_NAME +
+                    " SELECT '" + StatsEntry.DIMENSION_GENDER + "', " +
+                    "CAST(" + PetEntry.COLUMN_PET_GENDER + " AS TEXT), COUNT(*), " +
+                    "SUM(" + PetEntry.COLUMN_PET_WEIGHT + ") " +
+                    "FROM " + PetContract.TABLE_NAME +
+                    " GROUP BY " + PetEntry.COLUMN_PET_GENDER);
+            db.execSQL("INSERT INTO " + PetContract.STATS_TABLE_NAME +
+                    " SELECT '" + StatsEntry.DIMENSION_BREED + "', " +
+                    PetEntry.COLUMN_PET_BREED + ", COUNT(*), " +
+                    "SUM(" + PetEntry.COLUMN_PET_WEIGHT + ") " +
+                    "FROM " + PetContract.TABLE_NAME +
+                    " GROUP BY " + PetEntry.COLUMN_PET_BREED);
+
+            db.execSQL("CREATE TRIGGER pet_stats_insert AFTER INSERT ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    addToStats("new") +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_update AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_BREED + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + " ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    removeFromStats("old") +
+                    addToStats("new") +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_delete AFTER DELETE ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    removeFromStats("old") +
+                    "END");
+        }
+    };
+
+    /**
+     * Version 5: tombstones for soft deletes. A soft deleted pet keeps its row, with the
+     * deleted flag set, until the compactor purges it. The stats count a pet out when it is
+     * tombstoned, so the triggers from version 4 are recreated to skip tombstones; the search
+     * index keeps tombstoned pets until they are purged, and searches filter them out.
+     */
+    private static final Migration ADD_TOMBSTONES = new Migration() {
+        @Override
+        public int toVersion() {
+            return 5;
+        }
+
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + PetContract.TABLE_NAME + " ADD COLUMN " +
+                    PetEntry.COLUMN_PET_DELETED + " INTEGER NOT NULL DEFAULT 0");
+
+            // Lets the compactor find tombstones without scanning the table
+            db.execSQL("CREATE INDEX pets_deleted_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_DELETED + ")");
+            // Without statistics for the new index the planner picks it for "deleted = 0",
+            // which matches every pet, over the indexes that serve the catalog's sorts
+            db.execSQL("ANALYZE " + PetContract.TABLE_NAME);
+
+            db.execSQL("DROP TRIGGER pet_stats_insert");
+            db.execSQL("DROP TRIGGER pet_stats_update");
+            db.execSQL("DROP TRIGGER pet_stats_delete");
+
+            db.execSQL("CREATE TRIGGER pet_stats_insert AFTER INSERT ON " +
+                    PetContract.TABLE_NAME +
+                    " WHEN new." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    addToStats("new") +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_update AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_BREED + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + " ON " +
+                    PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0" +
+                    " AND new." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    removeFromStats("old") +
+                    addToStats("new") +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_delete AFTER DELETE ON " +
+                    PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    removeFromStats("old") +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_tombstone AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_DELETED + " ON " + PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0" +
+                    " AND new." + PetEntry.COLUMN_PET_DELETED + " <> 0 BEGIN " +
+                    removeFromStats("old") +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_restore AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_DELETED + " ON " + PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " <> 0" +
+                    " AND new." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    addToStats("new") +
+                    "END");
+        }
+    };
+
+    /**
+     * Version 6: a reference to each pet's photo. The photos themselves live in the append-only
+     * file of {@link PetPhotoStore}, so rows (and the cursor windows holding them) stay small.
+     */
+    private static final Migration ADD_PHOTOS = new Migration() {
+        @Override
+        public int toVersion() {
+            return 6;
+        }
+
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + PetContract.TABLE_NAME + " ADD COLUMN " +
+                    PetEntry.COLUMN_PET_PHOTO_OFFSET + " INTEGER");
+            db.execSQL("ALTER TABLE " + PetContract.TABLE_NAME + " ADD COLUMN " +
+                    PetEntry.COLUMN_PET_PHOTO_LENGTH + " INTEGER");
+        }
+    };
+
+    /**
+     * Version 7: the change journal for sync, and a random sync id on every pet. Every insert,
+     * update, soft delete and delete of a live pet records the pet in the journal with the
+     * next sequence number, replacing any older entry for the pet, so the journal holds one
+     * row per pet changed since the last push. The journal only names the pet; what is pushed
+     * is its state at push time. The pets that already exist are journaled so the first sync
+     * pushes them all.
+     */
+    private static final Migration ADD_CHANGE_JOURNAL = new Migration() {
+        @Override
+        public int toVersion() {
+            return 7;
+        }
+
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + PetContract.TABLE_NAME + " ADD COLUMN " +
+                    PetEntry.COLUMN_PET_SYNC_ID + " TEXT");
+            db.execSQL("UPDATE " + PetContract.TABLE_NAME + " SET " +
+                    PetEntry.COLUMN_PET_SYNC_ID + " = " + SQL_NEW_SYNC_ID);
+            db.execSQL("CREATE UNIQUE INDEX pets_sync_id_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_SYNC_ID + ")");
+
+            db.execSQL("CREATE TABLE " + PetContract.CHANGES_TABLE_NAME + " (" +
+                    "seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    PetEntry.COLUMN_PET_SYNC_ID + " TEXT NOT NULL UNIQUE)");
+            db.execSQL("INSERT INTO " + PetContract.CHANGES_TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_SYNC_ID + ") SELECT " + PetEntry.COLUMN_PET_SYNC_ID +
+                    " FROM " + PetContract.TABLE_NAME +
+                    " WHERE " + PetEntry.COLUMN_PET_DELETED + " = 0 ORDER BY " + PetEntry._ID);
+
+            // Pets inserted without a sync id (all but the sync adapter's) get a new one first
+            db.execSQL("CREATE TRIGGER pet_changes_insert AFTER INSERT ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    "UPDATE " + PetContract.TABLE_NAME + " SET " +
+                    PetEntry.COLUMN_PET_SYNC_ID + " = " + SQL_NEW_SYNC_ID +
+                    " WHERE " + PetEntry._ID + " = new." + PetEntry._ID +
+                    " AND " + PetEntry.COLUMN_PET_SYNC_ID + " IS NULL; " +
+                    "INSERT OR REPLACE INTO " + PetContract.CHANGES_TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_SYNC_ID + ") SELECT " + PetEntry.COLUMN_PET_SYNC_ID +
+                    " FROM " + PetContract.TABLE_NAME +
+                    " WHERE " + PetEntry._ID + " = new." + PetEntry._ID + "; " +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_changes_update AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ", " +
+                    PetEntry.COLUMN_PET_DELETED + " ON " + PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0" +
+                    " OR new." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    journal("new") +
+                    "END");
+
+            // Purging a tombstone changes nothing that wasn't journaled when it was tombstoned
+            db.execSQL("CREATE TRIGGER pet_changes_delete AFTER DELETE ON " +
+                    PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    journal("old") +
+                    "END");
+        }
+    };
+
+    /**
+     * Version 8: the breed dictionary. Each distinct breed name is stored once, in the breeds
+     * table, and pets keep the breed's integer id instead of the text, which shrinks the rows,
+     * the breed index and the cursor windows. SQLite can't drop a column in place, so the pets
+     * table is rebuilt, keeping every _id, and its indexes and triggers are created again. The
+     * search index and the stats still hold breed names, which the triggers now look up in
+     * the dictionary.
+     */
+    private static final Migration ADD_BREED_DICTIONARY = new Migration() {
+        @Override
+        public int toVersion() {
+            return 8;
+        }
+
+        @Override
+        public void migrate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + PetContract.BREEDS_TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_BREED_ID + " INTEGER PRIMARY KEY, " +
+                    PetEntry.COLUMN_PET_BREED + " TEXT NOT NULL UNIQUE)");
+            db.execSQL("INSERT INTO " + PetContract.BREEDS_TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_BREED + ") SELECT DISTINCT " + PetEntry.COLUMN_PET_BREED +
+                    " FROM " + PetContract.TABLE_NAME + " ORDER BY " + PetEntry.COLUMN_PET_BREED);
+
+            db.execSQL("CREATE TABLE pets_new (" +
+                    PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
+                    PetEntry.COLUMN_PET_BREED_ID + " INTEGER NOT NULL REFERENCES " +
+                    PetContract.BREEDS_TABLE_NAME + " (" + PetEntry.COLUMN_PET_BREED_ID + "), " +
+                    PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL DEFAULT 0, " +
+                    PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, " +
+                    PetEntry.COLUMN_PET_DELETED + " INTEGER NOT NULL DEFAULT 0, " +
+                    PetEntry.COLUMN_PET_PHOTO_OFFSET + " INTEGER, " +
+                    PetEntry.COLUMN_PET_PHOTO_LENGTH + " INTEGER, " +
+                    PetEntry.COLUMN_PET_SYNC_ID + " TEXT)");
+            String keptColumns = PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ", " +
+                    PetEntry.COLUMN_PET_DELETED + ", " +
+                    PetEntry.COLUMN_PET_PHOTO_OFFSET + ", " +
+                    PetEntry.COLUMN_PET_PHOTO_LENGTH + ", " +
+                    PetEntry.COLUMN_PET_SYNC_ID;
+            db.execSQL("INSERT INTO pets_new (" + PetEntry._ID + ", " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED_ID + ", " +
+                    keptColumns + ") SELECT " + PetEntry._ID + ", " +
+                    PetEntry.COLUMN_PET_NAME + ", (SELECT " + PetEntry.COLUMN_PET_BREED_ID +
+                    " FROM " + PetContract.BREEDS_TABLE_NAME + " b WHERE b." +
+                    PetEntry.COLUMN_PET_BREED + " = p." + PetEntry.COLUMN_PET_BREED + "), " +
+                    keptColumns + " FROM " + PetContract.TABLE_NAME + " p");
+
+            // The new table must not hand out the _ids of pets deleted before the rebuild
+            long lastId = DatabaseUtils.longForQuery(db, "SELECT ifnull(max(seq), 0) " +
+                    "FROM sqlite_sequence WHERE name = '" + PetContract.TABLE_NAME + "'", null);
+
+            // Dropping the old table drops its indexes and triggers, without firing them
+            db.execSQL("DROP TABLE " + PetContract.TABLE_NAME);
+            db.execSQL("ALTER TABLE pets_new RENAME TO " + PetContract.TABLE_NAME);
+            db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" +
+                    PetContract.TABLE_NAME + "'");
+            db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" +
+                    PetContract.TABLE_NAME + "', max(" + lastId + ", ifnull(max(" +
+                    PetEntry._ID + "), 0)) FROM " + PetContract.TABLE_NAME);
+
+            db.execSQL("CREATE INDEX pets_name_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_NAME + ")");
+            db.execSQL("CREATE INDEX pets_breed_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_BREED_ID + ", " + PetEntry.COLUMN_PET_NAME + ")");
+            db.execSQL("CREATE INDEX pets_gender_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_NAME + ")");
+            db.execSQL("CREATE INDEX pets_deleted_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_DELETED + ")");
+            db.execSQL("CREATE UNIQUE INDEX pets_sync_id_index ON " + PetContract.TABLE_NAME +
+                    " (" + PetEntry.COLUMN_PET_SYNC_ID + ")");
+
+            // Search index, as in version 3
+            db.execSQL("CREATE TRIGGER pets_search_insert AFTER INSERT ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    "INSERT INTO " + PetContract.SEARCH_TABLE_NAME + " (docid, " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") " +
+                    "VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME +
+                    ", " + breedName("new") + "); END");
+
+            db.execSQL("CREATE TRIGGER pets_search_update AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED_ID + " ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    "UPDATE " + PetContract.SEARCH_TABLE_NAME + " SET " +
+                    PetEntry.COLUMN_PET_NAME + " = new." + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + " = " + breedName("new") +
+                    " WHERE docid = old." + PetEntry._ID + "; END");
+
+            db.execSQL("CREATE TRIGGER pets_search_delete AFTER DELETE ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + PetContract.SEARCH_TABLE_NAME +
+                    " WHERE docid = old." + PetEntry._ID + "; END");
+
+            // Stats, as in version 5
+            db.execSQL("CREATE TRIGGER pet_stats_insert AFTER INSERT ON " +
+                    PetContract.TABLE_NAME +
+                    " WHEN new." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    addToStats("new", breedName("new")) +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_update AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_BREED_ID + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + " ON " +
+                    PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0" +
+                    " AND new." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    removeFromStats("old", breedName("old")) +
+                    addToStats("new", breedName("new")) +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_delete AFTER DELETE ON " +
+                    PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    removeFromStats("old", breedName("old")) +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_tombstone AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_DELETED + " ON " + PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0" +
+                    " AND new." + PetEntry.COLUMN_PET_DELETED + " <> 0 BEGIN " +
+                    removeFromStats("old", breedName("old")) +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_stats_restore AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_DELETED + " ON " + PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " <> 0" +
+                    " AND new." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    addToStats("new", breedName("new")) +
+                    "END");
+
+            // Change journal, as in version 7
+            db.execSQL("CREATE TRIGGER pet_changes_insert AFTER INSERT ON " +
+                    PetContract.TABLE_NAME + " BEGIN " +
+                    "UPDATE " + PetContract.TABLE_NAME + " SET " +
+                    PetEntry.COLUMN_PET_SYNC_ID + " = " + SQL_NEW_SYNC_ID +
+                    " WHERE " + PetEntry._ID + " = new." + PetEntry._ID +
+                    " AND " + PetEntry.COLUMN_PET_SYNC_ID + " IS NULL; " +
+                    "INSERT OR REPLACE INTO " + PetContract.CHANGES_TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_SYNC_ID + ") SELECT " + PetEntry.COLUMN_PET_SYNC_ID +
+                    " FROM " + PetContract.TABLE_NAME +
+                    " WHERE " + PetEntry._ID + " = new." + PetEntry._ID + "; " +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_changes_update AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED_ID + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ", " +
+                    PetEntry.COLUMN_PET_DELETED + " ON " + PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0" +
+                    " OR new." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    journal("new") +
+                    "END");
+
+            db.execSQL("CREATE TRIGGER pet_changes_delete AFTER DELETE ON " +
+                    PetContract.TABLE_NAME +
+                    " WHEN old." + PetEntry.COLUMN_PET_DELETED + " = 0 BEGIN " +
+                    journal("old") +
+                    "END");
+
+            db.execSQL("ANALYZE " + PetContract.TABLE_NAME);
+        }
+    };
+
+    /**
+     * SQL expression for the breed name of the given pet row ("new" or "old"), from version 8
+     * on, when pets only have the breed's id.
+     */
+    private static String breedName(String row) {
+        return "(SELECT " + PetEntry.COLUMN_PET_BREED + " FROM " + PetContract.BREEDS_TABLE_NAME +
+                " WHERE " + PetEntry.COLUMN_PET_BREED_ID + " = " + row + "." +
+                PetEntry.COLUMN_PET_BREED_ID + ")";
+    }
+
+    /** SQL expression for a new random sync id: 32 hex digits */
+    private static final String SQL_NEW_SYNC_ID = "lower(hex(randomblob(16)))";
+
+    /**
+     * Trigger statement recording the given pet row ("new" or "old") in the change journal.
+     */
+    private static String journal(String row) {
+        return "INSERT OR REPLACE INTO " + PetContract.CHANGES_TABLE_NAME + " (" +
+                PetEntry.COLUMN_PET_SYNC_ID + ") VALUES (" +
+                row + "." + PetEntry.COLUMN_PET_SYNC_ID + "); ";
+    }
+
+    /** All migrations, in version order. MIGRATIONS[i] produces version i + 2. */
+    private static final Migration[] MIGRATIONS = {
+            ADD_SORT_AND_FILTER_INDEXES,
+            ADD_SEARCH_INDEX,
+            ADD_STATS,
+            ADD_TOMBSTONES,
+            ADD_PHOTOS,
+            ADD_CHANGE_JOURNAL,
+            ADD_BREED_DICTIONARY,
+    };
+
+    /**
+     * Trigger statements counting the given pet row ("new" or "old") into the stats of its
+     * groups, creating the gender and breed rows if this is their first pet.
+     */
+    private static String addToStats(String row) {
+        return addToStats(row, statsBreed(row));
+    }
+
+    /**
+     * Same as {@link #addToStats(String)}, with the given SQL expression for the breed.
+     */
+    private static String addToStats(String row, String breed) {
+        return "INSERT OR IGNORE INTO " + PetContract.STATS_TABLE_NAME + " (" +
+                StatsEntry.COLUMN_DIMENSION + ", " + StatsEntry.COLUMN_VALUE + ") " +
+                "VALUES ('" + StatsEntry.DIMENSION_GENDER + "', " + statsGender(row) + "); " +
+                "INSERT OR IGNORE INTO " + PetContract.STATS_TABLE_NAME + " (" +
+                StatsEntry.COLUMN_DIMENSION + ", " + StatsEntry.COLUMN_VALUE + ") " +
+                "VALUES ('" + StatsEntry.DIMENSION_BREED + "', " + breed + "); " +
+                updateStats(row, breed, "+");
+    }
+
+    /**
+     * Trigger statements counting the given pet row out of the stats of its groups, dropping
+     * the gender and breed rows that are left without pets.
+     */
+    private static String removeFromStats(String row) {
+        return removeFromStats(row, statsBreed(row));
+    }
+
+    /**
+     * Same as {@link #removeFromStats(String)}, with the given SQL expression for the breed.
+     *
+     * The empty rows are dropped one dimension at a time: the SQLite of older devices (3.7.x)
+     * deletes nothing when the breed is a subquery inside an OR.
+     */
+    private static String removeFromStats(String row, String breed) {
+        return updateStats(row, breed, "-") +
+                "DELETE FROM " + PetContract.STATS_TABLE_NAME + " WHERE " +
+                StatsEntry.COLUMN_PET_COUNT + " = 0 AND " +
+                groupRow(StatsEntry.DIMENSION_GENDER, statsGender(row)) + "; " +
+                "DELETE FROM " + PetContract.STATS_TABLE_NAME + " WHERE " +
+                StatsEntry.COLUMN_PET_COUNT + " = 0 AND " +
+                groupRow(StatsEntry.DIMENSION_BREED, breed) + "; ";
+    }
+
+    private static String updateStats(String row, String breed, String sign) {
+        return "UPDATE " + PetContract.STATS_TABLE_NAME + " SET " +
+                StatsEntry.COLUMN_PET_COUNT + " = " + StatsEntry.COLUMN_PET_COUNT +
+                " " + sign + " 1, " +
+                StatsEntry.COLUMN_TOTAL_WEIGHT + " = " + StatsEntry.COLUMN_TOTAL_WEIGHT +
+                " " + sign + " " + row + "." + PetEntry.COLUMN_PET_WEIGHT +
+                " WHERE " + StatsEntry.COLUMN_DIMENSION + " = '" + StatsEntry.DIMENSION_ALL +
+                "' OR " + groupRows(row, breed) + "; ";
+    }
+
+    /**
+     * Condition matching the gender and breed stats rows of the given pet row, each by its
+     * primary key, with the given SQL expression for the pet's breed.
+     */
+    private static String groupRows(String row, String breed) {
+        return groupRow(StatsEntry.DIMENSION_GENDER, statsGender(row)) + " OR " +
+                groupRow(StatsEntry.DIMENSION_BREED, breed);
+    }
+
+    /** Condition matching the stats row of one group, by its primary key. */
+    private static String groupRow(String dimension, String value) {
+        return "(" + StatsEntry.COLUMN_DIMENSION + " = '" + dimension + "' AND " +
+                StatsEntry.COLUMN_VALUE + " = " + value + ")";
+    }
+
+    private static String statsGender(String row) {
+        return "CAST(" + row + "." + PetEntry.COLUMN_PET_GENDER + " AS TEXT)";
+    }
+
+    private static String statsBreed(String row) {
+        return row + "." + PetEntry.COLUMN_PET_BREED;
+    }
+
+    /** Value of PRAGMA auto_vacuum for incremental mode */
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Switches a database created before incremental vacuum was turned on (see
+     * {@link PetDbHelper}) over to it. That takes a full VACUUM, which rewrites the file and
+     * holds the write lock while it does, so it runs once, when the database is opened after
+     * the app was updated, rather than in the background later. VACUUM can't run inside a
+     * transaction, so this isn't a {@link Migration}.
+     *
+     * @return true if the database was converted
+     */
+    static boolean convertToIncrementalVacuum(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                == AUTO_VACUUM_INCREMENTAL) {
+            return false;
+        }
+
+        Log.i(LOG_TAG, "Converting shelter database to incremental vacuum");
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+        return true;
+    }
+
+    /**
+     * Applies every migration after {@code oldVersion} up to and including {@code newVersion},
+     * in order.
+     *
+     * SQLiteOpenHelper calls onCreate and onUpgrade inside one transaction of its own, so the
+     * steps only open nested transactions in it: the whole upgrade commits or rolls back as a
+     * unit, and a failing step leaves the database at {@code oldVersion}, not part way. The
+     * nested transaction makes a step atomic on its own when it is run outside of the helper.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Migration migration : MIGRATIONS) {
+            int version = migration.toVersion();
+            if (version <= oldVersion || version > newVersion) {
+                continue;
+            }
+
+            Log.i(LOG_TAG, "Migrating shelter database to version " + version);
+            db.beginTransaction();
+            try {
+                migration.migrate(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+}
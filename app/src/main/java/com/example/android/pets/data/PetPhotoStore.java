@@ -0,0 +1,163 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.annotation.WorkerThread;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps pet photos outside the database, in a single append-only file.
+ *
+ * A photo is appended once and never rewritten; the pet row only holds its offset and length
+ * (see {@link PetEntry#COLUMN_PET_PHOTO_OFFSET}). Reads go through a read-only memory mapping of
+ * the file, so a photo's bytes are paged in by the kernel straight from the page cache instead
+ * of being copied into the Java heap or through a cursor window.
+ *
+ * Replacing or deleting a pet leaves its old photo in the file. Nothing reclaims that space
+ * yet.
+ */
+public final class PetPhotoStore {
+
+    /** Name of the photo file in the app's files directory */
+    private static final String FILE_NAME = "pet_photos.blob";
+
+    /** Largest photo accepted, so one bad pick can't fill the disk */
+    public static final int MAX_PHOTO_BYTES = 8 * 1024 * 1024;
+
+    /** The file is mapped as a whole, and a mapping can't exceed 2 GB */
+    private static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    private static PetPhotoStore sInstance;
+
+    /**
+     * Returns the process-wide photo store.
+     */
+    public static synchronized PetPhotoStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetPhotoStore(
+                    new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    private final File mFile;
+
+    /** Mapping of the file as it was when last mapped; guarded by this */
+    private MappedByteBuffer mMapping;
+
+    /**
+     * Creates a store over the given file. Use {@link #getInstance} instead; only tests need a
+     * store of their own.
+     */
+    PetPhotoStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Appends the photo read from the stream to the file, and puts where it was written into
+     * the photo columns of the given pet values. The stream is read to the end but not closed.
+     *
+     * The photo is synced to disk before this returns, so a pet row written afterwards never
+     * points at bytes that a crash could lose.
+     *
+     * @throws IOException if the stream or the file fails, or the photo is bigger than
+     *                     {@link #MAX_PHOTO_BYTES}. Nothing is left in the file then.
+     */
+    @WorkerThread
+    public synchronized void append(InputStream in, ContentValues pet) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            long offset = file.length();
+            // A new RandomAccessFile writes from the start of the file
+            file.seek(offset);
+            try {
+                byte[] buffer = new byte[8192];
+                long length = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    length += read;
+                    if (length > MAX_PHOTO_BYTES) {
+                        throw new IOException("Photo is larger than " + MAX_PHOTO_BYTES + " bytes");
+                    }
+                    if (offset + length > MAX_FILE_BYTES) {
+                        throw new IOException("Photo store is full");
+                    }
+                    file.write(buffer, 0, read);
+                }
+                if (length == 0) {
+                    throw new IOException("Photo is empty");
+                }
+                file.getFD().sync();
+
+                pet.put(PetEntry.COLUMN_PET_PHOTO_OFFSET, offset);
+                pet.put(PetEntry.COLUMN_PET_PHOTO_LENGTH, length);
+            } catch (IOException e) {
+                // Drop whatever part of the photo made it in, so the next photo starts cleanly
+                file.setLength(offset);
+                throw e;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the bytes of the photo at the given offset, as a read-only buffer over the
+     * mapped file. The buffer stays valid even after later appends remap the file.
+     *
+     * @return the photo, or null if the file doesn't reach that far (e.g. the app's files
+     *         were cleared while the database was kept)
+     */
+    @WorkerThread
+    public ByteBuffer read(long offset, int length) throws IOException {
+        if (offset < 0 || length <= 0) {
+            throw new IllegalArgumentException("No photo at " + offset + "+" + length);
+        }
+
+        ByteBuffer photo;
+        synchronized (this) {
+            if (mMapping == null || offset + length > mMapping.capacity()) {
+                // Photos appended since the last read are past the end of the mapping. Mapping
+                // the whole file again is cheap: it only sets up page tables.
+                if (!remap(offset + length)) {
+                    return null;
+                }
+            }
+            photo = mMapping.duplicate();
+        }
+
+        photo.position((int) offset);
+        photo.limit((int) offset + length);
+        return photo.slice();
+    }
+
+    /**
+     * Maps the file as it is now, if it has at least {@code minSize} bytes.
+     */
+    private boolean remap(long minSize) throws IOException {
+        if (!mFile.exists()) {
+            return false;
+        }
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            long size = file.length();
+            if (size < minSize) {
+                return false;
+            }
+            // The mapping outlives the file descriptor, which can be closed right away
+            mMapping = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return true;
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -1,27 +1,167 @@
 package com.example.android.pets.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.regex.Pattern;
 
 public class PetProvider extends ContentProvider {
     /*
     /* Database helper object */
     private PetDbHelper mDbHelper;
 
+    /** Maximum number of pets kept in {@link #mPetCache} */
+    private static final int PET_CACHE_SIZE = 256;
+
+    /** Recently looked up pets, serving PET_ID queries without a database round trip */
+    private final PetCache mPetCache = new PetCache(PET_CACHE_SIZE);
+
+    /** SQL of recent query shapes, and compiled statements for inserts and lookups */
+    private final PetStatementCache mStatements = new PetStatementCache();
+
+    /** Breed names by id and ids by name, for the breed column */
+    private final PetBreedDictionary mBreeds = new PetBreedDictionary();
+
+    /** Column by column copy of the live pets, serving plain PETS queries */
+    private final PetSnapshotCache mSnapshots =
+            new PetSnapshotCache(PetSnapshotCache.DEFAULT_MAX_BYTES);
+
     /** URI matcher code for the content URI for the pets table */
     private static final int PETS = 100;
 
     /** URI matcher code for the content URI for a single pet in the pets table */
     private static final int PET_ID = 101;
 
+    /** URI matcher code for the content URI for full-text search over the pets table */
+    private static final int PET_SEARCH = 102;
+
+    /** URI matcher code for the content URI for the pet stats */
+    private static final int PET_STATS = 103;
+
+    /** URI matcher code for the content URI for the provider metrics */
+    private static final int METRICS = 104;
+
+    /** Call counts and latencies of the URIs above, except {@link #METRICS} itself */
+    private final PetMetrics mMetrics = new PetMetrics();
+
+    /** Purges soft deleted pets in the background; created on the first soft delete */
+    private PetCompactor mCompactor;
+
+    /**
+     * Condition every read and write of the pets table is limited by, so soft deleted pets
+     * are gone for callers as soon as they are tombstoned. Qualified so it also works in joins.
+     */
+    private static final String SQL_NOT_DELETED =
+            PetContract.TABLE_NAME + "." + PetEntry.COLUMN_PET_DELETED + " = 0";
+
+    /** Selection of a single live pet by _id */
+    private static final String SQL_PET_BY_ID =
+            DatabaseUtils.concatenateWhere(PetEntry._ID + "=?", SQL_NOT_DELETED);
+
     /** Tag for the log messages */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
 
+    /** Precompiled insert used by {@link #bulkInsert}, bound once per row */
+    private static final String SQL_INSERT_PET = "INSERT INTO " + PetContract.TABLE_NAME + " (" +
+            PetEntry.COLUMN_PET_NAME + ", " +
+            PetEntry.COLUMN_PET_BREED_ID + ", " +
+            PetEntry.COLUMN_PET_GENDER + ", " +
+            PetEntry.COLUMN_PET_WEIGHT + ", " +
+            PetEntry.COLUMN_PET_PHOTO_OFFSET + ", " +
+            PetEntry.COLUMN_PET_PHOTO_LENGTH + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    /** Columns of a pets query without a projection */
+    private static final String[] PET_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_DELETED,
+            PetEntry.COLUMN_PET_PHOTO_OFFSET,
+            PetEntry.COLUMN_PET_PHOTO_LENGTH,
+            PetEntry.COLUMN_PET_SYNC_ID};
+
+    /**
+     * The pets table with the breed dictionary joined in, for queries whose SQL needs the
+     * breed names. The dictionary's columns are breed_id and breed, so every pets column keeps
+     * its unqualified name.
+     */
+    private static final String PETS_WITH_BREEDS = PetContract.TABLE_NAME + " JOIN " +
+            PetContract.BREEDS_TABLE_NAME + " USING (" + PetEntry.COLUMN_PET_BREED_ID + ")";
+
+    /**
+     * The breed name looked up by the pet's breed id, under the name of the breed column. A
+     * primary key lookup per row; unlike a join, the query stays on the pets table alone, so
+     * its plan is the same as before the breeds moved out.
+     */
+    private static final String BREED_NAME_AS_BREED = "(SELECT " + PetEntry.COLUMN_PET_BREED +
+            " FROM " + PetContract.BREEDS_TABLE_NAME + " WHERE " +
+            PetContract.BREEDS_TABLE_NAME + "." + PetEntry.COLUMN_PET_BREED_ID + " = " +
+            PetContract.TABLE_NAME + "." + PetEntry.COLUMN_PET_BREED_ID + ") AS " +
+            PetEntry.COLUMN_PET_BREED;
+
+    /** Finds the breed column in SQL, but not breed_id */
+    private static final Pattern BREED_REFERENCE = Pattern.compile(
+            "\\b" + PetEntry.COLUMN_PET_BREED + "\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Most rows a single write or batch notifies individually. Past this, observers get one
+     * notification for the whole table, which is cheaper for them than thousands of row URIs.
+     */
+    private static final int MAX_ROW_NOTIFICATIONS = 64;
+
+    /**
+     * Set while {@link #applyBatch} or {@link #bulkInsert} is running on the calling thread, so
+     * the change notifications of the individual writes are collected and sent once the batch
+     * commits.
+     */
+    private final ThreadLocal<NotificationBatch> mBatch = new ThreadLocal<>();
+
+    /**
+     * The content URIs of the rows changed by a batch, deduplicated and in order, or a single
+     * notification for the whole table once too many rows changed.
+     */
+    private static class NotificationBatch {
+        final LinkedHashSet<Uri> uris = new LinkedHashSet<>();
+        boolean wholeTable;
+
+        void add(Uri uri) {
+            if (wholeTable) {
+                return;
+            }
+            if (uri.equals(PetContract.CONTENT_URI) || uris.size() == MAX_ROW_NOTIFICATIONS) {
+                wholeTable = true;
+                uris.clear();
+            } else {
+                uris.add(uri);
+            }
+        }
+    }
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -35,9 +175,92 @@ public class PetProvider extends ContentProvider {
         // should recognize. All paths added to the UriMatcher have a corresponding code to return
         // when a match is found.
 
-        // TODO: Add 2 content URIs to URI matcher
-        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.TABLE_NAME, PETS);
-        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.TABLE_NAME, PET_ID);
+        // The content URI of the form "content://com.example.android.pets/pets" will map to the
+        // integer code {@link #PETS}. This URI is used to provide access to MULTIPLE rows
+        // of the pets table.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
+
+        // The content URI of the form "content://com.example.android.pets/pets/#" will map to the
+        // integer code {@link #PET_ID}. This URI is used to provide access to ONE single row
+        // of the pets table. The "#" wildcard only matches digits, so "pets/search" below is
+        // not mistaken for a pet.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH, PET_SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS, PET_STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_METRICS, METRICS);
+    }
+
+    /** Tables joined by a search: the FTS index, and the pets rows it points at */
+    private static final String SEARCH_TABLES = PetContract.SEARCH_TABLE_NAME + " JOIN " +
+            PetContract.TABLE_NAME + " ON " + PetContract.TABLE_NAME + "." + PetEntry._ID +
+            " = " + PetContract.SEARCH_TABLE_NAME + ".docid";
+
+    /**
+     * Search results rank pets matched by name above pets matched only by breed. offsets()
+     * lists the matches column by column, so its first number is the column of the first match.
+     */
+    private static final String SEARCH_RANK_ORDER = "substr(offsets(" +
+            PetContract.SEARCH_TABLE_NAME + "), 1, 1), " +
+            PetContract.TABLE_NAME + "." + PetEntry.COLUMN_PET_NAME;
+
+    /**
+     * Maps the pets columns to their qualified names in a search, since the FTS table has
+     * name and breed columns of its own. The breed name is taken from the FTS table.
+     */
+    private static final HashMap<String, String> sSearchProjectionMap = new HashMap<>();
+
+    static {
+        String[] columns = {
+                PetEntry._ID,
+                PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_GENDER,
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_PHOTO_OFFSET,
+                PetEntry.COLUMN_PET_PHOTO_LENGTH};
+        for (String column : columns) {
+            sSearchProjectionMap.put(column,
+                    PetContract.TABLE_NAME + "." + column + " AS " + column);
+        }
+
+        // The pets table only has the breed id, but the index holds the name for matching
+        sSearchProjectionMap.put(PetEntry.COLUMN_PET_BREED, PetContract.SEARCH_TABLE_NAME +
+                "." + PetEntry.COLUMN_PET_BREED + " AS " + PetEntry.COLUMN_PET_BREED);
+    }
+
+    /** Default order of the stats: the overall row, then each dimension's biggest groups first */
+    private static final String STATS_ORDER = "CASE " + StatsEntry.COLUMN_DIMENSION +
+            " WHEN '" + StatsEntry.DIMENSION_ALL + "' THEN 0 ELSE 1 END, " +
+            StatsEntry.COLUMN_DIMENSION + ", " + StatsEntry.COLUMN_PET_COUNT + " DESC";
+
+    /** Maps the stats columns, including the average weight computed from the totals */
+    private static final HashMap<String, String> sStatsProjectionMap = new HashMap<>();
+
+    static {
+        String[] columns = {
+                StatsEntry.COLUMN_DIMENSION,
+                StatsEntry.COLUMN_VALUE,
+                StatsEntry.COLUMN_PET_COUNT,
+                StatsEntry.COLUMN_TOTAL_WEIGHT};
+        for (String column : columns) {
+            sStatsProjectionMap.put(column, column);
+        }
+        sStatsProjectionMap.put(StatsEntry.COLUMN_AVERAGE_WEIGHT, "CASE WHEN " +
+                StatsEntry.COLUMN_PET_COUNT + " > 0 THEN CAST(" +
+                StatsEntry.COLUMN_TOTAL_WEIGHT + " AS REAL) / " + StatsEntry.COLUMN_PET_COUNT +
+                " ELSE 0 END AS " + StatsEntry.COLUMN_AVERAGE_WEIGHT);
+    }
+
+    public PetProvider() {
+    }
+
+    /**
+     * Creates a provider over the given database instead of the shelter database, for tests
+     * and tools that need a database of their own. It still has to be attached to a context.
+     */
+    PetProvider(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
     }
 
     /**
@@ -45,8 +268,33 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public boolean onCreate() {
-        // TODO: Create and initialize a PetDbHelper object to gain access to the pets database.
-        mDbHelper = new PetDbHelper(getContext());
+        // Share the process-wide PetDbHelper, so the provider and anything else in the app use
+        // the same connection pool.
+        if (mDbHelper == null) {
+            mDbHelper = PetDbHelper.getInstance(getContext());
+        }
+
+        // The provider is created before the launch activity, so open the database (creating
+        // or migrating it if needed) on a background thread right away. It is then ready, or
+        // well on its way, when the catalog's first page query arrives, and the main thread
+        // never waits for the disk here.
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDbHelper.getWritableDatabase();
+                } catch (RuntimeException e) {
+                    // The first query will try again and report the error to its caller
+                    Log.e(LOG_TAG, "Failed to open the shelter database", e);
+                }
+            }
+        });
+
+        // Every URI the provider serves gets its own counters
+        mMetrics.register(PETS, PetContract.PATH_PETS);
+        mMetrics.register(PET_ID, PetContract.PATH_PETS + "/#");
+        mMetrics.register(PET_SEARCH, PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH);
+        mMetrics.register(PET_STATS, PetContract.PATH_PETS + "/" + PetContract.PATH_STATS);
 
         // Make sure the variable is a global variable, so it can be referenced from other
         // ContentProvider methods.
@@ -58,6 +306,14 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        long startNanos = System.nanoTime();
+
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+        if (match == METRICS) {
+            // A snapshot of the counters; nothing is notified when they change
+            return mMetrics.toCursor(projection);
+        }
 
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
@@ -65,24 +321,39 @@ public class PetProvider extends ContentProvider {
         // This cursor will hold the result of the query
         Cursor cursor = null;
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
+                String afterId = uri.getQueryParameter(PetContract.QUERY_PARAMETER_AFTER_ID);
+                String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+
+                // Whole pages of pets in _id order, as the catalog reads them, come from the
+                // snapshot when it is current
+                cursor = querySnapshot(database, projection, selection, selectionArgs,
+                        sortOrder, afterId, limit);
+                if (cursor != null) {
+                    break;
+                }
+
                 // For the PETS code, query the pets table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
-                // TODO: Perform database query on pets table
-                cursor = database.query(
-                        PetContract.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder);
+                selection = DatabaseUtils.concatenateWhere(selection, SQL_NOT_DELETED);
+                if (afterId != null || limit != null) {
+                    cursor = queryPage(database, projection, selection, selectionArgs, sortOrder,
+                            afterId, limit);
+                    break;
+                }
+
+                cursor = queryPets(database, projection, selection, selectionArgs, sortOrder,
+                        null);
                 break;
             case PET_ID:
+                // A plain lookup of one pet can be answered from the cache
+                if (selection == null && PetCache.canServe(projection)) {
+                    cursor = queryPetCached(database, ContentUris.parseId(uri), projection);
+                    break;
+                }
+
                 // For the PET_ID code, extract out the ID from the URI.
                 // For an example URI such as "content://com.example.android.pets/pets/3",
                 // the selection will be "_id=?" and the selection argument will be a
@@ -91,33 +362,590 @@ public class PetProvider extends ContentProvider {
                 // For every "?" in the selection, we need to have an element in the selection
                 // arguments that will fill in the "?". Since we have 1 question mark in the
                 // selection, we have 1 String in the selection arguments' String array.
-                selection = PetContract.PetEntry._ID + "=?";
+                selection = DatabaseUtils.concatenateWhere(PetContract.PetEntry._ID + "=?",
+                        SQL_NOT_DELETED);
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
 
                 // This will perform a query on the pets table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(
-                        PetContract.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
+                cursor = queryPets(database, projection, selection, selectionArgs, sortOrder,
+                        null);
+                break;
+            case PET_SEARCH:
+                cursor = querySearch(database, uri, projection, selection, selectionArgs,
                         sortOrder);
                 break;
+            case PET_STATS:
+                cursor = queryStats(database, projection, selection, selectionArgs, sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
 
+        // Set notification URI on the Cursor, so we know what content URI the Cursor was
+        // created for. If the data at this URI changes, then we know we need to update
+        // the Cursor. Search results and stats can change with any pet, so they watch the whole
+        // table.
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                match == PET_SEARCH || match == PET_STATS ? PetContract.CONTENT_URI : uri);
+
+        // Count the rows before stopping the clock. SQLite only runs the query when the cursor
+        // is first filled, and that happens on the first getCount(), which every caller makes
+        // anyway; without it the time would only cover compiling the statement.
+        int rows = cursor.getCount();
+        long elapsedNanos = mMetrics.record(match, PetMetrics.QUERY, startNanos, rows);
+        if (elapsedNanos >= PetMetrics.SLOW_OPERATION_NANOS) {
+            String sql = cursor instanceof PetDbHelper.QueryCursor
+                    ? ((PetDbHelper.QueryCursor) cursor).describeQuery() : "served from cache";
+            Log.w(LOG_TAG, "Slow query of " + uri + ": " + elapsedNanos / 1000000 + " ms, " +
+                    rows + " rows, " + sql);
+        }
+
         return cursor;
     }
 
+    /**
+     * Look up a single pet, going to the database only if it isn't in {@link #mPetCache}.
+     */
+    private Cursor queryPetCached(SQLiteDatabase database, long id, String[] projection) {
+        Pet pet = mPetCache.get(id);
+        if (pet == null) {
+            long version = mPetCache.version();
+            pet = loadPet(database, id);
+            if (pet == null) {
+                return new MatrixCursor(projection, 0);
+            }
+            mPetCache.put(pet, version);
+        }
+        return PetCache.toCursor(pet, projection);
+    }
+
+    /**
+     * Reads one pet from the database, or returns null if there is no pet with that _id.
+     */
+    private Pet loadPet(SQLiteDatabase database, long id) {
+        Cursor cursor = queryPets(
+                database,
+                PetCache.COLUMNS,
+                SQL_PET_BY_ID,
+                new String[] { String.valueOf(id) },
+                null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new PetRowReader().moveTo(cursor).toPet();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Answer a pets query from {@link #mSnapshots}, if it has no selection, is in _id order
+     * and only asks for columns the snapshot holds. Paging works as in {@link #queryPage}.
+     *
+     * @return the pets, or null if the query has to go to the database
+     */
+    private Cursor querySnapshot(SQLiteDatabase database, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder, String afterId,
+                                 String limit) {
+        if (selection != null || selectionArgs != null || !PetSnapshot.canServe(projection)
+                || (sortOrder != null && !isIdOrder(sortOrder))) {
+            return null;
+        }
+
+        long afterIdValue = parsePagingParameter(PetContract.QUERY_PARAMETER_AFTER_ID, afterId, 0);
+        long limitValue = parsePagingParameter(PetContract.QUERY_PARAMETER_LIMIT, limit, -1);
+
+        PetSnapshot snapshot = mSnapshots.get(database);
+        if (snapshot == null) {
+            return null;
+        }
+        // Breeds are resolved here rather than as the cursor is read, which may be on the UI
+        // thread
+        return snapshot.query(projection, afterIdValue, limitValue,
+                mBreeds.names(database, snapshot.maxBreedId()));
+    }
+
+    /**
+     * Query one page of the pets table. The page is found by seeking the _id index past
+     * {@code afterId} rather than with OFFSET, so every page costs the same no matter how deep
+     * into the table it is.
+     */
+    private Cursor queryPage(SQLiteDatabase database, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder, String afterId,
+                             String limit) {
+        // Keyset paging only works when the rows come back in _id order
+        if (sortOrder != null && !isIdOrder(sortOrder)) {
+            throw new IllegalArgumentException("Paged queries are sorted by _id, not " + sortOrder);
+        }
+
+        long afterIdValue = parsePagingParameter(PetContract.QUERY_PARAMETER_AFTER_ID, afterId, 0);
+        long limitValue = parsePagingParameter(PetContract.QUERY_PARAMETER_LIMIT, limit, -1);
+
+        selection = DatabaseUtils.concatenateWhere(selection, PetEntry._ID + ">?");
+        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                new String[] { String.valueOf(afterIdValue) });
+
+        return queryPets(
+                database,
+                projection,
+                selection,
+                selectionArgs,
+                PetEntry._ID,
+                limitValue > 0 ? String.valueOf(limitValue) : null);
+    }
+
+    /**
+     * Query the pets table, returning breeds by name. The rows carry only the breed id, so a
+     * projected breed column is looked up in the breed dictionary by SQLite, and the cursor
+     * holds the names like any other text column. When the selection, the sort order or an
+     * expression in the projection refers to the breed, the query joins the breed dictionary
+     * instead.
+     */
+    private Cursor queryPets(SQLiteDatabase database, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder, String limit) {
+        if (projection == null) {
+            projection = PET_COLUMNS;
+        }
+
+        boolean needsJoin = refersToBreed(selection) || refersToBreed(sortOrder);
+        String[] storedProjection = projection;
+        for (int i = 0; i < projection.length && !needsJoin; i++) {
+            if (PetEntry.COLUMN_PET_BREED.equals(projection[i])) {
+                if (storedProjection == projection) {
+                    storedProjection = projection.clone();
+                }
+                storedProjection[i] = BREED_NAME_AS_BREED;
+            } else {
+                needsJoin = refersToBreed(projection[i]);
+            }
+        }
+
+        if (needsJoin) {
+            return mStatements.query(database, PETS_WITH_BREEDS, projection, selection,
+                    selectionArgs, sortOrder, limit);
+        }
+
+        return mStatements.query(database, PetContract.TABLE_NAME, storedProjection,
+                selection, selectionArgs, sortOrder, limit);
+    }
+
+    private static boolean refersToBreed(String sql) {
+        return sql != null && BREED_REFERENCE.matcher(sql).find();
+    }
+
+    /**
+     * Returns the selection of an update or delete as the pets table can run it. A selection
+     * that refers to the breed needs the names, which the pets table no longer has, so it
+     * picks the pets by _id from the join with the breed dictionary instead.
+     */
+    private static String toStoredSelection(String selection) {
+        if (!refersToBreed(selection)) {
+            return selection;
+        }
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PETS_WITH_BREEDS +
+                " WHERE " + selection + ")";
+    }
+
+    /**
+     * Search pet names and breeds through the FTS index. Every word of the search text is
+     * prefix matched and all words must match, so "gold ret" finds Golden Retrievers.
+     */
+    private Cursor querySearch(SQLiteDatabase database, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder) {
+        String matchQuery = buildMatchQuery(
+                uri.getQueryParameter(PetContract.QUERY_PARAMETER_SEARCH));
+        if (matchQuery == null) {
+            // Nothing to search for, so nothing matches
+            return new MatrixCursor(projection != null ? projection
+                    : sSearchProjectionMap.keySet().toArray(new String[0]));
+        }
+
+        String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        long limitValue = parsePagingParameter(PetContract.QUERY_PARAMETER_LIMIT, limit, -1);
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(SEARCH_TABLES);
+        builder.setProjectionMap(sSearchProjectionMap);
+        builder.appendWhere(PetContract.SEARCH_TABLE_NAME + " MATCH ? AND " + SQL_NOT_DELETED);
+
+        return builder.query(database,
+                projection,
+                selection,
+                selectionArgs != null
+                        ? DatabaseUtils.appendSelectionArgs(new String[] { matchQuery },
+                                selectionArgs)
+                        : new String[] { matchQuery },
+                null,
+                null,
+                sortOrder != null ? sortOrder : SEARCH_RANK_ORDER,
+                limitValue > 0 ? String.valueOf(limitValue) : null);
+    }
+
+    /**
+     * Read the materialized stats. The triggers that maintain them run inside every write's
+     * transaction, so the stats always agree with the pets table as of the same snapshot.
+     */
+    private Cursor queryStats(SQLiteDatabase database, String[] projection, String selection,
+                              String[] selectionArgs, String sortOrder) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(PetContract.STATS_TABLE_NAME);
+        builder.setProjectionMap(sStatsProjectionMap);
+
+        return builder.query(database,
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder != null ? sortOrder : STATS_ORDER);
+    }
+
+    /**
+     * Turns free text into an FTS query that prefix matches every word, e.g. "Gold ret" becomes
+     * "gold* ret*". Anything that isn't a letter or digit is dropped, so user input can't inject
+     * FTS operators. Returns null if no words are left.
+     */
+    private static String buildMatchQuery(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        StringBuilder query = new StringBuilder();
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (!inWord && query.length() > 0) {
+                    query.append(' ');
+                }
+                query.append(Character.toLowerCase(c));
+                inWord = true;
+            } else if (inWord) {
+                query.append('*');
+                inWord = false;
+            }
+        }
+        if (inWord) {
+            query.append('*');
+        }
+
+        return query.length() > 0 ? query.toString() : null;
+    }
+
+    private static boolean isIdOrder(String sortOrder) {
+        String order = sortOrder.trim();
+        return order.equalsIgnoreCase(PetEntry._ID) || order.equalsIgnoreCase(PetEntry._ID + " ASC");
+    }
+
+    /**
+     * Parses a non-negative paging parameter, returning {@code defaultValue} when it is absent.
+     */
+    private static long parsePagingParameter(String name, String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the error below
+        }
+        throw new IllegalArgumentException("Invalid " + name + " parameter: " + value);
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
-        return null;
+        long startNanos = System.nanoTime();
+        Uri petUri;
+
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                petUri = insertPet(uri, contentValues);
+                break;
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        recordWrite(match, PetMetrics.INSERT, uri, startNanos, petUri != null ? 1 : 0);
+        return petUri;
+    }
+
+    /**
+     * Insert a pet into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertPet(Uri uri, ContentValues values) {
+        boolean fromSync = isSyncAdapter(uri);
+        PetValidator.validate(values, true, fromSync);
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // So a known breed is found without going to the dictionary table
+        mBreeds.refreshIfStale(database);
+
+        // Insert the new pet with the given values
+        long id;
+        database.beginTransaction();
+        try {
+            long journalSeq = fromSync ? lastJournalSeq(database) : 0;
+            id = insertRow(database, toStoredValues(database, values));
+            if (fromSync) {
+                forgetJournalAfter(database, journalSeq);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // Nothing can have cached a pet that didn't exist yet, but drop the _id anyway so the
+        // cache never relies on _id values not being reused.
+        mPetCache.invalidate(id);
+        mSnapshots.invalidate(id);
+
+        notifyChange(ContentUris.withAppendedId(PetContract.CONTENT_URI, id));
+
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Inserts a row through a cached compiled statement. Like {@link SQLiteDatabase#insert},
+     * returns -1 instead of throwing if a constraint fails.
+     */
+    private long insertRow(SQLiteDatabase database, ContentValues values) {
+        try {
+            return mStatements.insert(database, PetContract.TABLE_NAME, values);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Insert all of the given rows into the pets table inside a single transaction. The insert
+     * statement is compiled once and rebound for every row, and observers are notified after
+     * the whole batch commits, coalesced into one table notification for large batches.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long startNanos = System.nanoTime();
+        if (sUriMatcher.match(uri) != PETS) {
+            throw new IllegalArgumentException("Bulk insertion is not supported for " + uri);
+        }
+
+        // Validate everything up front so a bad row can't leave the batch half written
+        for (ContentValues value : values) {
+            PetValidator.validate(value, true);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        mBreeds.refreshIfStale(database);
+        int inserted = 0;
+
+        // Compiled before the batch starts, so a failure here leaves nothing to clean up
+        SQLiteStatement statement = database.compileStatement(SQL_INSERT_PET);
+        NotificationBatch batch = beginBatch();
+        boolean committed = false;
+        try {
+            database.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    Integer gender = value.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+                    Integer weight = value.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+
+                    statement.bindString(1, value.getAsString(PetEntry.COLUMN_PET_NAME));
+                    statement.bindLong(2,
+                            mBreeds.id(database, value.getAsString(PetEntry.COLUMN_PET_BREED)));
+                    statement.bindLong(3, gender != null ? gender : PetEntry.GENDER_UNKNOWN);
+                    statement.bindLong(4, weight != null ? weight : 0);
+                    // Both null for a pet without a photo; the validator checked the pair
+                    Long photoOffset = value.getAsLong(PetEntry.COLUMN_PET_PHOTO_OFFSET);
+                    if (photoOffset != null) {
+                        statement.bindLong(5, photoOffset);
+                        statement.bindLong(6,
+                                value.getAsInteger(PetEntry.COLUMN_PET_PHOTO_LENGTH));
+                    }
+
+                    long id = statement.executeInsert();
+                    if (id != -1) {
+                        inserted++;
+                        notifyChange(ContentUris.withAppendedId(PetContract.CONTENT_URI, id));
+                    }
+                    statement.clearBindings();
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            committed = true;
+        } finally {
+            statement.close();
+            endBatch(batch, committed);
+        }
+
+        recordWrite(PETS, PetMetrics.BULK_INSERT, uri, startNanos, inserted);
+        return inserted;
+    }
+
+    /**
+     * Apply all of the given operations inside a single transaction. Either every operation is
+     * committed or none of them are, and observers are notified of the changed rows once the
+     * batch commits, coalesced into one table notification for large batches.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        NotificationBatch batch = beginBatch();
+        boolean committed = false;
+        try {
+            ContentProviderResult[] results;
+            database.beginTransaction();
+            try {
+                results = super.applyBatch(operations);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            committed = true;
+            return results;
+        } finally {
+            endBatch(batch, committed);
+        }
+    }
+
+    /**
+     * Starts collecting change notifications on this thread. Returns null if a batch is already
+     * collecting them, in which case the outer batch sends them.
+     */
+    private NotificationBatch beginBatch() {
+        if (mBatch.get() != null) {
+            return null;
+        }
+        NotificationBatch batch = new NotificationBatch();
+        mBatch.set(batch);
+        return batch;
+    }
+
+    /**
+     * Stops collecting change notifications, sending them if the batch committed. The changed
+     * pets are dropped from the cache again after the commit, since a concurrent lookup may
+     * have cached their old rows while the batch was still open.
+     */
+    private void endBatch(NotificationBatch batch, boolean committed) {
+        if (batch == null) {
+            return;
+        }
+        mBatch.remove();
+        if (!committed) {
+            return;
+        }
+
+        if (batch.wholeTable) {
+            mPetCache.invalidateAll();
+            mSnapshots.invalidateAll();
+            notifyChange(PetContract.CONTENT_URI);
+        } else {
+            for (Uri uri : batch.uris) {
+                mPetCache.invalidate(ContentUris.parseId(uri));
+                mSnapshots.invalidate(ContentUris.parseId(uri));
+                notifyChange(uri);
+            }
+        }
+    }
+
+    /**
+     * Returns the values as the pets table stores them, with the breed name replaced by its id
+     * in the breed dictionary. Must run inside the write's transaction, since a breed the
+     * dictionary doesn't have yet is added to it.
+     */
+    private ContentValues toStoredValues(SQLiteDatabase database, ContentValues values) {
+        if (!values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+            return values;
+        }
+        ContentValues stored = new ContentValues(values);
+        stored.remove(PetEntry.COLUMN_PET_BREED);
+        stored.put(PetEntry.COLUMN_PET_BREED_ID,
+                mBreeds.id(database, values.getAsString(PetEntry.COLUMN_PET_BREED)));
+        return stored;
+    }
+
+    /**
+     * Notify all listeners that the data has changed for the given content URI, unless a batch
+     * is in progress on this thread, in which case the batch notifies once when it finishes.
+     */
+    private void notifyChange(Uri uri) {
+        NotificationBatch batch = mBatch.get();
+        if (batch != null) {
+            batch.add(uri);
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Drops the changed pets from the cache and notifies the content URI of each one. A null
+     * array means too many rows changed to list, so the whole table is invalidated instead.
+     */
+    private void onPetsChanged(long[] ids) {
+        if (ids == null) {
+            mPetCache.invalidateAll();
+            mSnapshots.invalidateAll();
+            notifyChange(PetContract.CONTENT_URI);
+            return;
+        }
+
+        for (long id : ids) {
+            mPetCache.invalidate(id);
+            mSnapshots.invalidate(id);
+            notifyChange(ContentUris.withAppendedId(PetContract.CONTENT_URI, id));
+        }
+    }
+
+    /**
+     * Returns the _ids of the pets matching the selection, or null if there are more than
+     * {@link #MAX_ROW_NOTIFICATIONS} of them. Must run in the same transaction as the write the
+     * ids are for.
+     */
+    private static long[] queryChangedIds(SQLiteDatabase database, String selection,
+                                          String[] selectionArgs) {
+        Cursor cursor = database.query(
+                PetContract.TABLE_NAME,
+                new String[] { PetEntry._ID },
+                selection,
+                selectionArgs,
+                null,
+                null,
+                null,
+                String.valueOf(MAX_ROW_NOTIFICATIONS + 1));
+        try {
+            if (cursor.getCount() > MAX_ROW_NOTIFICATIONS) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -125,17 +953,228 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
-        return 0;
+        long startNanos = System.nanoTime();
+        int rowsUpdated;
+
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                rowsUpdated = updatePet(contentValues, selection, selectionArgs, null,
+                        isSyncAdapter(uri));
+                break;
+            case PET_ID:
+                // For the PET_ID code, extract out the ID from the URI,
+                // so we know which row to update. Selection will be "_id=?" and selection
+                // arguments will be a String array containing the actual ID.
+                long id = ContentUris.parseId(uri);
+                selection = PetEntry._ID + "=?";
+                selectionArgs = new String[] { String.valueOf(id) };
+                rowsUpdated = updatePet(contentValues, selection, selectionArgs, new long[] { id },
+                        isSyncAdapter(uri));
+                break;
+            default:
+                throw new IllegalArgumentException("Update is not supported for " + uri);
+        }
+
+        recordWrite(match, PetMetrics.UPDATE, uri, startNanos, rowsUpdated);
+        return rowsUpdated;
+    }
+
+    /**
+     * Update pets in the database with the given content values. Apply the changes to the rows
+     * specified in the selection and selection arguments (which could be 0 or 1 or more pets).
+     * Return the number of rows that were successfully updated.
+     *
+     * @param ids the _ids the selection matches, if the caller knows them; otherwise they are
+     *            looked up so that each changed row can be notified
+     * @param fromSync whether the update comes from the sync adapter, and so must not be
+     *                 journaled
+     */
+    private int updatePet(ContentValues values, String selection, String[] selectionArgs,
+                          long[] ids, boolean fromSync) {
+        PetValidator.validate(values, false, fromSync);
+
+        // If there are no values to update, then don't try to update the database
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // Otherwise, get writeable database to update the data
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        selection = DatabaseUtils.concatenateWhere(toStoredSelection(selection),
+                SQL_NOT_DELETED);
+        if (values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+            mBreeds.refreshIfStale(database);
+        }
+
+        // Perform the update on the database and get the number of rows affected. The rows are
+        // looked up in the same transaction, so they are exactly the rows that get updated.
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            long journalSeq = fromSync ? lastJournalSeq(database) : 0;
+            if (ids == null) {
+                ids = queryChangedIds(database, selection, selectionArgs);
+            }
+            rowsUpdated = database.update(PetContract.TABLE_NAME,
+                    toStoredValues(database, values), selection, selectionArgs);
+            if (fromSync) {
+                forgetJournalAfter(database, journalSeq);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // If 1 or more rows were updated, then drop them from the cache and notify all listeners
+        // that the data of those rows has changed
+        if (rowsUpdated != 0) {
+            onPetsChanged(ids);
+        }
+
+        return rowsUpdated;
     }
 
     /**
-     * Delete the data at the given selection and selection arguments.
+     * Delete the data at the given selection and selection arguments. Any number of pets is
+     * deleted with one statement in one transaction, and observers get one notification for
+     * the whole table once more than {@link #MAX_ROW_NOTIFICATIONS} pets go.
+     *
+     * With {@link PetContract#QUERY_PARAMETER_SOFT_DELETE}, the pets are tombstoned instead,
+     * which skips removing their index and search entries, and {@link PetCompactor} purges
+     * them once the provider is idle.
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        return 0;
+        long startNanos = System.nanoTime();
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Track the number of rows that were deleted, and which they were
+        int rowsDeleted;
+        long[] ids = null;
+
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                // Delete all rows that match the selection and selection args
+                break;
+            case PET_ID:
+                // Delete a single row given by the ID in the URI
+                long id = ContentUris.parseId(uri);
+                selection = PetEntry._ID + "=?";
+                selectionArgs = new String[] { String.valueOf(id) };
+                ids = new long[] { id };
+                break;
+            default:
+                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+        }
+
+        boolean softDelete = uri.getBooleanQueryParameter(
+                PetContract.QUERY_PARAMETER_SOFT_DELETE, false);
+        boolean fromSync = isSyncAdapter(uri);
+        selection = DatabaseUtils.concatenateWhere(toStoredSelection(selection),
+                SQL_NOT_DELETED);
+
+        database.beginTransaction();
+        try {
+            long journalSeq = fromSync ? lastJournalSeq(database) : 0;
+            if (ids == null) {
+                ids = queryChangedIds(database, selection, selectionArgs);
+            }
+            if (softDelete) {
+                ContentValues tombstone = new ContentValues(1);
+                tombstone.put(PetEntry.COLUMN_PET_DELETED, 1);
+                rowsDeleted = database.update(PetContract.TABLE_NAME, tombstone, selection,
+                        selectionArgs);
+            } else {
+                rowsDeleted = database.delete(PetContract.TABLE_NAME, selection, selectionArgs);
+            }
+            if (fromSync) {
+                forgetJournalAfter(database, journalSeq);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (softDelete && rowsDeleted != 0) {
+            getCompactor().schedule();
+        }
+
+        // If 1 or more rows were deleted, then drop them from the cache and notify all listeners
+        // that the data of those rows has changed
+        if (rowsDeleted != 0) {
+            onPetsChanged(ids);
+        }
+
+        recordWrite(match, PetMetrics.DELETE, uri, startNanos, rowsDeleted);
+        return rowsDeleted;
+    }
+
+    /**
+     * Returns whether the write comes from {@link PetSync}, applying changes pulled from the
+     * sync server.
+     */
+    private static boolean isSyncAdapter(Uri uri) {
+        return uri.getBooleanQueryParameter(
+                PetContract.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER, false);
     }
 
+    private static final String SQL_LAST_JOURNAL_SEQ =
+            "SELECT ifnull(max(seq), 0) FROM " + PetContract.CHANGES_TABLE_NAME;
+
+    /**
+     * Returns the sequence number of the newest change journal entry, or 0 if there is none.
+     * Read inside the write's transaction, so no other write can journal in between.
+     */
+    private long lastJournalSeq(SQLiteDatabase database) {
+        return mStatements.longForQuery(database, SQL_LAST_JOURNAL_SEQ, null);
+    }
+
+    /**
+     * Drops the journal entries the sync adapter's write added after {@code seq}, so changes
+     * pulled from the server aren't pushed back to it. A pet's pending local change is dropped
+     * with them: the server's version wins.
+     */
+    private static void forgetJournalAfter(SQLiteDatabase database, long seq) {
+        database.delete(PetContract.CHANGES_TABLE_NAME, "seq > ?",
+                new String[] { String.valueOf(seq) });
+    }
+
+    private synchronized PetCompactor getCompactor() {
+        if (mCompactor == null) {
+            mCompactor = new PetCompactor(mDbHelper);
+        }
+        return mCompactor;
+    }
+
+    /**
+     * Records a finished write in {@link #mMetrics}, logging it if it was slow.
+     */
+    private void recordWrite(int match, int operation, Uri uri, long startNanos, int rows) {
+        long elapsedNanos = mMetrics.record(match, operation, startNanos, rows);
+        if (elapsedNanos >= PetMetrics.SLOW_OPERATION_NANOS) {
+            Log.w(LOG_TAG, "Slow write to " + uri + ": " + elapsedNanos / 1000000 + " ms, " +
+                    rows + " rows");
+        }
+    }
+
+
+    /**
+     * Prints the provider's cache statistics and call metrics, e.g. for
+     * "adb shell dumpsys activity provider com.example.android.pets".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Pet cache: " + mPetCache.hitCount() + " hits, " +
+                mPetCache.missCount() + " misses");
+        mStatements.dump(writer);
+        writer.println("Breed dictionary: " + mBreeds.size() + " breeds");
+        mSnapshots.dump(writer);
+        mMetrics.dump(writer);
+    }
 
     /**
      * Returns the MIME type of data for the content URI.
@@ -0,0 +1,129 @@
+package com.example.android.pets.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Reads typed pet columns from the current row of a cursor without allocating per row.
+ *
+ * One reader is meant to be reused for every row of every cursor it sees: column indices are
+ * resolved once when the reader is first pointed at a cursor, numbers are read as primitives,
+ * and text can be copied into caller-owned {@link CharArrayBuffer}s instead of new Strings.
+ * Use {@link #toPet()} when an immutable copy of the row has to outlive the cursor.
+ *
+ * Columns the cursor doesn't have can't be read; the getters throw for them.
+ */
+public final class PetRowReader {
+
+    private Cursor mCursor;
+    private int mIdColumnIndex;
+    private int mNameColumnIndex;
+    private int mBreedColumnIndex;
+    private int mGenderColumnIndex;
+    private int mWeightColumnIndex;
+    private int mPhotoOffsetColumnIndex;
+    private int mPhotoLengthColumnIndex;
+
+    /**
+     * Points the reader at the current row of the given cursor, resolving the column indices
+     * if this is a different cursor than last time.
+     *
+     * @return this reader
+     */
+    public PetRowReader moveTo(Cursor cursor) {
+        if (cursor != mCursor) {
+            mCursor = cursor;
+            mIdColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+            mNameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+            mBreedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+            mGenderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
+            mWeightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+            mPhotoOffsetColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO_OFFSET);
+            mPhotoLengthColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO_LENGTH);
+        }
+        return this;
+    }
+
+    public long getId() {
+        return mCursor.getLong(checkColumn(mIdColumnIndex, PetEntry._ID));
+    }
+
+    public String getName() {
+        return mCursor.getString(checkColumn(mNameColumnIndex, PetEntry.COLUMN_PET_NAME));
+    }
+
+    /**
+     * Copies the name into the buffer, growing the buffer only if the name doesn't fit.
+     */
+    public void copyName(CharArrayBuffer buffer) {
+        mCursor.copyStringToBuffer(checkColumn(mNameColumnIndex, PetEntry.COLUMN_PET_NAME),
+                buffer);
+    }
+
+    public String getBreed() {
+        return mCursor.getString(checkColumn(mBreedColumnIndex, PetEntry.COLUMN_PET_BREED));
+    }
+
+    /**
+     * Copies the breed into the buffer, growing the buffer only if the breed doesn't fit.
+     */
+    public void copyBreed(CharArrayBuffer buffer) {
+        mCursor.copyStringToBuffer(checkColumn(mBreedColumnIndex, PetEntry.COLUMN_PET_BREED),
+                buffer);
+    }
+
+    /**
+     * Returns one of the gender constants in {@link PetEntry}.
+     */
+    public int getGender() {
+        return mCursor.getInt(checkColumn(mGenderColumnIndex, PetEntry.COLUMN_PET_GENDER));
+    }
+
+    /**
+     * Returns the weight in kg.
+     */
+    public int getWeight() {
+        return mCursor.getInt(checkColumn(mWeightColumnIndex, PetEntry.COLUMN_PET_WEIGHT));
+    }
+
+    /**
+     * Returns whether the pet has a photo in the {@link PetPhotoStore}.
+     */
+    public boolean hasPhoto() {
+        return !mCursor.isNull(
+                checkColumn(mPhotoOffsetColumnIndex, PetEntry.COLUMN_PET_PHOTO_OFFSET));
+    }
+
+    /**
+     * Returns the offset of the photo in the {@link PetPhotoStore}. Only valid if
+     * {@link #hasPhoto()}.
+     */
+    public long getPhotoOffset() {
+        return mCursor.getLong(
+                checkColumn(mPhotoOffsetColumnIndex, PetEntry.COLUMN_PET_PHOTO_OFFSET));
+    }
+
+    /**
+     * Returns the length of the photo in bytes. Only valid if {@link #hasPhoto()}.
+     */
+    public int getPhotoLength() {
+        return mCursor.getInt(
+                checkColumn(mPhotoLengthColumnIndex, PetEntry.COLUMN_PET_PHOTO_LENGTH));
+    }
+
+    /**
+     * Returns an immutable copy of the current row. The cursor must have every pet column.
+     */
+    public Pet toPet() {
+        return new Pet(getId(), getName(), getBreed(), getGender(), getWeight());
+    }
+
+    private static int checkColumn(int columnIndex, String column) {
+        if (columnIndex == -1) {
+            throw new IllegalStateException("Cursor has no " + column + " column");
+        }
+        return columnIndex;
+    }
+}
@@ -0,0 +1,564 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An immutable, column by column copy of the live pets, in _id order, that pets queries can
+ * be answered from without going to SQLite.
+ *
+ * Every column is a primitive array indexed by row: _ids, genders, weights, breed ids and the
+ * photo reference. Names are packed back to back into a single char array with the start of
+ * each in an int array, and breeds are the ids of {@link PetBreedDictionary}, so the snapshot
+ * holds no object per row. Cursors over it only keep a row range and a column mapping, so any
+ * number of them share the one copy.
+ *
+ * The rows are split into chunks of about {@link #CHUNK_SIZE} consecutive pets, each with its
+ * own arrays. A snapshot never changes; {@link #update} makes a new one that shares every
+ * chunk without a changed pet with this one, and copies only the chunks the changed pets fall
+ * into, so a write costs a chunk or two rather than the whole table.
+ */
+final class PetSnapshot {
+
+    /** Columns a snapshot holds, in the order {@link #SQL_SELECT} reads them */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO_OFFSET,
+            PetEntry.COLUMN_PET_PHOTO_LENGTH};
+
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int BREED = 2;
+    private static final int GENDER = 3;
+    private static final int WEIGHT = 4;
+    private static final int PHOTO_OFFSET = 5;
+    private static final int PHOTO_LENGTH = 6;
+
+    /** Reads the snapshot columns of the live pets; a condition on _id may be appended */
+    static final String SQL_SELECT = "SELECT " +
+            PetEntry._ID + ", " +
+            PetEntry.COLUMN_PET_NAME + ", " +
+            PetEntry.COLUMN_PET_BREED_ID + ", " +
+            PetEntry.COLUMN_PET_GENDER + ", " +
+            PetEntry.COLUMN_PET_WEIGHT + ", " +
+            PetEntry.COLUMN_PET_PHOTO_OFFSET + ", " +
+            PetEntry.COLUMN_PET_PHOTO_LENGTH +
+            " FROM " + PetContract.TABLE_NAME +
+            " WHERE " + PetEntry.COLUMN_PET_DELETED + " = 0";
+
+    /** Order of the rows {@link #SQL_SELECT} must be run with */
+    static final String SQL_ORDER = " ORDER BY " + PetEntry._ID;
+
+    /** Pets per chunk when a snapshot is built; updates may leave chunks smaller */
+    static final int CHUNK_SIZE = 512;
+
+    /** Most pets a chunk grows to through updates before it is split */
+    static final int MAX_CHUNK_SIZE = CHUNK_SIZE * 2;
+
+    /**
+     * A chunk smaller than this is merged into the next chunk an update copies, so deletes
+     * can't leave a snapshot of many tiny chunks.
+     */
+    private static final int MIN_CHUNK_SIZE = CHUNK_SIZE / 4;
+
+    /** The chunks, in _id order; none of them is empty */
+    private final Chunk[] mChunks;
+
+    /** Row of the snapshot each chunk starts at, and the number of rows at the end */
+    private final int[] mChunkStarts;
+
+    private final int mMaxBreedId;
+    private final long mSizeBytes;
+
+    private PetSnapshot(ArrayList<Chunk> chunks) {
+        mChunks = chunks.toArray(new Chunk[chunks.size()]);
+        mChunkStarts = new int[mChunks.length + 1];
+        int maxBreedId = 0;
+        long sizeBytes = 0;
+        for (int i = 0; i < mChunks.length; i++) {
+            mChunkStarts[i + 1] = mChunkStarts[i] + mChunks[i].size;
+            maxBreedId = Math.max(maxBreedId, mChunks[i].maxBreedId);
+            sizeBytes += mChunks[i].sizeBytes();
+        }
+        mMaxBreedId = maxBreedId;
+        mSizeBytes = sizeBytes + mChunkStarts.length * 4L + mChunks.length * 4L;
+    }
+
+    /**
+     * The rows of one chunk. Chunks are shared between snapshots, and never change.
+     */
+    private static final class Chunk {
+        final int size;
+        final long[] ids;
+        final int[] nameStarts;
+        final char[] nameChars;
+        final int[] breedIds;
+        final int maxBreedId;
+        final byte[] genders;
+        final int[] weights;
+
+        /** Photo offsets and lengths; a length of 0 means the pet has no photo */
+        final long[] photoOffsets;
+        final int[] photoLengths;
+
+        Chunk(Builder builder) {
+            size = builder.size;
+            ids = Arrays.copyOf(builder.ids, size);
+            nameStarts = Arrays.copyOf(builder.nameStarts, size + 1);
+            nameChars = Arrays.copyOf(builder.nameChars, builder.nameStarts[size]);
+            breedIds = Arrays.copyOf(builder.breedIds, size);
+            maxBreedId = builder.maxBreedId;
+            genders = Arrays.copyOf(builder.genders, size);
+            weights = Arrays.copyOf(builder.weights, size);
+            photoOffsets = Arrays.copyOf(builder.photoOffsets, size);
+            photoLengths = Arrays.copyOf(builder.photoLengths, size);
+        }
+
+        long sizeBytes() {
+            return ids.length * 8L + nameStarts.length * 4L + nameChars.length * 2L +
+                    breedIds.length * 4L + genders.length + weights.length * 4L +
+                    photoOffsets.length * 8L + photoLengths.length * 4L;
+        }
+    }
+
+    /**
+     * Returns true if the given projection only asks for columns a snapshot holds.
+     */
+    static boolean canServe(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (columnOf(column) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int columnOf(String name) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes a new snapshot with the given pets replaced by the rows of a cursor over
+     * {@link #SQL_SELECT} limited to those pets, in _id order. Pets missing from the cursor
+     * were deleted and are left out.
+     *
+     * A chunk holds the pets from its first _id up to the first _id of the next chunk, so each
+     * changed pet, new ones included, belongs to exactly one chunk. Only those chunks are
+     * copied; the rest are shared with this snapshot.
+     *
+     * @param changedIds the _ids of the changed pets, sorted
+     */
+    PetSnapshot update(long[] changedIds, Cursor changedRows) {
+        ArrayList<Chunk> chunks = new ArrayList<>(mChunks.length + 1);
+        boolean hasRow = changedRows.moveToFirst();
+        int changed = 0;
+
+        if (mChunks.length == 0) {
+            Builder builder = new Builder(CHUNK_SIZE);
+            while (hasRow) {
+                builder.addRow(changedRows);
+                hasRow = changedRows.moveToNext();
+            }
+            builder.finishInto(chunks);
+        }
+
+        for (int c = 0; c < mChunks.length; c++) {
+            Chunk chunk = mChunks[c];
+            long endId = c + 1 < mChunks.length ? mChunks[c + 1].ids[0] : Long.MAX_VALUE;
+
+            int end = changed;
+            while (end < changedIds.length && changedIds[end] < endId) {
+                end++;
+            }
+            if (end == changed) {
+                chunks.add(chunk);
+                continue;
+            }
+
+            Builder builder = new Builder(MAX_CHUNK_SIZE);
+            int last = chunks.size() - 1;
+            if (last >= 0 && chunks.get(last).size < MIN_CHUNK_SIZE) {
+                builder.copyRows(chunks.remove(last));
+            }
+
+            for (int row = 0; row < chunk.size; row++) {
+                long id = chunk.ids[row];
+                // Changed pets that sort before this row are new
+                while (hasRow && changedRows.getLong(ID) < id) {
+                    builder.addRow(changedRows);
+                    hasRow = changedRows.moveToNext();
+                }
+                while (changed < end && changedIds[changed] < id) {
+                    changed++;
+                }
+                if (changed < end && changedIds[changed] == id) {
+                    // Changed or deleted; its new row, if any, is next in the cursor
+                    if (hasRow && changedRows.getLong(ID) == id) {
+                        builder.addRow(changedRows);
+                        hasRow = changedRows.moveToNext();
+                    }
+                } else {
+                    builder.copyRow(chunk, row);
+                }
+            }
+            // New pets after the last row of the chunk, but before the next chunk
+            while (hasRow && changedRows.getLong(ID) < endId) {
+                builder.addRow(changedRows);
+                hasRow = changedRows.moveToNext();
+            }
+            builder.finishInto(chunks);
+            changed = end;
+        }
+        return new PetSnapshot(chunks);
+    }
+
+    /** Returns the number of pets in the snapshot */
+    int size() {
+        return mChunkStarts[mChunks.length];
+    }
+
+    /** Returns the number of chunks the pets are split into */
+    int chunkCount() {
+        return mChunks.length;
+    }
+
+    /** Returns the highest breed id any pet in the snapshot has */
+    int maxBreedId() {
+        return mMaxBreedId;
+    }
+
+    /**
+     * Returns the approximate memory taken by the snapshot's arrays, in bytes. Chunks shared
+     * with other snapshots count in full.
+     */
+    long sizeBytes() {
+        return mSizeBytes;
+    }
+
+    /**
+     * Returns a cursor over the pets with an _id greater than {@code afterId}, at most
+     * {@code limit} of them if the limit is positive, with the given columns.
+     *
+     * @param projection columns the snapshot holds, see {@link #canServe}
+     * @param breedNames breed names indexed by id, up to at least {@link #maxBreedId}
+     */
+    Cursor query(String[] projection, long afterId, long limit, String[] breedNames) {
+        int from = size();
+        for (int c = 0; c < mChunks.length; c++) {
+            Chunk chunk = mChunks[c];
+            if (chunk.ids[chunk.size - 1] > afterId) {
+                int row = Arrays.binarySearch(chunk.ids, 0, chunk.size, afterId);
+                from = mChunkStarts[c] + (row >= 0 ? row + 1 : -row - 1);
+                break;
+            }
+        }
+        int count = size() - from;
+        if (limit > 0 && limit < count) {
+            count = (int) limit;
+        }
+
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = columnOf(projection[i]);
+        }
+        return new SnapshotCursor(this, projection, columns, from, count, breedNames);
+    }
+
+    /**
+     * Collects rows in _id order into chunks of {@link #CHUNK_SIZE}, or of the given size.
+     */
+    static final class Builder {
+        private final ArrayList<Chunk> chunks = new ArrayList<>();
+        private final int chunkSize;
+
+        int size;
+        final long[] ids;
+        final int[] nameStarts;
+        char[] nameChars;
+        final int[] breedIds;
+        int maxBreedId;
+        final byte[] genders;
+        final int[] weights;
+        final long[] photoOffsets;
+        final int[] photoLengths;
+
+        /** _id of the last row added, or 0 before any */
+        long lastId;
+
+        Builder() {
+            this(CHUNK_SIZE);
+        }
+
+        private Builder(int chunkSize) {
+            this.chunkSize = chunkSize;
+            ids = new long[chunkSize];
+            nameStarts = new int[chunkSize + 1];
+            nameChars = new char[chunkSize * 8];
+            breedIds = new int[chunkSize];
+            genders = new byte[chunkSize];
+            weights = new int[chunkSize];
+            photoOffsets = new long[chunkSize];
+            photoLengths = new int[chunkSize];
+        }
+
+        /**
+         * Adds the row a cursor over {@link #SQL_SELECT} is on.
+         */
+        void addRow(Cursor cursor) {
+            String name = cursor.getString(NAME);
+            int start = nameStarts[size];
+            ensureChars(start + name.length());
+            name.getChars(0, name.length(), nameChars, start);
+            nameStarts[size + 1] = start + name.length();
+
+            ids[size] = cursor.getLong(ID);
+            breedIds[size] = cursor.getInt(BREED);
+            maxBreedId = Math.max(maxBreedId, breedIds[size]);
+            genders[size] = (byte) cursor.getInt(GENDER);
+            weights[size] = cursor.getInt(WEIGHT);
+            boolean hasPhoto = !cursor.isNull(PHOTO_LENGTH);
+            photoOffsets[size] = hasPhoto ? cursor.getLong(PHOTO_OFFSET) : 0;
+            photoLengths[size] = hasPhoto ? cursor.getInt(PHOTO_LENGTH) : 0;
+            endRow();
+        }
+
+        private void copyRow(Chunk chunk, int row) {
+            int nameStart = chunk.nameStarts[row];
+            int nameLength = chunk.nameStarts[row + 1] - nameStart;
+            int start = nameStarts[size];
+            ensureChars(start + nameLength);
+            System.arraycopy(chunk.nameChars, nameStart, nameChars, start, nameLength);
+            nameStarts[size + 1] = start + nameLength;
+
+            ids[size] = chunk.ids[row];
+            breedIds[size] = chunk.breedIds[row];
+            maxBreedId = Math.max(maxBreedId, breedIds[size]);
+            genders[size] = chunk.genders[row];
+            weights[size] = chunk.weights[row];
+            photoOffsets[size] = chunk.photoOffsets[row];
+            photoLengths[size] = chunk.photoLengths[row];
+            endRow();
+        }
+
+        private void copyRows(Chunk chunk) {
+            for (int row = 0; row < chunk.size; row++) {
+                copyRow(chunk, row);
+            }
+        }
+
+        private void endRow() {
+            lastId = ids[size];
+            size++;
+            if (size == chunkSize) {
+                seal();
+            }
+        }
+
+        private void ensureChars(int length) {
+            if (length > nameChars.length) {
+                nameChars = Arrays.copyOf(nameChars, Math.max(length, nameChars.length * 2));
+            }
+        }
+
+        /** Turns the rows collected so far into a chunk, and starts the next one */
+        private void seal() {
+            chunks.add(new Chunk(this));
+            size = 0;
+            maxBreedId = 0;
+        }
+
+        private void finishInto(ArrayList<Chunk> into) {
+            if (size > 0) {
+                seal();
+            }
+            into.addAll(chunks);
+            chunks.clear();
+        }
+
+        PetSnapshot build() {
+            ArrayList<Chunk> all = new ArrayList<>();
+            finishInto(all);
+            return new PetSnapshot(all);
+        }
+    }
+
+    /**
+     * A read-only cursor over a range of a snapshot's rows.
+     */
+    private static final class SnapshotCursor extends AbstractCursor {
+        private final PetSnapshot mSnapshot;
+        private final String[] mColumnNames;
+        private final int[] mColumns;
+        private final int mFrom;
+        private final int mCount;
+        private final String[] mBreedNames;
+
+        /** Chunk of the cursor's position, its index, and the position's row in it */
+        private Chunk mChunk;
+        private int mChunkIndex;
+        private int mRow;
+
+        SnapshotCursor(PetSnapshot snapshot, String[] columnNames, int[] columns, int from,
+                       int count, String[] breedNames) {
+            mSnapshot = snapshot;
+            mColumnNames = columnNames;
+            mColumns = columns;
+            mFrom = from;
+            mCount = count;
+            mBreedNames = breedNames;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            int row = mFrom + newPosition;
+            int[] starts = mSnapshot.mChunkStarts;
+            if (mChunk == null || row < starts[mChunkIndex] || row >= starts[mChunkIndex + 1]) {
+                // Usually the next chunk, when reading through; otherwise search for it
+                int next = mChunk == null ? 0 : mChunkIndex + 1;
+                if (next < mSnapshot.mChunks.length && row >= starts[next]
+                        && row < starts[next + 1]) {
+                    mChunkIndex = next;
+                } else {
+                    int index = Arrays.binarySearch(starts, 0, mSnapshot.mChunks.length, row);
+                    mChunkIndex = index >= 0 ? index : -index - 2;
+                }
+                mChunk = mSnapshot.mChunks[mChunkIndex];
+            }
+            mRow = row - starts[mChunkIndex];
+            return true;
+        }
+
+        /** Returns the chunk row of the cursor's position */
+        private int row() {
+            checkPosition();
+            return mRow;
+        }
+
+        @Override
+        public String getString(int column) {
+            int row = row();
+            switch (mColumns[column]) {
+                case NAME:
+                    int start = mChunk.nameStarts[row];
+                    return new String(mChunk.nameChars, start, mChunk.nameStarts[row + 1] - start);
+                case BREED:
+                    int breedId = mChunk.breedIds[row];
+                    return breedId < mBreedNames.length ? mBreedNames[breedId] : null;
+                default:
+                    return isNull(column) ? null : String.valueOf(getLong(column));
+            }
+        }
+
+        @Override
+        public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+            if (mColumns[column] != NAME) {
+                super.copyStringToBuffer(column, buffer);
+                return;
+            }
+            // Straight from the packed names, without making a String
+            int row = row();
+            int start = mChunk.nameStarts[row];
+            int length = mChunk.nameStarts[row + 1] - start;
+            if (buffer.data == null || buffer.data.length < length) {
+                buffer.data = new char[length];
+            }
+            System.arraycopy(mChunk.nameChars, start, buffer.data, 0, length);
+            buffer.sizeCopied = length;
+        }
+
+        @Override
+        public long getLong(int column) {
+            int row = row();
+            switch (mColumns[column]) {
+                case ID:
+                    return mChunk.ids[row];
+                case GENDER:
+                    return mChunk.genders[row];
+                case WEIGHT:
+                    return mChunk.weights[row];
+                case PHOTO_OFFSET:
+                    return mChunk.photoOffsets[row];
+                case PHOTO_LENGTH:
+                    return mChunk.photoLengths[row];
+                default:
+                    // Like SQLite, text reads as a number only if it is one
+                    try {
+                        return Long.parseLong(getString(column));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+            }
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            int row = row();
+            switch (mColumns[column]) {
+                case PHOTO_OFFSET:
+                case PHOTO_LENGTH:
+                    return mChunk.photoLengths[row] == 0;
+                case BREED:
+                    return getString(column) == null;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public int getType(int column) {
+            if (isNull(column)) {
+                return FIELD_TYPE_NULL;
+            }
+            int kind = mColumns[column];
+            return kind == NAME || kind == BREED ? FIELD_TYPE_STRING : FIELD_TYPE_INTEGER;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Keeps the {@link PetSnapshot} {@link PetProvider} answers plain pets queries from, current
+ * with the changes the provider makes.
+ *
+ * The provider reports every changed pet, like it does to {@link PetCache}. The next query
+ * reads just those pets again and swaps in a new snapshot with them merged in, which copies
+ * only the chunks of the snapshot they fall into. Only when too many pets changed at once, or
+ * at first, is the whole table read, and that happens on a background thread while queries go
+ * to SQLite.
+ *
+ * The whole table is read a page at a time, each page a query of its own that starts after
+ * the last _id of the one before. A single query could be read in several passes, one per
+ * cursor window, each skipping ahead by row position, so a pet deleted between two passes
+ * would shift a live pet out of the read. Seeking by _id can't skip anything, and every pet
+ * changed while the pages are read is reported and read again by the next query. A
+ * transaction around the read would keep it consistent too, but would hold the database's
+ * only writable connection for the whole read.
+ *
+ * A snapshot larger than the cache's limit is dropped, and the provider goes back to querying
+ * SQLite. The table is read again after the next {@link #MAX_CHANGED_PETS} changes or the
+ * next large write, and a snapshot that fits then is used as before. The size of the current
+ * snapshot is part of the provider's dump.
+ */
+final class PetSnapshotCache {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetSnapshotCache.class.getSimpleName();
+
+    /**
+     * Most memory a snapshot may take, unless the cache is given another limit. A pet takes
+     * 33 bytes plus two per character of its name, so 100,000 pets with names of 20
+     * characters take about 7 MiB.
+     */
+    static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * Most changed pets read back into a snapshot at once; SQLite allows 999 variables in a
+     * statement. Past this, the snapshot is rebuilt from the whole table.
+     */
+    static final int MAX_CHANGED_PETS = 500;
+
+    /** Pets read per query when the snapshot is rebuilt */
+    static final int REBUILD_PAGE_SIZE = 1000;
+
+    private static final String SQL_REBUILD_PAGE = PetSnapshot.SQL_SELECT + " AND " +
+            PetEntry._ID + " > ?" + PetSnapshot.SQL_ORDER + " LIMIT " + REBUILD_PAGE_SIZE;
+
+    private volatile PetSnapshot mSnapshot;
+
+    /** _ids of the pets changed since the snapshot was read; guarded by this */
+    private final HashSet<Long> mChangedIds = new HashSet<>();
+
+    /** Set when the snapshot must be rebuilt from the whole table; guarded by this */
+    private boolean mRebuild = true;
+
+    /** Set while a rebuild is running; guarded by this */
+    private boolean mRebuilding;
+
+    private final long mMaxBytes;
+
+    /**
+     * Set while the last snapshot read went over {@link #mMaxBytes}; until the table is read
+     * again, queries go to the database. Guarded by this.
+     */
+    private boolean mOverLimit;
+
+    private long mHits;
+    private long mMisses;
+    private long mUpdates;
+    private long mRebuilds;
+
+    /**
+     * @param maxBytes most memory a snapshot may take; see {@link #DEFAULT_MAX_BYTES}
+     */
+    PetSnapshotCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the snapshot, brought up to date with the changes reported so far, or null if
+     * there is none yet, in which case the caller has to query the database.
+     */
+    synchronized PetSnapshot get(SQLiteDatabase database) {
+        // A query inside a transaction must see the transaction's own writes
+        if (database.inTransaction()) {
+            return null;
+        }
+        // Too many pets for a snapshot, unless enough changed to try again
+        if (mOverLimit && !mRebuild) {
+            mMisses++;
+            return null;
+        }
+
+        // While a rebuild reads, the old snapshot misses the changes that made it necessary
+        if (mRebuild || mRebuilding || mSnapshot == null) {
+            mMisses++;
+            startRebuild(database);
+            return null;
+        }
+        if (mChangedIds.isEmpty()) {
+            mHits++;
+            return mSnapshot;
+        }
+
+        long[] changedIds = new long[mChangedIds.size()];
+        int i = 0;
+        for (long id : mChangedIds) {
+            changedIds[i++] = id;
+        }
+        Arrays.sort(changedIds);
+        mChangedIds.clear();
+        mUpdates++;
+
+        try {
+            return update(database, changedIds);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to update the pet snapshot", e);
+            invalidateAll();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the changed pets again and publishes a snapshot with them merged in. Must hold
+     * the lock, so updates never race each other.
+     */
+    private PetSnapshot update(SQLiteDatabase database, long[] changedIds) {
+        StringBuilder sql = new StringBuilder(PetSnapshot.SQL_SELECT);
+        sql.append(" AND ").append(PetEntry._ID).append(" IN (");
+        String[] args = new String[changedIds.length];
+        for (int i = 0; i < changedIds.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            args[i] = String.valueOf(changedIds[i]);
+        }
+        sql.append(')').append(PetSnapshot.SQL_ORDER);
+
+        Cursor cursor = database.rawQuery(sql.toString(), args);
+        try {
+            return publish(mSnapshot.update(changedIds, cursor));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads the whole table into a new snapshot on a background thread, unless that is
+     * already happening. Must hold the lock.
+     */
+    private void startRebuild(final SQLiteDatabase database) {
+        if (mRebuilding) {
+            return;
+        }
+        mRebuilding = true;
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuild(database);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to build the pet snapshot", e);
+                    invalidateAll();
+                } finally {
+                    synchronized (PetSnapshotCache.this) {
+                        mRebuilding = false;
+                    }
+                }
+            }
+        });
+    }
+
+    private void rebuild(SQLiteDatabase database) {
+        synchronized (this) {
+            // Changes from here on are applied on top of what is read below
+            mRebuild = false;
+            mChangedIds.clear();
+            mRebuilds++;
+        }
+
+        // Read without the lock, so queries go to the database meanwhile instead of waiting
+        PetSnapshot.Builder builder = new PetSnapshot.Builder();
+        while (true) {
+            int count;
+            Cursor cursor = database.rawQuery(SQL_REBUILD_PAGE,
+                    new String[] { String.valueOf(builder.lastId) });
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    builder.addRow(cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (count < REBUILD_PAGE_SIZE) {
+                break;
+            }
+        }
+        PetSnapshot snapshot = builder.build();
+
+        synchronized (this) {
+            // Unless everything changed again while reading
+            if (!mRebuild) {
+                publish(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Makes the snapshot current, or drops it if it is over {@link #mMaxBytes}. Must hold the
+     * lock.
+     */
+    private PetSnapshot publish(PetSnapshot snapshot) {
+        if (snapshot.sizeBytes() > mMaxBytes) {
+            if (!mOverLimit) {
+                Log.w(LOG_TAG, "Pet snapshot of " + snapshot.size() + " pets takes " +
+                        snapshot.sizeBytes() / 1024 + " KiB, over the limit of " +
+                        mMaxBytes / 1024 + " KiB; querying the database instead");
+            }
+            mOverLimit = true;
+            mSnapshot = null;
+            return null;
+        }
+        mOverLimit = false;
+        mSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Notes that the pet with the given _id was inserted, changed or deleted.
+     */
+    synchronized void invalidate(long id) {
+        if (mRebuild) {
+            return;
+        }
+        mChangedIds.add(id);
+        if (mChangedIds.size() > MAX_CHANGED_PETS) {
+            // Cheaper to read everything again than to keep counting
+            invalidateAll();
+        }
+    }
+
+    /**
+     * Notes that any number of pets may have changed, so the snapshot must be read again.
+     */
+    synchronized void invalidateAll() {
+        mRebuild = true;
+        mChangedIds.clear();
+    }
+
+    /**
+     * Prints the size of the snapshot and how often it answered queries.
+     */
+    synchronized void dump(PrintWriter writer) {
+        PetSnapshot snapshot = mSnapshot;
+        writer.println("Pet snapshot: " +
+                (snapshot != null ? snapshot.size() + " pets in " + snapshot.chunkCount() +
+                        " chunks, " + snapshot.sizeBytes() / 1024 + " KiB"
+                        : mOverLimit ? "over the limit" : "not built") +
+                " of " + mMaxBytes / 1024 + " KiB allowed; " + mHits + " hits, " +
+                mMisses + " misses, " + mUpdates + " updates, " + mRebuilds + " rebuilds");
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the SQL and compiled statements of {@link PetProvider}'s hot paths, so the same shape
+ * of call isn't rebuilt and reparsed every time.
+ *
+ * Queries are cached as SQL text by their shape: table, projection, selection, sort order and
+ * limit, but not the selection arguments, which are always bound. The same shape therefore
+ * always produces the same SQL, which is what lets each connection's prepared statement cache
+ * (sized by {@link PetDbHelper}) reuse the compiled query instead of parsing it again.
+ *
+ * Inserts and single-value lookups go further and keep a compiled {@link SQLiteStatement}
+ * that is only rebound, which also saves the prepare SQLiteDatabase runs whenever a new
+ * statement object is created. Statements belong to the database they were compiled on, which
+ * {@link PetDbHelper} keeps open for the life of the process.
+ *
+ * Both caches are LRU bounded; their hit and miss counts are part of the provider's dump.
+ */
+final class PetStatementCache {
+
+    /** Query shapes kept; the app only has a handful, the rest is for ad hoc callers */
+    static final int MAX_QUERY_SHAPES = 64;
+
+    /** Compiled statements kept */
+    static final int MAX_STATEMENTS = 16;
+
+    /**
+     * The parts of a query that decide its SQL.
+     */
+    private static final class QueryShape {
+        final String table;
+        final String[] projection;
+        final String selection;
+        final String sortOrder;
+        final String limit;
+        private final int mHash;
+
+        QueryShape(String table, String[] projection, String selection, String sortOrder,
+                   String limit) {
+            this.table = table;
+            this.projection = projection;
+            this.selection = selection;
+            this.sortOrder = sortOrder;
+            this.limit = limit;
+            mHash = Arrays.hashCode(new Object[] {
+                    table, Arrays.hashCode(projection), selection, sortOrder, limit});
+        }
+
+        /** Returns a copy the caller can't change, for use as a cache key */
+        QueryShape freeze() {
+            return new QueryShape(table, projection != null ? projection.clone() : null,
+                    selection, sortOrder, limit);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof QueryShape)) {
+                return false;
+            }
+            QueryShape other = (QueryShape) o;
+            return mHash == other.mHash
+                    && table.equals(other.table)
+                    && Arrays.equals(projection, other.projection)
+                    && equal(selection, other.selection)
+                    && equal(sortOrder, other.sortOrder)
+                    && equal(limit, other.limit);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private final LruCache<QueryShape, String> mQueries = new LruCache<>(MAX_QUERY_SHAPES);
+
+    /**
+     * Compiled statements by SQL. The cache holds a reference on each statement and every
+     * user holds another while running it, so an evicted statement is only closed once the
+     * last user is done with it. Guarded by itself for compiling, since a miss compiles.
+     */
+    private final LruCache<String, SQLiteStatement> mStatements =
+            new LruCache<String, SQLiteStatement>(MAX_STATEMENTS) {
+                @Override
+                protected void entryRemoved(boolean evicted, String sql,
+                                            SQLiteStatement oldStatement,
+                                            SQLiteStatement newStatement) {
+                    oldStatement.releaseReference();
+                }
+            };
+
+    /**
+     * Same as {@link SQLiteDatabase#query(String, String[], String, String[], String, String,
+     * String, String)} without grouping, with the SQL taken from the cache.
+     */
+    Cursor query(SQLiteDatabase database, String table, String[] projection, String selection,
+                 String[] selectionArgs, String sortOrder, String limit) {
+        QueryShape shape = new QueryShape(table, projection, selection, sortOrder, limit);
+        String sql = mQueries.get(shape);
+        if (sql == null) {
+            sql = SQLiteQueryBuilder.buildQueryString(false, table, projection, selection,
+                    null, null, sortOrder, limit);
+            mQueries.put(shape.freeze(), sql);
+        }
+        return database.rawQueryWithFactory(null, sql, selectionArgs, table);
+    }
+
+    /**
+     * Same as {@link SQLiteDatabase#insertOrThrow}, through a compiled statement for the set of
+     * columns in the values.
+     *
+     * @return the _id of the new row
+     */
+    long insert(SQLiteDatabase database, String table, ContentValues values) {
+        // Sorted, so the same columns always make the same statement
+        TreeMap<String, Object> columns = new TreeMap<>();
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            columns.put(value.getKey(), value.getValue());
+        }
+
+        StringBuilder sql = new StringBuilder(128);
+        sql.append("INSERT INTO ").append(table).append(" (");
+        int i = 0;
+        for (String column : columns.keySet()) {
+            sql.append(i++ == 0 ? "" : ", ").append(column);
+        }
+        sql.append(") VALUES (");
+        for (i = 0; i < columns.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+
+        SQLiteStatement statement = acquire(database, sql.toString());
+        try {
+            synchronized (statement) {
+                try {
+                    i = 1;
+                    for (Object value : columns.values()) {
+                        DatabaseUtils.bindObjectToProgram(statement, i++, value);
+                    }
+                    return statement.executeInsert();
+                } finally {
+                    statement.clearBindings();
+                }
+            }
+        } finally {
+            statement.releaseReference();
+        }
+    }
+
+    /**
+     * Same as {@link DatabaseUtils#longForQuery(SQLiteDatabase, String, String[])}, through a
+     * compiled statement.
+     */
+    long longForQuery(SQLiteDatabase database, String sql, String[] selectionArgs) {
+        SQLiteStatement statement = acquire(database, sql);
+        try {
+            synchronized (statement) {
+                try {
+                    if (selectionArgs != null) {
+                        statement.bindAllArgsAsStrings(selectionArgs);
+                    }
+                    return statement.simpleQueryForLong();
+                } finally {
+                    statement.clearBindings();
+                }
+            }
+        } finally {
+            statement.releaseReference();
+        }
+    }
+
+    /**
+     * Returns the compiled statement for the SQL, compiling it on a miss, with a reference
+     * the caller must release.
+     */
+    private SQLiteStatement acquire(SQLiteDatabase database, String sql) {
+        synchronized (mStatements) {
+            SQLiteStatement statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = database.compileStatement(sql);
+                mStatements.put(sql, statement);
+            }
+            statement.acquireReference();
+            return statement;
+        }
+    }
+
+    /**
+     * Prints the hit rates of both caches.
+     */
+    void dump(PrintWriter writer) {
+        writer.println("Query SQL cache: " + mQueries);
+        writer.println("Statement cache: " + mStatements);
+    }
+}
@@ -0,0 +1,533 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.support.annotation.WorkerThread;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the pets in step with a sync server shared by the shelter's devices, by exchanging
+ * deltas rather than whole databases: a push sends the pets changed here since the last push,
+ * read from the change journal; a pull fetches the pets other devices changed since the last
+ * pull.
+ *
+ * Both directions go in batches of {@link #BATCH_SIZE} pets, as gzip compressed JSON:
+ * <ul>
+ * <li>Push: {@code POST <server>/changes} with {@code {"device": ..., "changes": [...]}}. The
+ * server answers {@code {"acked": seq}}, the highest journal sequence number it has stored.
+ * <li>Pull: {@code GET <server>/changes?device=...&since=<cursor>&limit=<n>}. The server answers
+ * {@code {"changes": [...], "cursor": ..., "more": ...}}, leaving out the device's own changes.
+ * </ul>
+ * A change is {@code {"id": sync id, "deleted": false, "name": ..., "breed": ..., "gender": ...,
+ * "weight": ...}}, or {@code {"id": sync id, "deleted": true}} for a deleted pet. Pushed changes
+ * also carry their journal {@code "seq"}.
+ *
+ * Progress is saved after every batch, so an interrupted sync resumes where it stopped: the
+ * acked sequence number is saved and the acked journal entries dropped, so nothing the server
+ * acked is sent again, and the pull cursor is saved once the batch is applied. A batch that was
+ * sent or applied but not yet saved is repeated, so the server must accept the same change
+ * twice. Applying a pulled change twice is harmless.
+ *
+ * Conflicts resolve towards the server: local changes are pushed before pulling, and a pulled
+ * change replaces any local change to the same pet that is still waiting in the journal.
+ * A pulled change the provider would reject, such as a new pet without a breed, is logged and
+ * skipped, since failing its batch would stop every later sync at the same batch.
+ * Photos aren't synced.
+ */
+public final class PetSync {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetSync.class.getSimpleName();
+
+    /** Pets pushed or pulled per request */
+    static final int BATCH_SIZE = 500;
+
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+
+    /** Shared preferences holding the sync progress */
+    private static final String PREFS_NAME = "pet_sync";
+    private static final String PREF_DEVICE_ID = "device_id";
+    private static final String PREF_ACKED_SEQ = "acked_seq";
+    private static final String PREF_PULL_CURSOR = "pull_cursor";
+
+    /**
+     * The journal entries after an acked sequence number, with the current state of their
+     * pets. A pet that is gone, or only a tombstone, is pushed as deleted.
+     */
+    private static final String SQL_PENDING_CHANGES = "SELECT c.seq, c." +
+            PetEntry.COLUMN_PET_SYNC_ID + ", " +
+            "p." + PetEntry.COLUMN_PET_DELETED + ", " +
+            "p." + PetEntry.COLUMN_PET_NAME + ", " +
+            "b." + PetEntry.COLUMN_PET_BREED + ", " +
+            "p." + PetEntry.COLUMN_PET_GENDER + ", " +
+            "p." + PetEntry.COLUMN_PET_WEIGHT +
+            " FROM " + PetContract.CHANGES_TABLE_NAME + " c LEFT JOIN " +
+            PetContract.TABLE_NAME + " p ON p." + PetEntry.COLUMN_PET_SYNC_ID + " = c." +
+            PetEntry.COLUMN_PET_SYNC_ID + " LEFT JOIN " + PetContract.BREEDS_TABLE_NAME +
+            " b ON b." + PetEntry.COLUMN_PET_BREED_ID + " = p." + PetEntry.COLUMN_PET_BREED_ID +
+            " WHERE c.seq > ? ORDER BY c.seq LIMIT " + BATCH_SIZE;
+
+    /**
+     * Receives the result of a sync on the main thread.
+     */
+    public interface Callback {
+        /**
+         * Called when the sync finished with nothing left to push or pull.
+         */
+        void onSyncFinished(int pushed, int pulled);
+
+        /**
+         * Called when the sync stopped early. The batches done before the failure are kept,
+         * and the next sync picks up from there.
+         */
+        void onSyncFailed(Exception e);
+    }
+
+    /** Runs the syncs of every instance, one at a time */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final ContentResolver mResolver;
+    private final PetDbHelper mDbHelper;
+    private final SharedPreferences mPrefs;
+    private final String mServerUrl;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param serverUrl base URL of the sync server, e.g. "https://sync.example.com/shelter"
+     */
+    public PetSync(Context context, String serverUrl) {
+        this(context, serverUrl, PetDbHelper.getInstance(context.getApplicationContext()));
+    }
+
+    PetSync(Context context, String serverUrl, PetDbHelper dbHelper) {
+        Context appContext = context.getApplicationContext();
+        mResolver = appContext.getContentResolver();
+        mDbHelper = dbHelper;
+        mPrefs = appContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mServerUrl = serverUrl.endsWith("/")
+                ? serverUrl.substring(0, serverUrl.length() - 1) : serverUrl;
+    }
+
+    /**
+     * Queues a sync on a background thread. Syncs run one at a time.
+     */
+    public void requestSync(final Callback callback) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final int pushed = push();
+                    final int pulled = pull();
+                    Log.i(LOG_TAG, "Synced: pushed " + pushed + ", pulled " + pulled);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSyncFinished(pushed, pulled);
+                        }
+                    });
+                } catch (final IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Sync failed", e);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSyncFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Pushes the journal in batches until the server has acked all of it.
+     *
+     * @return the number of journal entries acked
+     */
+    @WorkerThread
+    private int push() throws IOException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int pushed = 0;
+        while (true) {
+            long ackedSeq = mPrefs.getLong(PREF_ACKED_SEQ, 0);
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int count;
+            long lastSeq;
+            Cursor cursor = database.rawQuery(SQL_PENDING_CHANGES,
+                    new String[] { String.valueOf(ackedSeq) });
+            try {
+                count = cursor.getCount();
+                if (count == 0) {
+                    return pushed;
+                }
+                lastSeq = writePushBody(cursor, body);
+            } finally {
+                cursor.close();
+            }
+
+            long newAckedSeq = post(body.toByteArray());
+            if (newAckedSeq <= ackedSeq || newAckedSeq > lastSeq) {
+                throw new IOException("Sync server acked " + newAckedSeq +
+                        " for changes " + ackedSeq + " to " + lastSeq);
+            }
+
+            // Save the ack before dropping the entries, so they are never sent again. A pet
+            // changed again since it was read has a newer entry, which stays.
+            mPrefs.edit().putLong(PREF_ACKED_SEQ, newAckedSeq).commit();
+            pushed += database.delete(PetContract.CHANGES_TABLE_NAME, "seq <= ?",
+                    new String[] { String.valueOf(newAckedSeq) });
+
+            if (count < BATCH_SIZE && newAckedSeq == lastSeq) {
+                return pushed;
+            }
+        }
+    }
+
+    /**
+     * Writes the push request for the pending changes to the stream, gzip compressed.
+     *
+     * @return the sequence number of the last change written
+     */
+    private long writePushBody(Cursor cursor, OutputStream out) throws IOException {
+        long lastSeq = 0;
+        JsonWriter writer = new JsonWriter(
+                new OutputStreamWriter(new GZIPOutputStream(out), "UTF-8"));
+        try {
+            writer.beginObject();
+            writer.name("device").value(getDeviceId());
+            writer.name("changes").beginArray();
+            while (cursor.moveToNext()) {
+                lastSeq = cursor.getLong(0);
+                boolean deleted = cursor.isNull(2) || cursor.getInt(2) != 0;
+
+                writer.beginObject();
+                writer.name("seq").value(lastSeq);
+                writer.name("id").value(cursor.getString(1));
+                writer.name("deleted").value(deleted);
+                if (!deleted) {
+                    writer.name(PetEntry.COLUMN_PET_NAME).value(cursor.getString(3));
+                    writer.name(PetEntry.COLUMN_PET_BREED).value(cursor.getString(4));
+                    writer.name(PetEntry.COLUMN_PET_GENDER).value(cursor.getInt(5));
+                    writer.name(PetEntry.COLUMN_PET_WEIGHT).value(cursor.getInt(6));
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        } finally {
+            // Finishes the gzip stream too
+            writer.close();
+        }
+        return lastSeq;
+    }
+
+    /**
+     * Sends a push request and returns the sequence number the server acked.
+     */
+    private long post(byte[] body) throws IOException {
+        HttpURLConnection connection = open(new URL(mServerUrl + "/changes"));
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            JsonReader reader = openResponse(connection);
+            try {
+                long acked = -1;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("acked".equals(reader.nextName())) {
+                        acked = reader.nextLong();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                return acked;
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * A pulled change to one pet.
+     */
+    private static class Change {
+        String syncId;
+        boolean deleted;
+        final ContentValues values = new ContentValues();
+    }
+
+    /**
+     * Pulls and applies batches of changes until the server has no more.
+     *
+     * @return the number of changes pulled
+     */
+    @WorkerThread
+    private int pull() throws IOException {
+        int pulled = 0;
+        while (true) {
+            long since = mPrefs.getLong(PREF_PULL_CURSOR, 0);
+            URL url = new URL(mServerUrl + "/changes?device=" + getDeviceId() +
+                    "&since=" + since + "&limit=" + BATCH_SIZE);
+
+            ArrayList<Change> changes = new ArrayList<>();
+            int received = 0;
+            long cursor = since;
+            boolean more = false;
+            HttpURLConnection connection = open(url);
+            try {
+                JsonReader reader = openResponse(connection);
+                try {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if ("changes".equals(name)) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                Change change = readChange(reader);
+                                if (change != null) {
+                                    changes.add(change);
+                                }
+                                received++;
+                            }
+                            reader.endArray();
+                        } else if ("cursor".equals(name)) {
+                            cursor = reader.nextLong();
+                        } else if ("more".equals(name)) {
+                            more = reader.nextBoolean();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+
+            apply(changes);
+            mPrefs.edit().putLong(PREF_PULL_CURSOR, cursor).commit();
+            pulled += changes.size();
+
+            if (!more || received == 0) {
+                return pulled;
+            }
+        }
+    }
+
+    /**
+     * Reads one pulled change.
+     *
+     * @return the change, or null if it has no id or a value of the wrong type (a null name,
+     * say), in which case it is logged and skipped
+     */
+    private static Change readChange(JsonReader reader) throws IOException {
+        Change change = new Change();
+        String invalidValue = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            try {
+                switch (name) {
+                    case "id":
+                        change.syncId = reader.nextString();
+                        break;
+                    case "deleted":
+                        change.deleted = reader.nextBoolean();
+                        break;
+                    case PetEntry.COLUMN_PET_NAME:
+                    case PetEntry.COLUMN_PET_BREED:
+                        change.values.put(name, reader.nextString());
+                        break;
+                    case PetEntry.COLUMN_PET_GENDER:
+                    case PetEntry.COLUMN_PET_WEIGHT:
+                        change.values.put(name, reader.nextInt());
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            } catch (IllegalStateException | NumberFormatException e) {
+                // The value wasn't consumed, so the rest of the response still reads
+                reader.skipValue();
+                invalidValue = name;
+            }
+        }
+        reader.endObject();
+
+        if (change.syncId == null || invalidValue != null) {
+            Log.w(LOG_TAG, "Skipping pulled change " + change.syncId +
+                    (invalidValue != null ? " with invalid " + invalidValue : " without an id"));
+            return null;
+        }
+        return change;
+    }
+
+    /**
+     * Applies a batch of pulled changes through the provider, as one transaction, marked as
+     * coming from the sync adapter so they aren't journaled and pushed back. Changes the
+     * provider would reject are skipped, so they can't fail the rest of the batch.
+     */
+    private void apply(ArrayList<Change> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        // Pets that exist here, tombstones included, are updated; the rest are inserted. A
+        // tombstoned pet ignores the update, so a deletion made here isn't undone.
+        HashSet<String> existing = findExisting(changes);
+
+        Uri uri = PetContract.buildSyncAdapterUri(PetContract.CONTENT_URI);
+        String selection = PetEntry.COLUMN_PET_SYNC_ID + "=?";
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            String[] selectionArgs = { change.syncId };
+            if (change.deleted) {
+                operations.add(ContentProviderOperation
+                        .newDelete(PetContract.buildSoftDeleteUri(uri))
+                        .withSelection(selection, selectionArgs)
+                        .build());
+                continue;
+            }
+
+            boolean isInsert = !existing.contains(change.syncId);
+            try {
+                PetValidator.validate(change.values, isInsert, true);
+            } catch (IllegalArgumentException e) {
+                Log.w(LOG_TAG, "Skipping invalid pulled pet " + change.syncId + ": " +
+                        e.getMessage());
+                continue;
+            }
+
+            if (isInsert) {
+                change.values.put(PetEntry.COLUMN_PET_SYNC_ID, change.syncId);
+                operations.add(ContentProviderOperation.newInsert(uri)
+                        .withValues(change.values)
+                        .build());
+                // A later change to the same pet in this batch updates it
+                existing.add(change.syncId);
+            } else {
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValues(change.values)
+                        .withSelection(selection, selectionArgs)
+                        .build());
+            }
+        }
+
+        try {
+            mResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("Failed to apply pulled changes", e);
+        }
+    }
+
+    /**
+     * Returns the sync ids of the changes that name a pet in the database.
+     */
+    private HashSet<String> findExisting(ArrayList<Change> changes) {
+        StringBuilder selection = new StringBuilder(PetEntry.COLUMN_PET_SYNC_ID + " IN (");
+        String[] selectionArgs = new String[changes.size()];
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i] = changes.get(i).syncId;
+        }
+        selection.append(')');
+
+        HashSet<String> existing = new HashSet<>();
+        Cursor cursor = mDbHelper.getReadableDatabase().query(PetContract.TABLE_NAME,
+                new String[] { PetEntry.COLUMN_PET_SYNC_ID }, selection.toString(),
+                selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                existing.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return existing;
+    }
+
+    private static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty("Accept", "application/json");
+        // Asking for gzip explicitly means the response isn't unzipped for us
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    /**
+     * Checks the response status and returns a reader over the (unzipped) JSON body.
+     */
+    private static JsonReader openResponse(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Sync server answered " + status + " for " +
+                    connection.getURL());
+        }
+        InputStream in = new BufferedInputStream(connection.getInputStream());
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        return new JsonReader(new InputStreamReader(in, "UTF-8"));
+    }
+
+    /**
+     * Returns the id this device syncs under, creating it on first use.
+     */
+    private String getDeviceId() {
+        String deviceId = mPrefs.getString(PREF_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            mPrefs.edit().putString(PREF_DEVICE_ID, deviceId).commit();
+        }
+        return deviceId;
+    }
+}
@@ -0,0 +1,395 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.support.annotation.WorkerThread;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Streams pets between files and {@link PetProvider}, for moving a shelter between devices.
+ *
+ * Both directions use constant memory however large the file or table is. Imports parse one
+ * record at a time and insert in chunks of {@link #IMPORT_CHUNK_SIZE} pets, each chunk in its
+ * own transaction, so a failed import keeps the chunks before the bad record. Exports page
+ * through the provider by _id instead of holding one cursor over the whole table.
+ *
+ * Files hold the name, breed, gender and weight of each pet; _ids are not carried over, since
+ * they belong to the database the pets came from.
+ */
+public final class PetTransfer {
+
+    /** Number of pets inserted per transaction while importing */
+    static final int IMPORT_CHUNK_SIZE = 1000;
+
+    /** Number of pets queried per page while exporting */
+    static final int EXPORT_PAGE_SIZE = 1000;
+
+    /** Size of the byte and char buffers in front of the file channels */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Columns written to and read from files, in CSV column order */
+    private static final String[] COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    private static final String[] EXPORT_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    /**
+     * File formats for pets.
+     */
+    public enum Format {
+        /** CSV with a header row naming the columns, as in RFC 4180 */
+        CSV,
+
+        /** A JSON array of objects, one per pet, keyed by column name */
+        JSON
+    }
+
+    /**
+     * Reports progress of an import or export, once per chunk or page.
+     */
+    public interface ProgressListener {
+        /**
+         * @param pets number of pets imported or exported so far
+         */
+        void onProgress(long pets);
+    }
+
+    private PetTransfer() {}
+
+    /**
+     * Reads pets from the given stream and inserts them. The stream is closed when done.
+     *
+     * @return the number of pets imported
+     * @throws IOException if the stream can't be read or holds an invalid pet; pets in chunks
+     *                     before the invalid one stay imported
+     */
+    @WorkerThread
+    public static long importPets(ContentResolver resolver, InputStream in, Format format,
+                                  ProgressListener listener) throws IOException {
+        Reader reader = new BufferedReader(
+                Channels.newReader(Channels.newChannel(in), UTF_8.newDecoder(), BUFFER_SIZE),
+                BUFFER_SIZE);
+        ChunkedInserter inserter = new ChunkedInserter(resolver, listener);
+        try {
+            if (format == Format.CSV) {
+                importCsv(reader, inserter);
+            } else {
+                importJson(reader, inserter);
+            }
+            inserter.flush();
+        } finally {
+            reader.close();
+        }
+        return inserter.mImported;
+    }
+
+    /**
+     * Writes every pet to the given stream. The stream is closed when done.
+     *
+     * @return the number of pets exported
+     */
+    @WorkerThread
+    public static long exportPets(ContentResolver resolver, OutputStream out, Format format,
+                                  ProgressListener listener) throws IOException {
+        Writer writer = new BufferedWriter(
+                Channels.newWriter(Channels.newChannel(out), UTF_8.newEncoder(), BUFFER_SIZE),
+                BUFFER_SIZE);
+        try {
+            if (format == Format.CSV) {
+                return exportCsv(resolver, writer, listener);
+            } else {
+                return exportJson(resolver, writer, listener);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void importCsv(Reader reader, ChunkedInserter inserter) throws IOException {
+        CsvReader csv = new CsvReader(reader);
+        List<String> fields = new ArrayList<>();
+
+        // The header row says which column is where; unknown columns are ignored
+        if (!csv.readRecord(fields)) {
+            return;
+        }
+        int[] columnIndices = new int[COLUMNS.length];
+        Arrays.fill(columnIndices, -1);
+        for (int i = 0; i < fields.size(); i++) {
+            int column = Arrays.asList(COLUMNS).indexOf(fields.get(i).trim());
+            if (column != -1) {
+                columnIndices[column] = i;
+            }
+        }
+        if (columnIndices[0] == -1) {
+            throw new IOException("CSV header has no " + PetEntry.COLUMN_PET_NAME + " column");
+        }
+
+        while (csv.readRecord(fields)) {
+            String[] values = new String[COLUMNS.length];
+            for (int column = 0; column < COLUMNS.length; column++) {
+                int index = columnIndices[column];
+                values[column] = index != -1 && index < fields.size() ? fields.get(index) : null;
+            }
+            inserter.add(toContentValues(values, "record " + csv.getRecordNumber()));
+        }
+    }
+
+    private static void importJson(Reader reader, ChunkedInserter inserter) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        HashMap<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            columns.put(COLUMNS[i], i);
+        }
+
+        long petNumber = 0;
+        json.beginArray();
+        while (json.hasNext()) {
+            petNumber++;
+            String[] values = new String[COLUMNS.length];
+
+            json.beginObject();
+            while (json.hasNext()) {
+                Integer column = columns.get(json.nextName());
+                if (column == null || json.peek() == JsonToken.NULL) {
+                    json.skipValue();
+                } else {
+                    // nextString() also reads numbers, as their text
+                    values[column] = json.nextString();
+                }
+            }
+            json.endObject();
+
+            inserter.add(toContentValues(values, "pet " + petNumber));
+        }
+        json.endArray();
+    }
+
+    /**
+     * Turns the name, breed, gender and weight read from a file into provider values, checking
+     * them the way {@link PetProvider} would.
+     */
+    private static ContentValues toContentValues(String[] values, String where) throws IOException {
+        String name = values[0] != null ? values[0].trim() : "";
+        if (name.isEmpty()) {
+            throw new IOException("Missing name in " + where);
+        }
+        String breed = values[1] != null ? values[1].trim() : "";
+        int gender = parseInt(values[2], PetEntry.GENDER_UNKNOWN, where);
+        if (!PetEntry.isValidGender(gender)) {
+            throw new IOException("Invalid gender in " + where);
+        }
+        int weight = parseInt(values[3], 0, where);
+        if (weight < 0) {
+            throw new IOException("Invalid weight in " + where);
+        }
+
+        ContentValues contentValues = new ContentValues(COLUMNS.length);
+        contentValues.put(PetEntry.COLUMN_PET_NAME, name);
+        contentValues.put(PetEntry.COLUMN_PET_BREED, breed);
+        contentValues.put(PetEntry.COLUMN_PET_GENDER, gender);
+        contentValues.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return contentValues;
+    }
+
+    private static int parseInt(String value, int defaultValue, String where) throws IOException {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number \"" + value + "\" in " + where);
+        }
+    }
+
+    private static long exportCsv(ContentResolver resolver, final Writer writer,
+                                  ProgressListener listener) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(COLUMNS[i]);
+        }
+        writer.write('\n');
+
+        // Text is copied through reused buffers, so rows are written without new Strings
+        final CharArrayBuffer buffer = new CharArrayBuffer(64);
+        return exportPages(resolver, listener, new RowWriter() {
+            @Override
+            public void write(PetRowReader row) throws IOException {
+                row.copyName(buffer);
+                writeCsvField(writer, buffer);
+                writer.write(',');
+                row.copyBreed(buffer);
+                writeCsvField(writer, buffer);
+                writer.write(',');
+                writer.write(Integer.toString(row.getGender()));
+                writer.write(',');
+                writer.write(Integer.toString(row.getWeight()));
+                writer.write('\n');
+            }
+        });
+    }
+
+    /**
+     * Writes a CSV field, quoting it if it contains a separator, quote or line break.
+     */
+    private static void writeCsvField(Writer writer, CharArrayBuffer value) throws IOException {
+        char[] data = value.data;
+        int length = value.sizeCopied;
+
+        boolean needsQuotes = false;
+        for (int i = 0; i < length && !needsQuotes; i++) {
+            char c = data[i];
+            needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!needsQuotes) {
+            writer.write(data, 0, length);
+            return;
+        }
+
+        writer.write('"');
+        for (int i = 0; i < length; i++) {
+            char c = data[i];
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    private static long exportJson(ContentResolver resolver, Writer writer,
+                                   ProgressListener listener) throws IOException {
+        final JsonWriter json = new JsonWriter(writer);
+        json.beginArray();
+        long exported = exportPages(resolver, listener, new RowWriter() {
+            @Override
+            public void write(PetRowReader row) throws IOException {
+                json.beginObject();
+                json.name(PetEntry.COLUMN_PET_NAME).value(row.getName());
+                json.name(PetEntry.COLUMN_PET_BREED).value(row.getBreed());
+                json.name(PetEntry.COLUMN_PET_GENDER).value(row.getGender());
+                json.name(PetEntry.COLUMN_PET_WEIGHT).value(row.getWeight());
+                json.endObject();
+            }
+        });
+        json.endArray();
+        json.flush();
+        return exported;
+    }
+
+    /**
+     * Writes the pet the reader is on.
+     */
+    private interface RowWriter {
+        void write(PetRowReader row) throws IOException;
+    }
+
+    /**
+     * Pages through every pet by _id, handing each row to the writer.
+     */
+    private static long exportPages(ContentResolver resolver, ProgressListener listener,
+                                    RowWriter rowWriter) throws IOException {
+        PetRowReader row = new PetRowReader();
+        long exported = 0;
+        long afterId = 0;
+        while (true) {
+            Cursor cursor = resolver.query(PetContract.buildPageUri(afterId, EXPORT_PAGE_SIZE),
+                    EXPORT_PROJECTION, null, null, null);
+            if (cursor == null) {
+                throw new IOException("Failed to query pets after _id " + afterId);
+            }
+
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    row.moveTo(cursor);
+                    rowWriter.write(row);
+                    afterId = row.getId();
+                }
+            } finally {
+                cursor.close();
+            }
+
+            exported += count;
+            if (listener != null) {
+                listener.onProgress(exported);
+            }
+            if (count < EXPORT_PAGE_SIZE) {
+                return exported;
+            }
+        }
+    }
+
+    /**
+     * Collects imported pets and bulk inserts them a chunk at a time.
+     */
+    private static class ChunkedInserter {
+        private final ContentResolver mResolver;
+        private final ProgressListener mListener;
+        private final ContentValues[] mChunk = new ContentValues[IMPORT_CHUNK_SIZE];
+        private int mChunkSize;
+        private long mImported;
+
+        ChunkedInserter(ContentResolver resolver, ProgressListener listener) {
+            mResolver = resolver;
+            mListener = listener;
+        }
+
+        void add(ContentValues values) {
+            mChunk[mChunkSize++] = values;
+            if (mChunkSize == IMPORT_CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (mChunkSize == 0) {
+                return;
+            }
+
+            ContentValues[] chunk = mChunkSize == IMPORT_CHUNK_SIZE
+                    ? mChunk : Arrays.copyOf(mChunk, mChunkSize);
+            mImported += mResolver.bulkInsert(PetContract.CONTENT_URI, chunk);
+            Arrays.fill(mChunk, null);
+            mChunkSize = 0;
+
+            if (mListener != null) {
+                mListener.onProgress(mImported);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * The rules every pet written to the shelter database must follow. {@link PetProvider} enforces
+ * them on every write, and the writers that queue work for later check them up front, so bad
+ * input is reported to the caller before anything touches the disk.
+ */
+final class PetValidator {
+
+    private PetValidator() {}
+
+    /**
+     * Check that the given values describe a valid pet, throwing an
+     * {@link IllegalArgumentException} if they don't. An insert must provide the name and
+     * breed; an update only has the columns it changes checked.
+     */
+    static void validate(ContentValues values, boolean isInsert) {
+        validate(values, isInsert, false);
+    }
+
+    /**
+     * Same as {@link #validate(ContentValues, boolean)}, also accepting a sync id when the
+     * values come from the sync adapter.
+     */
+    static void validate(ContentValues values, boolean isInsert, boolean fromSync) {
+        // Check that the name is not null
+        if (isInsert || values.containsKey(PetEntry.COLUMN_PET_NAME)) {
+            String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+            if (name == null) {
+                throw new IllegalArgumentException("Pet requires a name");
+            }
+        }
+
+        // Check that the breed is not null
+        if (isInsert || values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+            String breed = values.getAsString(PetEntry.COLUMN_PET_BREED);
+            if (breed == null) {
+                throw new IllegalArgumentException("Pet requires a breed");
+            }
+        }
+
+        // Check that the gender is valid
+        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        if (gender != null && !PetEntry.isValidGender(gender)) {
+            throw new IllegalArgumentException("Pet requires valid gender");
+        }
+
+        // If the weight is provided, check that it's greater than or equal to 0 kg
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        if (weight != null && weight < 0) {
+            throw new IllegalArgumentException("Pet requires valid weight");
+        }
+
+        // A photo reference needs both its offset and its length, or neither to clear it
+        if (values.containsKey(PetEntry.COLUMN_PET_PHOTO_OFFSET)
+                || values.containsKey(PetEntry.COLUMN_PET_PHOTO_LENGTH)) {
+            Long offset = values.getAsLong(PetEntry.COLUMN_PET_PHOTO_OFFSET);
+            Integer length = values.getAsInteger(PetEntry.COLUMN_PET_PHOTO_LENGTH);
+            if ((offset == null) != (length == null)
+                    || (offset != null && (offset < 0 || length <= 0))) {
+                throw new IllegalArgumentException("Pet requires valid photo");
+            }
+        }
+
+        // Sync ids are assigned by the database, or copied from the server by the sync adapter
+        if (!fromSync && values.containsKey(PetEntry.COLUMN_PET_SYNC_ID)) {
+            throw new IllegalArgumentException("Sync ids are only set by the sync adapter");
+        }
+
+        // Breeds are given by name; their ids are the provider's business
+        if (values.containsKey(PetEntry.COLUMN_PET_BREED_ID)) {
+            throw new IllegalArgumentException("Pet breeds are set by name");
+        }
+
+        // Tombstones are only set by delete(), so the stats and caches stay in step
+        if (values.containsKey(PetEntry.COLUMN_PET_DELETED)) {
+            throw new IllegalArgumentException("Pets are deleted through delete()");
+        }
+    }
+}
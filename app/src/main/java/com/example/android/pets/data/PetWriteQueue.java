@@ -0,0 +1,353 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for callers that write many small changes in quick succession, such as
+ * a barcode scanner at intake or an import script. {@link PetWriter} hands its inserts and
+ * updates to it too, so saves from the editor and from other writers share transactions.
+ *
+ * Instead of every insert and update committing its own transaction, writes are buffered and
+ * committed in groups: a group is committed once it holds {@link #MAX_GROUP_SIZE} writes, or
+ * {@link #MAX_GROUP_DELAY_MS} after its first write, whichever comes first. Each group goes
+ * through {@link PetProvider#applyBatch} as a single transaction, with one notification pass
+ * at the end. Every write returns a {@link Future} that completes once its group committed,
+ * with the new pet's URI for an insert or the number of updated pets for an update.
+ *
+ * The queue holds at most {@link #CAPACITY} writes; callers block while it is full, so this
+ * must not be used from the main thread.
+ */
+public final class PetWriteQueue {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetWriteQueue.class.getSimpleName();
+
+    /** Writes committed together at most */
+    static final int MAX_GROUP_SIZE = 256;
+
+    /** How long the first write of a group waits for more writes to join it */
+    static final long MAX_GROUP_DELAY_MS = 50;
+
+    /** Writes that can wait in the queue before callers block */
+    static final int CAPACITY = 4 * MAX_GROUP_SIZE;
+
+    /**
+     * How long a caller waits for its write to be committed.
+     */
+    public enum Durability {
+        /**
+         * The write is queued and committed with whatever group it lands in. It is lost if
+         * the process dies before that.
+         */
+        FIRE_AND_FORGET,
+
+        /**
+         * The write's group is committed as soon as the writes already queued have joined
+         * it, instead of waiting for more. The caller doesn't wait for the commit.
+         */
+        FLUSH_ON_COMMIT,
+
+        /**
+         * Like {@link #FLUSH_ON_COMMIT}, and the caller is blocked until the write committed.
+         */
+        SYNCHRONOUS
+    }
+
+    private static PetWriteQueue sInstance;
+
+    /**
+     * Returns the process-wide queue, starting it on first use.
+     */
+    public static synchronized PetWriteQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWriteQueue(context.getApplicationContext().getContentResolver(),
+                    MAX_GROUP_SIZE, MAX_GROUP_DELAY_MS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Told when a write is done, on the thread that committed (or cancelled) it.
+     */
+    interface Listener<T> {
+        /**
+         * @param write the finished write; {@link Future#get} returns without blocking
+         */
+        void onDone(Future<T> write);
+    }
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * A queued write and the future of its result. Completed by the committing thread, never
+     * run. A write without an operation only marks a point in the queue, for {@link #flush}.
+     */
+    private static final class Write<T> extends FutureTask<T> {
+        final ContentProviderOperation operation;
+        final Durability durability;
+        final Listener<T> listener;
+
+        Write(ContentProviderOperation operation, Durability durability, Listener<T> listener) {
+            super(NO_OP, null);
+            this.operation = operation;
+            this.durability = durability;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void done() {
+            if (listener == null) {
+                return;
+            }
+            try {
+                listener.onDone(this);
+            } catch (RuntimeException e) {
+                // The write is done either way; a listener mustn't fail the writes after it
+                Log.e(LOG_TAG, "Listener of " + operation + " failed", e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void succeed(ContentProviderResult result) {
+            set((T) (result.uri != null ? result.uri : result.count));
+        }
+
+        void succeed() {
+            set(null);
+        }
+
+        void fail(Throwable failure) {
+            setException(failure);
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mMaxGroupSize;
+    private final long mMaxGroupDelayMs;
+    private final BlockingQueue<Write<?>> mQueue = new ArrayBlockingQueue<>(CAPACITY);
+
+    PetWriteQueue(ContentResolver resolver, int maxGroupSize, long maxGroupDelayMs) {
+        mResolver = resolver;
+        mMaxGroupSize = maxGroupSize;
+        mMaxGroupDelayMs = maxGroupDelayMs;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                commitGroups();
+            }
+        }, LOG_TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the insert of a new pet. The future gets the new pet's URI.
+     *
+     * @throws IllegalArgumentException if the values don't describe a valid pet; nothing is
+     *                                  queued then
+     */
+    @WorkerThread
+    public Future<Uri> insert(ContentValues values, Durability durability) {
+        return insert(values, durability, null);
+    }
+
+    /**
+     * Same as {@link #insert(ContentValues, Durability)}, also telling the listener once the
+     * write is done.
+     */
+    @WorkerThread
+    Future<Uri> insert(ContentValues values, Durability durability, Listener<Uri> listener) {
+        PetValidator.validate(values, true);
+        Write<Uri> write = new Write<>(ContentProviderOperation.newInsert(PetContract.CONTENT_URI)
+                .withValues(values)
+                .build(), durability, listener);
+        enqueue(write);
+        return write;
+    }
+
+    /**
+     * Queues an update of the given pet. The future gets the number of pets updated, 0 if the
+     * pet was gone by the time the update committed.
+     *
+     * @throws IllegalArgumentException if the values aren't valid; nothing is queued then
+     */
+    @WorkerThread
+    public Future<Integer> update(Uri petUri, ContentValues values, Durability durability) {
+        return update(petUri, values, durability, null);
+    }
+
+    /**
+     * Same as {@link #update(Uri, ContentValues, Durability)}, also telling the listener once
+     * the write is done.
+     */
+    @WorkerThread
+    Future<Integer> update(Uri petUri, ContentValues values, Durability durability,
+            Listener<Integer> listener) {
+        PetValidator.validate(values, false);
+        Write<Integer> write = new Write<>(ContentProviderOperation.newUpdate(petUri)
+                .withValues(values)
+                .build(), durability, listener);
+        enqueue(write);
+        return write;
+    }
+
+    /**
+     * Blocks until every write queued before this call has been committed (or has failed).
+     *
+     * If the calling thread is interrupted, this returns early with the interrupt status set,
+     * and nothing is guaranteed about the order of the writes queued before and after it.
+     */
+    @WorkerThread
+    public void flush() {
+        enqueue(new Write<Void>(null, Durability.SYNCHRONOUS, null));
+    }
+
+    /**
+     * Adds the write to the queue, blocking while the queue is full, and for a
+     * {@link Durability#SYNCHRONOUS} write until it is done. If the caller is interrupted while
+     * the queue is full, the write is never queued and fails with the
+     * {@link InterruptedException}, so its future and listener still complete.
+     */
+    private void enqueue(Write<?> write) {
+        try {
+            mQueue.put(write);
+        } catch (InterruptedException e) {
+            write.fail(e);
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (write.durability == Durability.SYNCHRONOUS) {
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                // The write stays queued and commits; the caller only stops waiting for it
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // The caller finds the failure in the write's future
+            }
+        }
+    }
+
+    /**
+     * Runs on the queue's thread: collects writes into groups and commits them, forever.
+     */
+    private void commitGroups() {
+        ArrayList<Write<?>> group = new ArrayList<>(mMaxGroupSize);
+        while (true) {
+            try {
+                Write<?> first = mQueue.take();
+                group.add(first);
+
+                // Wait for more writes to join the group, unless one of its writes is waited on
+                boolean urgent = first.durability != Durability.FIRE_AND_FORGET;
+                long deadline = SystemClock.uptimeMillis() + mMaxGroupDelayMs;
+                while (group.size() < mMaxGroupSize) {
+                    Write<?> next;
+                    if (urgent) {
+                        next = mQueue.poll();
+                    } else {
+                        long delay = deadline - SystemClock.uptimeMillis();
+                        next = delay > 0 ? mQueue.poll(delay, TimeUnit.MILLISECONDS) : null;
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                    urgent |= next.durability != Durability.FIRE_AND_FORGET;
+                }
+
+                commit(group);
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Write queue stopped");
+                return;
+            } catch (Throwable t) {
+                // Whatever went wrong, the queue keeps running, and no caller waits forever on
+                // a write of this group
+                Log.e(LOG_TAG, "Group of " + group.size() + " writes failed", t);
+                for (Write<?> write : group) {
+                    if (!write.isDone()) {
+                        write.fail(t);
+                    }
+                }
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    /**
+     * Commits the group's writes in one transaction and completes their futures. If the
+     * transaction fails, the writes are retried one by one, so a single bad write fails alone.
+     * The futures are only completed once the transaction is over, so nothing their listeners
+     * do can be mistaken for a failed transaction and write the group a second time.
+     */
+    private void commit(ArrayList<Write<?>> group) {
+        ArrayList<Write<?>> writes = new ArrayList<>(group.size());
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(group.size());
+        for (Write<?> write : group) {
+            if (write.operation != null && !write.isCancelled()) {
+                writes.add(write);
+                operations.add(write.operation);
+            }
+        }
+
+        if (!operations.isEmpty()) {
+            ContentProviderResult[] results = null;
+            try {
+                results = mResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                if (writes.size() == 1) {
+                    Log.e(LOG_TAG, "Failed to write " + writes.get(0).operation.getUri(), e);
+                    writes.get(0).fail(e);
+                } else {
+                    Log.w(LOG_TAG, "Group of " + writes.size() + " writes failed, retrying singly",
+                            e);
+                    for (Write<?> write : writes) {
+                        ArrayList<Write<?>> single = new ArrayList<>(1);
+                        single.add(write);
+                        commit(single);
+                    }
+                }
+            }
+
+            if (results != null) {
+                for (int i = 0; i < results.length; i++) {
+                    writes.get(i).succeed(results[i]);
+                }
+            }
+        }
+
+        // Flush markers complete once everything queued before them is done
+        for (Write<?> write : group) {
+            if (write.operation == null) {
+                write.succeed();
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes pets through {@link PetProvider} on a single background thread, so saving never blocks
+ * the UI. Writes run one at a time in the order they were queued, and each reports its result
+ * to a {@link Callback} on the main thread once it committed.
+ *
+ * Inserts and updates are handed to the {@link PetWriteQueue}, which commits them in groups
+ * with whatever else is being written; the writer thread moves on to the next save without
+ * waiting for the commit. Deletes flush the queue first, so they still run after every save
+ * queued before them.
+ *
+ * Values are validated before anything is queued. Saves are keyed by the caller (typically one
+ * key per editor screen): a save queued while an earlier save with the same key is still
+ * waiting is merged into it, so tapping save repeatedly writes the pet once.
+ */
+public final class PetWriter {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetWriter.class.getSimpleName();
+
+    /**
+     * Receives the result of a write on the main thread.
+     */
+    public interface Callback {
+        /**
+         * Called when the write committed.
+         *
+         * @param petUri the content URI of the pet that was written
+         */
+        void onSuccess(Uri petUri);
+
+        /**
+         * Called when the values were invalid or the write failed. Nothing was written.
+         */
+        void onFailure(Exception e);
+    }
+
+    private static PetWriter sInstance;
+
+    /**
+     * Returns the process-wide writer, creating it on first use.
+     */
+    public static synchronized PetWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWriter(context.getApplicationContext().getContentResolver(),
+                    PetPhotoStore.getInstance(context), PetWriteQueue.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    private final ContentResolver mResolver;
+    private final PetPhotoStore mPhotoStore;
+    private final PetWriteQueue mQueue;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** The most recent save queued for each key; guarded by this */
+    private final HashMap<Object, Save> mSaves = new HashMap<>();
+
+    PetWriter(ContentResolver resolver, PetPhotoStore photoStore, PetWriteQueue queue) {
+        mResolver = resolver;
+        mPhotoStore = photoStore;
+        mQueue = queue;
+    }
+
+    /**
+     * A save that is waiting for, or running on, the writer thread.
+     */
+    private static class Save {
+        final Object key;
+
+        /** Pet to update, or null to insert a new pet */
+        Uri petUri;
+
+        /** Columns to write; later saves with the same key are merged in while waiting */
+        final ContentValues values;
+
+        /** Image to copy into the photo store and attach to the pet, or null to keep the photo */
+        Uri photoUri;
+
+        final ArrayList<Callback> callbacks = new ArrayList<>();
+
+        /** Save with the same key that was already running when this one was queued */
+        final Save previous;
+
+        /** True once the writer thread picked the save up; guarded by the PetWriter */
+        boolean started;
+
+        /** URI of the pet once written, read by a following save of a newly inserted pet */
+        volatile Uri resultUri;
+
+        /** Released once the save committed or failed */
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        Save(Object key, Uri petUri, ContentValues values, Uri photoUri, Save previous) {
+            this.key = key;
+            this.petUri = petUri;
+            this.values = new ContentValues(values);
+            this.photoUri = photoUri;
+            this.previous = previous;
+        }
+
+        /**
+         * Blocks until the save is finished and returns the URI of the pet it wrote, or null if
+         * it failed.
+         */
+        Uri awaitResult() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return resultUri;
+        }
+    }
+
+    /**
+     * Queues an insert (if {@code petUri} is null) or an update of the given pet.
+     *
+     * If a save with the same key is still waiting, the values are merged into it and both
+     * callbacks get its result. If a save with the same key already inserted the pet, this save
+     * updates that pet instead of inserting another.
+     */
+    public void save(Object key, Uri petUri, ContentValues values, Callback callback) {
+        save(key, petUri, values, null, callback);
+    }
+
+    /**
+     * Same as {@link #save(Object, Uri, ContentValues, Callback)}, also replacing the pet's
+     * photo with the image at {@code photoUri} (any URI the content resolver can open). The
+     * image is copied into the {@link PetPhotoStore} on the writer thread, just before the pet
+     * is written; if it can't be read, the pet isn't written either.
+     */
+    public void save(Object key, Uri petUri, ContentValues values, Uri photoUri,
+            Callback callback) {
+        try {
+            PetValidator.validate(values, petUri == null);
+        } catch (IllegalArgumentException e) {
+            deliverFailure(callback, e);
+            return;
+        }
+
+        final Save save;
+        synchronized (this) {
+            Save pending = mSaves.get(key);
+            if (pending != null && !pending.started) {
+                pending.values.putAll(values);
+                if (photoUri != null) {
+                    pending.photoUri = photoUri;
+                }
+                pending.callbacks.add(callback);
+                return;
+            }
+
+            save = new Save(key, petUri, values, photoUri, pending);
+            save.callbacks.add(callback);
+            mSaves.put(key, save);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runSave(save);
+            }
+        });
+    }
+
+    /**
+     * Queues the deletion of the given pet. Any save of the pet that hasn't started yet still
+     * runs first.
+     */
+    public void delete(final Uri petUri, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.flush();
+                try {
+                    int rowsDeleted = mResolver.delete(petUri, null, null);
+                    if (rowsDeleted == 0) {
+                        throw new IllegalStateException("No pet to delete at " + petUri);
+                    }
+                    deliverSuccess(callback, petUri);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to delete " + petUri, e);
+                    deliverFailure(callback, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the deletion of every pet, as one statement in one transaction. The pets are soft
+     * deleted, so they vanish at once and their rows are purged later in the background. Saves
+     * queued before this still run first. The callback gets {@link PetContract#CONTENT_URI}.
+     */
+    public void deleteAll(final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.flush();
+                try {
+                    int rowsDeleted = mResolver.delete(
+                            PetContract.buildSoftDeleteUri(PetContract.CONTENT_URI), null, null);
+                    Log.i(LOG_TAG, "Deleted " + rowsDeleted + " pets");
+                    deliverSuccess(callback, PetContract.CONTENT_URI);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to delete all pets", e);
+                    deliverFailure(callback, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs on the writer thread: copies the photo and hands the write to the queue.
+     */
+    private void runSave(final Save save) {
+        final ArrayList<Callback> callbacks;
+        synchronized (this) {
+            save.started = true;
+            callbacks = new ArrayList<>(save.callbacks);
+        }
+
+        // A save that followed the insert of a new pet updates that pet, once it is committed
+        if (save.petUri == null && save.previous != null) {
+            save.petUri = save.previous.awaitResult();
+        }
+
+        try {
+            if (save.photoUri != null) {
+                appendPhoto(save.photoUri, save.values);
+            }
+
+            if (save.petUri == null) {
+                mQueue.insert(save.values, PetWriteQueue.Durability.FLUSH_ON_COMMIT,
+                        new PetWriteQueue.Listener<Uri>() {
+                            @Override
+                            public void onDone(Future<Uri> write) {
+                                try {
+                                    Uri resultUri = result(write);
+                                    if (resultUri == null) {
+                                        throw new IllegalStateException("Insert returned no pet");
+                                    }
+                                    finishSave(save, callbacks, resultUri, null);
+                                } catch (Exception e) {
+                                    finishSave(save, callbacks, null, e);
+                                }
+                            }
+                        });
+            } else {
+                mQueue.update(save.petUri, save.values, PetWriteQueue.Durability.FLUSH_ON_COMMIT,
+                        new PetWriteQueue.Listener<Integer>() {
+                            @Override
+                            public void onDone(Future<Integer> write) {
+                                try {
+                                    // No row means the pet was deleted meanwhile, and the edit
+                                    // went nowhere
+                                    if (result(write) == 0) {
+                                        throw new IllegalStateException(
+                                                "No pet to update at " + save.petUri);
+                                    }
+                                    finishSave(save, callbacks, save.petUri, null);
+                                } catch (Exception e) {
+                                    finishSave(save, callbacks, null, e);
+                                }
+                            }
+                        });
+            }
+        } catch (IOException | RuntimeException e) {
+            finishSave(save, callbacks, null, e);
+        }
+    }
+
+    /**
+     * Runs once the save committed or failed, on the queue's thread or the writer thread.
+     */
+    private void finishSave(Save save, ArrayList<Callback> callbacks, Uri resultUri,
+            Exception failure) {
+        if (failure != null) {
+            Log.e(LOG_TAG, "Failed to save pet " + save.petUri, failure);
+        }
+        save.resultUri = resultUri;
+        save.finished.countDown();
+
+        synchronized (this) {
+            if (mSaves.get(save.key) == save) {
+                mSaves.remove(save.key);
+            }
+        }
+
+        for (Callback callback : callbacks) {
+            if (failure == null) {
+                deliverSuccess(callback, resultUri);
+            } else {
+                deliverFailure(callback, failure);
+            }
+        }
+    }
+
+    /**
+     * Returns the result of a finished write, or throws the exception it failed with.
+     */
+    private static <T> T result(Future<T> write) throws Exception {
+        try {
+            return write.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Copies the image at the given URI into the photo store, pointing the pet values at it.
+     */
+    private void appendPhoto(Uri photoUri, ContentValues values) throws IOException {
+        InputStream in = mResolver.openInputStream(photoUri);
+        if (in == null) {
+            throw new IOException("Can't open photo " + photoUri);
+        }
+        try {
+            mPhotoStore.append(in, values);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void deliverSuccess(final Callback callback, final Uri petUri) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSuccess(petUri);
+            }
+        });
+    }
+
+    private void deliverFailure(final Callback callback, final Exception e) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onFailure(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.android.pets.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Results of one benchmark class, written as a properties file named after the class to the
+ * directory benchmarkDebugUnitTest passes in pets.benchmark.dir. Outside of that task, such as
+ * in an IDE, the results are only kept in memory.
+ */
+final class BenchmarkReport {
+
+    private static final String DIRECTORY_PROPERTY = "pets.benchmark.dir";
+
+    private final String mName;
+    private final Properties mResults = new Properties();
+
+    BenchmarkReport(Class<?> benchmark) {
+        mName = benchmark.getSimpleName();
+    }
+
+    /**
+     * Records a result, replacing any earlier one of the same name, and rewrites the file.
+     */
+    void record(String name, long value) throws IOException {
+        mResults.setProperty(name, Long.toString(value));
+
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        if (directory == null) {
+            return;
+        }
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        OutputStream out = new FileOutputStream(new File(dir, mName + ".properties"));
+        try {
+            mResults.store(out, mName);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Converts an elapsed time and a count into a rate per second */
+    static long perSecond(long count, long nanos) {
+        return count * 1000000000L / Math.max(1, nanos);
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the breed column reads as the breed's name, typed as text, on every path a pets
+ * query can take through {@link PetProvider}, and that the {@link PetBreedDictionary} picks up
+ * new breeds and never keeps a rolled back one.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetBreedDictionaryTest {
+
+    private static final String[] COLUMNS = {PetEntry._ID, PetEntry.COLUMN_PET_BREED};
+
+    private static final int PETS = 200;
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = PetTests.newProvider("breeds_test.db");
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, PETS));
+    }
+
+    @Test
+    public void breedReadsAsTextFromSnapshot() throws Exception {
+        Cursor cursor = null;
+        for (int attempt = 0; attempt < 200; attempt++) {
+            cursor = mProvider.query(PetContract.CONTENT_URI, COLUMNS, null, null, null);
+            assertNotNull(cursor);
+            if (!(cursor instanceof PetDbHelper.QueryCursor)) {
+                break;
+            }
+            cursor.close();
+            cursor = null;
+            Thread.sleep(25);
+        }
+        assertNotNull("The snapshot was never built", cursor);
+        assertBreeds(cursor, PETS);
+    }
+
+    @Test
+    public void breedReadsAsTextFromTable() {
+        assertBreeds(mProvider.query(PetContract.CONTENT_URI, COLUMNS, null, null, null), PETS);
+        assertBreeds(mProvider.query(PetContract.CONTENT_URI, COLUMNS,
+                PetEntry.COLUMN_PET_WEIGHT + " >= ?", new String[]{"0"}, null), PETS);
+        assertBreeds(mProvider.query(PetContract.buildPageUri(50, 20), COLUMNS,
+                PetEntry.COLUMN_PET_WEIGHT + " >= ?", new String[]{"0"}, null), 20);
+    }
+
+    @Test
+    public void breedReadsAsTextFromJoin() {
+        Cursor cursor = mProvider.query(PetContract.CONTENT_URI, COLUMNS,
+                PetEntry.COLUMN_PET_BREED + " = ?", new String[]{PetTests.BREEDS[2]},
+                PetEntry.COLUMN_PET_BREED + ", " + PetEntry._ID);
+        assertBreeds(cursor, PETS / PetTests.BREEDS.length);
+    }
+
+    @Test
+    public void breedReadsAsTextForOnePet() {
+        Uri petUri = ContentUris.withAppendedId(PetContract.CONTENT_URI, 7);
+        // Answered from the pet cache, the second time at the latest
+        assertBreeds(mProvider.query(petUri, null, null, null, null), 1);
+        assertBreeds(mProvider.query(petUri, null, null, null, null), 1);
+        assertBreeds(mProvider.query(petUri, COLUMNS, PetEntry.COLUMN_PET_WEIGHT + " >= 0",
+                null, null), 1);
+    }
+
+    @Test
+    public void newBreedsOfBatchAreReadable() {
+        ContentValues[] pets = {
+                PetTests.pet("Rex", "Great Dane", 1, 60),
+                PetTests.pet("Kiwi", "Budgie", 2, 1),
+                PetTests.pet("Max", "Great Dane", 1, 55)};
+        mProvider.bulkInsert(PetContract.CONTENT_URI, pets);
+
+        Cursor cursor = mProvider.query(PetContract.buildPageUri(PETS, 10), COLUMNS, null, null,
+                null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(3, cursor.getCount());
+            for (ContentValues pet : pets) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(1));
+                assertEquals(pet.getAsString(PetEntry.COLUMN_PET_BREED), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void writesCanSelectByBreed() {
+        String byBreed = PetEntry.COLUMN_PET_BREED + " = ?";
+        int perBreed = PETS / PetTests.BREEDS.length;
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 99);
+        assertEquals(perBreed, mProvider.update(PetContract.CONTENT_URI, values, byBreed,
+                new String[]{PetTests.BREEDS[1]}));
+        assertEquals(perBreed, mProvider.delete(PetContract.CONTENT_URI, byBreed,
+                new String[]{PetTests.BREEDS[2]}));
+
+        Cursor cursor = mProvider.query(PetContract.CONTENT_URI, COLUMNS,
+                PetEntry.COLUMN_PET_WEIGHT + " = 99", null, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(perBreed, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        assertBreeds(mProvider.query(PetContract.CONTENT_URI, COLUMNS, byBreed,
+                new String[]{PetTests.BREEDS[2]}, null), 0);
+    }
+
+    @Test
+    public void breedIdsCannotBeWritten() {
+        ContentValues values = PetTests.pet("Rex", "Beagle", 1, 12);
+        values.put(PetEntry.COLUMN_PET_BREED_ID, 1);
+        try {
+            mProvider.insert(PetContract.CONTENT_URI, values);
+            fail("Inserted a pet with a breed id");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_BREED_ID, 1);
+        try {
+            mProvider.update(ContentUris.withAppendedId(PetContract.CONTENT_URI, 1), values,
+                    null, null);
+            fail("Updated the breed id of a pet");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void rolledBackBreedIsNotKept() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(PetContract.CONTENT_URI)
+                .withValues(PetTests.pet("Axel", "Axolotl", 0, 1))
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(PetContract.CONTENT_URI, 10000))
+                .withValue(PetEntry.COLUMN_PET_WEIGHT, 2)
+                .withExpectedCount(1)
+                .build());
+        try {
+            mProvider.applyBatch(operations);
+            fail("Batch with a failing operation committed");
+        } catch (OperationApplicationException expected) {
+        }
+
+        // The breed went with the rollback, so it has to be added again, under an id that
+        // resolves to its name
+        Uri petUri = mProvider.insert(PetContract.CONTENT_URI,
+                PetTests.pet("Axel", "Axolotl", 0, 1));
+        assertNotNull(petUri);
+        Cursor cursor = mProvider.query(petUri, COLUMNS, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Axolotl", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Checks that the cursor has the given number of pets, each with the breed it was
+     * inserted with, as text.
+     */
+    private static void assertBreeds(Cursor cursor, int count) {
+        assertNotNull(cursor);
+        try {
+            assertEquals(count, cursor.getCount());
+            int id = cursor.getColumnIndexOrThrow(PetEntry._ID);
+            int breed = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+            while (cursor.moveToNext()) {
+                // Pets are numbered from 0 by PetTests.pets, and their _ids from 1
+                int number = cursor.getInt(id) - 1;
+                assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(breed));
+                assertEquals(PetTests.BREEDS[number % PetTests.BREEDS.length],
+                        cursor.getString(breed));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the single-pet lookups {@link PetProvider} answers from {@link PetCache} never
+ * return a pet older than the last committed write.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetCacheTest {
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_WEIGHT};
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = PetTests.newProvider("cache_test.db");
+    }
+
+    @Test
+    public void repeatedLookupIsServedFromTheCache() {
+        Uri rex = mProvider.insert(PetContract.CONTENT_URI, PetTests.pet("Rex", "Beagle", 1, 12));
+
+        assertEquals("Rex", lookUpName(rex));
+        assertEquals("Rex", lookUpName(rex));
+
+        assertEquals("Pet cache: 1 hits, 1 misses", dump());
+    }
+
+    @Test
+    public void updateThroughPetUriIsSeen() {
+        Uri rex = mProvider.insert(PetContract.CONTENT_URI, PetTests.pet("Rex", "Beagle", 1, 12));
+        assertEquals("Rex", lookUpName(rex));
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Max");
+        assertEquals(1, mProvider.update(rex, values, null, null));
+
+        assertEquals("Max", lookUpName(rex));
+    }
+
+    @Test
+    public void updateBySelectionIsSeen() {
+        Uri rex = mProvider.insert(PetContract.CONTENT_URI, PetTests.pet("Rex", "Beagle", 1, 12));
+        assertEquals("Rex", lookUpName(rex));
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Max");
+        assertEquals(1, mProvider.update(PetContract.CONTENT_URI, values,
+                PetEntry.COLUMN_PET_BREED + " = ?", new String[]{"Beagle"}));
+
+        assertEquals("Max", lookUpName(rex));
+    }
+
+    @Test
+    public void deletedPetIsGone() {
+        Uri rex = mProvider.insert(PetContract.CONTENT_URI, PetTests.pet("Rex", "Beagle", 1, 12));
+        assertEquals("Rex", lookUpName(rex));
+
+        assertEquals(1, mProvider.delete(rex, null, null));
+
+        assertNull(lookUpName(rex));
+    }
+
+    @Test
+    public void nullProjectionReturnsEveryColumn() {
+        assertFalse(PetCache.canServe(null));
+        Uri rex = mProvider.insert(PetContract.CONTENT_URI, PetTests.pet("Rex", "Beagle", 1, 12));
+        assertEquals("Rex", lookUpName(rex));
+
+        Cursor all = mProvider.query(PetContract.CONTENT_URI, null, null, null, null);
+        Cursor one = mProvider.query(rex, null, null, null, null);
+        assertNotNull(all);
+        assertNotNull(one);
+        try {
+            assertEquals(all.getColumnCount(), one.getColumnCount());
+        } finally {
+            all.close();
+            one.close();
+        }
+    }
+
+    @Test
+    public void readRacingAnInvalidationIsNotCached() {
+        PetCache cache = new PetCache(8);
+        Pet stale = new Pet(1, "Rex", "Beagle", 1, 12);
+
+        long version = cache.version();
+        cache.invalidate(1);
+        cache.put(stale, version);
+        assertNull(cache.get(1));
+
+        cache.put(stale, cache.version());
+        assertTrue(cache.get(1) == stale);
+    }
+
+    /** Returns the pet's name, or null if there is no such pet */
+    private String lookUpName(Uri petUri) {
+        Cursor cursor = mProvider.query(petUri, PROJECTION, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.moveToFirst()
+                    ? cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME))
+                    : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the cache line of the provider's dump.
+     */
+    private String dump() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        mProvider.dump(null, writer, new String[0]);
+        writer.flush();
+        return out.toString().split("\n")[0].trim();
+    }
+}
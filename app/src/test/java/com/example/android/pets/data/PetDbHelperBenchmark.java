@@ -0,0 +1,112 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the latency of reads by _id through {@link PetProvider}, with the database idle and
+ * while a background writer keeps inserting.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetDbHelperBenchmark {
+
+    /** Pets in the database the reads pick from */
+    private static final int PETS = 5000;
+
+    /** Reads timed with and without a writer */
+    private static final int READS = 2000;
+
+    /** Pets the background writer inserts per transaction */
+    private static final int WRITE_CHUNK = 100;
+
+    private final BenchmarkReport mReport = new BenchmarkReport(PetDbHelperBenchmark.class);
+
+    private PetProvider mProvider;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mProvider = PetTests.newProvider("helper_benchmark.db");
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void readLatencyWhileWriting() throws Exception {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, PETS));
+        // Warm up the JIT and the page cache
+        timeReads(new Random(1));
+
+        long[] idle = timeReads(new Random(2));
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        Future<Integer> writer = mExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int written = 0;
+                while (writing.get()) {
+                    written += mProvider.bulkInsert(PetContract.CONTENT_URI,
+                            PetTests.pets(PETS + written, WRITE_CHUNK));
+                }
+                return written;
+            }
+        });
+        long[] busy = timeReads(new Random(3));
+        writing.set(false);
+        int written = writer.get();
+
+        assertTrue("Writer made no progress during the reads", written > 0);
+        mReport.record("idle_read_p50_us", percentile(idle, 50));
+        mReport.record("idle_read_p99_us", percentile(idle, 99));
+        mReport.record("busy_read_p50_us", percentile(busy, 50));
+        mReport.record("busy_read_p99_us", percentile(busy, 99));
+        mReport.record("busy_pets_written", written);
+    }
+
+    /**
+     * Reads random pets by URI, returning each read's latency in microseconds, sorted.
+     */
+    private long[] timeReads(Random random) {
+        long[] latencies = new long[READS];
+        for (int i = 0; i < READS; i++) {
+            long id = 1 + random.nextInt(PETS);
+            long start = System.nanoTime();
+            Cursor cursor = mProvider.query(
+                    ContentUris.withAppendedId(PetContract.CONTENT_URI, id), null, null, null,
+                    null);
+            try {
+                assertTrue(cursor.moveToFirst());
+            } finally {
+                cursor.close();
+            }
+            latencies[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
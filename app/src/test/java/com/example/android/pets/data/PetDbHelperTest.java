@@ -0,0 +1,112 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link PetDbHelper} configures the database, and that readers don't wait for an
+ * open write transaction.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetDbHelperTest {
+
+    private PetDbHelper mDbHelper;
+    private PetProvider mProvider;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mDbHelper = PetTests.newDbHelper("helper_test.db");
+        mProvider = PetTests.newProvider(mDbHelper);
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void configuresConnection() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        assertTrue(database.isWriteAheadLoggingEnabled());
+        assertEquals(PetDbHelper.DATABASE_VERSION, database.getVersion());
+
+        // The per-connection pragmas are set on the primary connection, which only a
+        // transaction is sure to run on
+        database.beginTransaction();
+        try {
+            assertEquals("wal",
+                    DatabaseUtils.stringForQuery(database, "PRAGMA journal_mode", null));
+            // NORMAL
+            assertEquals(1, DatabaseUtils.longForQuery(database, "PRAGMA synchronous", null));
+            assertEquals(-4096, DatabaseUtils.longForQuery(database, "PRAGMA cache_size", null));
+            // MEMORY
+            assertEquals(2, DatabaseUtils.longForQuery(database, "PRAGMA temp_store", null));
+            // INCREMENTAL
+            assertEquals(2, DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null));
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    @Test
+    public void readDoesNotWaitForOpenWriteTransaction() throws Exception {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 10));
+
+        final CountDownLatch inTransaction = new CountDownLatch(1);
+        final CountDownLatch readDone = new CountDownLatch(1);
+        Future<Void> writer = mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                SQLiteDatabase database = mDbHelper.getWritableDatabase();
+                database.beginTransaction();
+                try {
+                    ContentValues values = PetTests.pet("Uncommitted", "Tabby", 0, 1);
+                    values.remove(PetEntry.COLUMN_PET_BREED);
+                    values.put(PetEntry.COLUMN_PET_BREED_ID, 1);
+                    database.insertOrThrow(PetContract.TABLE_NAME, null, values);
+                    inTransaction.countDown();
+                    // Hold the transaction open until the reader is done. A reader that waited
+                    // for the commit would only get to read once this gives up.
+                    readDone.await(10, TimeUnit.SECONDS);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                return null;
+            }
+        });
+
+        assertTrue(inTransaction.await(10, TimeUnit.SECONDS));
+        long count = DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + PetContract.TABLE_NAME, null);
+        readDone.countDown();
+        writer.get();
+
+        // The read saw the last committed state, without waiting for the writer to finish
+        assertEquals(10, count);
+        assertEquals(11, DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(),
+                "SELECT COUNT(*) FROM " + PetContract.TABLE_NAME, null));
+    }
+}
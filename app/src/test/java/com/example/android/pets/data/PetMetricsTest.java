@@ -0,0 +1,104 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.MetricsEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link PetProvider} counts its calls per URI pattern and operation, and reports
+ * them at {@link PetContract#CONTENT_METRICS_URI} and in its dump.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetMetricsTest {
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = PetTests.newProvider("metrics_test.db");
+    }
+
+    @Test
+    public void callsAreCountedByUriAndOperation() {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 10));
+        mProvider.insert(PetContract.CONTENT_URI, PetTests.pets(10, 1)[0]);
+        for (long id = 1; id <= 3; id++) {
+            Cursor cursor = mProvider.query(ContentUris.withAppendedId(PetContract.CONTENT_URI,
+                    id), null, null, null, null);
+            cursor.close();
+        }
+        assertEquals(2, mProvider.delete(PetContract.CONTENT_URI,
+                PetContract.PetEntry._ID + " <= 2", null));
+
+        Map<String, long[]> metrics = readMetrics();
+        assertCalls(metrics, "pets bulk_insert", 1, 10);
+        assertCalls(metrics, "pets insert", 1, 1);
+        assertCalls(metrics, "pets/# query", 3, 3);
+        assertCalls(metrics, "pets delete", 1, 2);
+        // Operations that were never called have no row
+        assertNull(metrics.get("pets update"));
+        // and reading the metrics doesn't count itself
+        assertEquals(4, metrics.size());
+
+        StringWriter dump = new StringWriter();
+        mProvider.dump(null, new PrintWriter(dump), new String[0]);
+        assertTrue(dump.toString(), dump.toString().contains("pets/# query: 3 calls, 3 rows"));
+    }
+
+    @Test
+    public void percentilesAreOrdered() {
+        for (int i = 0; i < 20; i++) {
+            mProvider.query(PetContract.CONTENT_URI, null, null, null, null).close();
+        }
+
+        long[] row = readMetrics().get("pets query");
+        assertEquals(20, row[0]);
+        assertTrue(row[2] <= row[3]);
+        assertTrue(row[3] <= row[4]);
+    }
+
+    private static void assertCalls(Map<String, long[]> metrics, String key, long calls,
+            long rows) {
+        long[] row = metrics.get(key);
+        assertEquals(key, calls, row[0]);
+        assertEquals(key, rows, row[1]);
+    }
+
+    /**
+     * Returns {calls, rows, p50, p95, p99} keyed by "uri operation".
+     */
+    private Map<String, long[]> readMetrics() {
+        String[] projection = {MetricsEntry.COLUMN_URI, MetricsEntry.COLUMN_OPERATION,
+                MetricsEntry.COLUMN_CALLS, MetricsEntry.COLUMN_ROWS,
+                MetricsEntry.COLUMN_P50_MICROS, MetricsEntry.COLUMN_P95_MICROS,
+                MetricsEntry.COLUMN_P99_MICROS};
+        Cursor cursor = mProvider.query(PetContract.CONTENT_METRICS_URI, projection, null, null,
+                null);
+        Map<String, long[]> metrics = new HashMap<>();
+        try {
+            while (cursor.moveToNext()) {
+                metrics.put(cursor.getString(0) + " " + cursor.getString(1), new long[]{
+                        cursor.getLong(2), cursor.getLong(3), cursor.getLong(4),
+                        cursor.getLong(5), cursor.getLong(6)});
+            }
+        } finally {
+            cursor.close();
+        }
+        return metrics;
+    }
+}
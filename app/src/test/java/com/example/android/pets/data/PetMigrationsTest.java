@@ -0,0 +1,339 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link PetMigrations} over a populated version 1 database, checking after every
+ * step that no pet was lost or changed, and checks with EXPLAIN QUERY PLAN that the catalog's
+ * sorts and filters are served by the indexes the migrations create.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetMigrationsTest {
+
+    private static final String DATABASE_NAME = "migrations_test.db";
+
+    /** Pets in the version 1 database */
+    private static final int PETS = 1000;
+
+    /** The highest pets are deleted before upgrading, so sqlite_sequence is ahead of max(_id) */
+    private static final int DELETED_PETS = 10;
+
+    private static final String[] BREEDS = {"Tabby", "Siamese", "Jack Russell", "Collie"};
+
+    private Context mContext;
+    private SQLiteDatabase mDatabase;
+    private PetDbHelper mDbHelper;
+
+    /** The pets of the version 1 database, by _id - 1; null where a pet was deleted */
+    private final List<ContentValues> mPets = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mDatabase != null) {
+            mDatabase.close();
+        }
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+    }
+
+    @Test
+    public void everyStepKeepsThePets() {
+        mDatabase = createVersion1Database();
+
+        for (int version = 2; version <= PetDbHelper.DATABASE_VERSION; version++) {
+            PetMigrations.migrate(mDatabase, version - 1, version);
+            assertPetsKept(mDatabase, version);
+            assertSchemaOf(mDatabase, version);
+        }
+    }
+
+    @Test
+    public void helperUpgradesVersion1Database() {
+        createVersion1Database().close();
+
+        mDbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        assertEquals(PetDbHelper.DATABASE_VERSION, database.getVersion());
+        assertPetsKept(database, PetDbHelper.DATABASE_VERSION);
+        assertSchemaOf(database, PetDbHelper.DATABASE_VERSION);
+        // Converted on open, outside of the upgrade's transaction
+        assertEquals(2, DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null));
+    }
+
+    @Test
+    public void breedDictionaryRebuildKeepsSequenceAndTriggers() {
+        createVersion1Database().close();
+        mDbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        assertFalse(exists(database, "table", "pets_new"));
+        assertFalse(hasColumn(database, "pets", "breed"));
+        assertTrue(hasColumn(database, "pets", "breed_id"));
+        assertEquals(BREEDS.length, count(database, "SELECT COUNT(*) FROM breeds"));
+        // The _ids of pets deleted before the upgrade are never handed out again
+        assertEquals(PETS - DELETED_PETS, count(database, "SELECT max(_id) FROM pets"));
+        assertEquals(PETS, count(database,
+                "SELECT seq FROM sqlite_sequence WHERE name = 'pets'"));
+
+        PetProvider provider = PetTests.newProvider(mDbHelper);
+        Uri petUri = provider.insert(PetContract.CONTENT_URI,
+                PetTests.pet("Rex", "Beagle", 1, 12));
+        assertEquals(PETS + 1, ContentUris.parseId(petUri));
+
+        // The recreated triggers keep the search index, stats and journal current
+        assertEquals(1, count(database, "SELECT COUNT(*) FROM pets_search " +
+                "WHERE pets_search MATCH 'rex beagle'"));
+        assertEquals(1, count(database, breedStats("Beagle")));
+        assertEquals(livePets() + 1, count(database, "SELECT COUNT(*) FROM pet_changes"));
+
+        long collies = count(database, breedCount(PetDbHelper.DATABASE_VERSION, "Collie"));
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_BREED, "Collie");
+        assertEquals(1, provider.update(petUri, values, null, null));
+
+        assertEquals(1, count(database, "SELECT COUNT(*) FROM pets_search " +
+                "WHERE pets_search MATCH 'rex collie'"));
+        assertEquals(0, count(database, "SELECT COUNT(*) FROM pet_stats " +
+                "WHERE dimension = '" + StatsEntry.DIMENSION_BREED + "' AND value = 'Beagle'"));
+        assertEquals(collies + 1, count(database, breedStats("Collie")));
+    }
+
+    @Test
+    public void indexesServeSortsAndFilters() {
+        createVersion1Database().close();
+        mDbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        assertPlanUsesIndex(database, "SELECT _id, name FROM pets WHERE deleted = 0 " +
+                "ORDER BY name", "pets_name_index");
+        assertPlanUsesIndex(database, "SELECT _id, name FROM pets WHERE deleted = 0 " +
+                "AND breed_id = 2 ORDER BY name", "pets_breed_index");
+        assertPlanUsesIndex(database, "SELECT _id, name FROM pets WHERE deleted = 0 " +
+                "AND gender = 1 ORDER BY name", "pets_gender_index");
+        // The compactor's search for tombstones
+        assertPlanUsesIndex(database, "SELECT _id FROM pets WHERE deleted > 0 LIMIT 500",
+                "pets_deleted_index");
+    }
+
+    @Test
+    public void version2IndexesServeBreedText() {
+        mDatabase = createVersion1Database();
+        PetMigrations.migrate(mDatabase, 1, 2);
+
+        assertPlanUsesIndex(mDatabase, "SELECT _id, name FROM pets WHERE breed = 'Collie' " +
+                "ORDER BY name", "pets_breed_index");
+    }
+
+    /**
+     * Creates the shelter database as version 1 of the app did, with {@link #PETS} pets, the
+     * last {@link #DELETED_PETS} of them and every 7th deleted again.
+     */
+    private SQLiteDatabase createVersion1Database() {
+        File file = mContext.getDatabasePath(DATABASE_NAME);
+        file.getParentFile().mkdirs();
+        SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        database.execSQL("CREATE TABLE pets (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "name TEXT NOT NULL, " +
+                "breed TEXT NOT NULL, " +
+                "gender INTEGER NOT NULL DEFAULT 0, " +
+                "weight INTEGER NOT NULL DEFAULT 0)");
+
+        mPets.clear();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < PETS; i++) {
+                ContentValues values = new ContentValues();
+                values.put("name", "Pet " + i);
+                values.put("breed", BREEDS[i % BREEDS.length]);
+                values.put("gender", i % 3);
+                values.put("weight", i % 40);
+                database.insertOrThrow("pets", null, values);
+                mPets.add(values);
+            }
+            database.execSQL("DELETE FROM pets WHERE _id > " + (PETS - DELETED_PETS) +
+                    " OR _id % 7 = 0");
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        for (int id = 1; id <= PETS; id++) {
+            if (id > PETS - DELETED_PETS || id % 7 == 0) {
+                mPets.set(id - 1, null);
+            }
+        }
+
+        database.setVersion(1);
+        return database;
+    }
+
+    private int livePets() {
+        int count = 0;
+        for (ContentValues pet : mPets) {
+            if (pet != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Checks that every pet of the version 1 database is still there with its _id and values.
+     */
+    private void assertPetsKept(SQLiteDatabase database, int version) {
+        String breed = version >= 8
+                ? "(SELECT breed FROM breeds b WHERE b.breed_id = p.breed_id)"
+                : "breed";
+        Cursor cursor = database.rawQuery("SELECT _id, name, " + breed + ", gender, weight " +
+                "FROM pets p ORDER BY _id", null);
+        try {
+            assertEquals("pets at version " + version, livePets(), cursor.getCount());
+            while (cursor.moveToNext()) {
+                ContentValues pet = mPets.get(cursor.getInt(0) - 1);
+                String at = "pet " + cursor.getInt(0) + " at version " + version;
+                assertEquals(at, pet.getAsString("name"), cursor.getString(1));
+                assertEquals(at, pet.getAsString("breed"), cursor.getString(2));
+                assertEquals(at, (int) pet.getAsInteger("gender"), cursor.getInt(3));
+                assertEquals(at, (int) pet.getAsInteger("weight"), cursor.getInt(4));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Checks what the migration to the given version added, and that it covers the pets that
+     * already existed.
+     */
+    private void assertSchemaOf(SQLiteDatabase database, int version) {
+        int pets = livePets();
+        if (version >= 2) {
+            assertTrue(exists(database, "index", "pets_name_index"));
+            assertTrue(exists(database, "index", "pets_breed_index"));
+            assertTrue(exists(database, "index", "pets_gender_index"));
+        }
+        if (version >= 3) {
+            assertEquals(pets, count(database, "SELECT COUNT(*) FROM pets_search " +
+                    "WHERE pets_search MATCH 'pet'"));
+            assertEquals(count(database, breedCount(version, "Jack Russell")),
+                    count(database, "SELECT COUNT(*) FROM pets_search " +
+                            "WHERE pets_search MATCH 'russell'"));
+        }
+        if (version >= 4) {
+            assertEquals(pets, count(database, "SELECT " + StatsEntry.COLUMN_PET_COUNT +
+                    " FROM pet_stats WHERE dimension = '" + StatsEntry.DIMENSION_ALL + "'"));
+            assertEquals(count(database, breedCount(version, "Collie")),
+                    count(database, "SELECT " + StatsEntry.COLUMN_PET_COUNT + " FROM pet_stats " +
+                            "WHERE dimension = '" + StatsEntry.DIMENSION_BREED +
+                            "' AND value = 'Collie'"));
+        }
+        if (version >= 5) {
+            assertTrue(exists(database, "index", "pets_deleted_index"));
+            assertEquals(0, count(database, "SELECT COUNT(*) FROM pets WHERE deleted <> 0"));
+        }
+        if (version >= 6) {
+            assertEquals(0, count(database, "SELECT COUNT(*) FROM pets " +
+                    "WHERE photo_offset IS NOT NULL OR photo_length IS NOT NULL"));
+        }
+        if (version >= 7) {
+            assertEquals(pets, count(database,
+                    "SELECT COUNT(DISTINCT sync_id) FROM pets WHERE sync_id IS NOT NULL"));
+            assertEquals(pets, count(database, "SELECT COUNT(*) FROM pet_changes"));
+        }
+    }
+
+    /** SQL counting the pets of the given breed, at the given schema version */
+    private static String breedCount(int version, String breed) {
+        return version >= 8
+                ? "SELECT COUNT(*) FROM pets JOIN breeds USING (breed_id) " +
+                        "WHERE breeds.breed = '" + breed + "'"
+                : "SELECT COUNT(*) FROM pets WHERE breed = '" + breed + "'";
+    }
+
+    /** SQL for the number of pets the stats hold for the given breed */
+    private static String breedStats(String breed) {
+        return "SELECT " + StatsEntry.COLUMN_PET_COUNT + " FROM pet_stats " +
+                "WHERE dimension = '" + StatsEntry.DIMENSION_BREED + "' AND value = '" +
+                breed + "'";
+    }
+
+    private static void assertPlanUsesIndex(SQLiteDatabase database, String sql, String index) {
+        String plan = explain(database, sql);
+        assertTrue(sql + " doesn't use " + index + ": " + plan,
+                plan.contains("USING INDEX " + index) ||
+                        plan.contains("USING COVERING INDEX " + index));
+        assertFalse(sql + " sorts: " + plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /** Returns the details of the query plan, a line per step */
+    private static String explain(SQLiteDatabase database, String sql) {
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean exists(SQLiteDatabase database, String type, String name) {
+        return DatabaseUtils.longForQuery(database,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = ? AND name = ?",
+                new String[]{type, name}) > 0;
+    }
+
+    private static boolean hasColumn(SQLiteDatabase database, String table, String column) {
+        Cursor cursor = database.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int name = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(name))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long count(SQLiteDatabase database, String sql) {
+        return DatabaseUtils.longForQuery(database, sql, null);
+    }
+}
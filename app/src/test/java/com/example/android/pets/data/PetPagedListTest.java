@@ -0,0 +1,222 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.PetPagedList;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PetPagedList} pages the pets in as the list scrolls, that pets inserted
+ * one at a time land at the right positions as they fill up the tail page, and that a change to
+ * one pet is reported as just that row.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetPagedListTest {
+
+    private static final String[] PROJECTION = {PetEntry._ID, PetEntry.COLUMN_PET_NAME};
+
+    /** Longest the test waits for a page query */
+    private static final long TIMEOUT_MS = 10000;
+
+    private final RecordingCallback mCallback = new RecordingCallback();
+
+    private PetProvider mProvider;
+    private PetPagedList mList;
+
+    @Before
+    public void setUp() {
+        mProvider = PetTests.newProvider("paged_list_test.db");
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY, mProvider);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        mList = new PetPagedList(resolver, PROJECTION, mCallback);
+    }
+
+    @After
+    public void tearDown() {
+        mList.close();
+    }
+
+    @Test
+    public void pagesInAsTheListScrolls() {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 120));
+
+        assertFalse(mList.isFirstPageLoaded());
+        mList.start();
+        awaitCount(50);
+        assertTrue(mList.isFirstPageLoaded());
+        // Binding near the end of the loaded rows prefetches the next page
+        assertEquals(31, rowId(30));
+        awaitCount(100);
+        assertEquals(100, rowId(99));
+        awaitCount(120);
+
+        assertRowsInOrder(120);
+    }
+
+    @Test
+    public void insertedPetsFillTheTailPage() {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 60));
+        mList.start();
+        awaitCount(50);
+        rowId(49);
+        awaitCount(60);
+
+        // Enough single inserts to fill the short tail page and start two more
+        for (int i = 0; i < 100; i++) {
+            mCallback.inserted.clear();
+            mProvider.insert(PetContract.CONTENT_URI, PetTests.pets(60 + i, 1)[0]);
+            mList.refresh();
+            awaitCount(61 + i);
+            assertEquals("Insert " + i, 1, mCallback.inserted.size());
+            assertEquals("Insert " + i, 60 + i, (int) mCallback.inserted.get(0));
+        }
+
+        assertRowsInOrder(160);
+        assertEquals(0, mCallback.removed.size());
+    }
+
+    @Test
+    public void petChangesAreReportedByRow() {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 120));
+        mList.start();
+        awaitCount(50);
+        rowId(49);
+        awaitCount(100);
+
+        mCallback.clear();
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Rex");
+        assertEquals(1, mProvider.update(petUri(70), values, null, null));
+        mList.refreshPet(70);
+        awaitChanged(1);
+        assertEquals(69, (int) mCallback.changed.get(0));
+        assertEquals(0, mCallback.inserted.size());
+        assertEquals(0, mCallback.removed.size());
+
+        mCallback.clear();
+        assertEquals(1, mProvider.delete(petUri(10), null, null));
+        mList.refreshPet(10);
+        awaitCount(99);
+        assertEquals(1, mCallback.removed.size());
+        assertEquals(9, (int) mCallback.removed.get(0));
+        assertEquals(0, mCallback.changed.size());
+        // The rows after the deleted pet moved up a position
+        assertEquals(11, rowId(9));
+        assertEquals(71, rowId(69));
+    }
+
+    /**
+     * Checks that every position holds the pet with the next _id, loading evicted pages again.
+     */
+    private void assertRowsInOrder(int count) {
+        assertEquals(count, mList.getCount());
+        for (int position = 0; position < count; position++) {
+            assertEquals(position + 1, rowId(position));
+        }
+    }
+
+    /**
+     * Returns the _id at the given position, waiting for its page to be queried if needed.
+     */
+    private long rowId(int position) {
+        long deadline = deadline();
+        Cursor cursor;
+        while ((cursor = mList.getRow(position)) == null) {
+            waitForPages(deadline, "Position " + position + " never loaded");
+        }
+        return cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry._ID));
+    }
+
+    private static Uri petUri(long id) {
+        return ContentUris.withAppendedId(PetContract.CONTENT_URI, id);
+    }
+
+    private void awaitChanged(int count) {
+        long deadline = deadline();
+        while (mCallback.changed.size() < count) {
+            waitForPages(deadline, "Changed " + mCallback.changed + ", not " + count + " rows");
+        }
+    }
+
+    private void awaitCount(int count) {
+        long deadline = deadline();
+        while (mList.getCount() != count) {
+            waitForPages(deadline, "Paged in " + mList.getCount() + " pets, not " + count);
+        }
+    }
+
+    private static long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    }
+
+    /**
+     * Lets the background queries run and hands their results to the main thread.
+     */
+    private static void waitForPages(long deadline, String message) {
+        if (System.nanoTime() > deadline) {
+            fail(message);
+        }
+        ShadowLooper.runUiThreadTasks();
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Records the start of each reported range. The list reports changes one row at a time, so
+     * the counts are checked too.
+     */
+    private static class RecordingCallback implements PetPagedList.Callback {
+        final List<Integer> changed = new ArrayList<>();
+        final List<Integer> inserted = new ArrayList<>();
+        final List<Integer> removed = new ArrayList<>();
+
+        void clear() {
+            changed.clear();
+            inserted.clear();
+            removed.clear();
+        }
+
+        @Override
+        public void onItemRangeChanged(int positionStart, int itemCount) {
+            assertTrue(itemCount > 0);
+            changed.add(positionStart);
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            assertTrue(itemCount > 0);
+            inserted.add(positionStart);
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            assertTrue(itemCount > 0);
+            removed.add(positionStart);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PetPhotoStore} hands back the bytes of every appended photo, also after
+ * later appends grow the file past its mapping, and that a failed append leaves nothing behind.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetPhotoStoreTest {
+
+    private File mFile;
+    private PetPhotoStore mStore;
+
+    @Before
+    public void setUp() {
+        mFile = new File(RuntimeEnvironment.application.getFilesDir(), "photo_store_test.blob");
+        mFile.delete();
+        mStore = new PetPhotoStore(mFile);
+    }
+
+    @Test
+    public void readsBackAppendedPhotos() throws IOException {
+        byte[] first = photo(1000, 1);
+        ContentValues firstPet = append(first);
+        // Maps the file as it is now
+        assertPhoto(first, firstPet);
+
+        byte[] second = photo(20000, 2);
+        ContentValues secondPet = append(second);
+
+        assertEquals(firstPet.getAsLong(PetEntry.COLUMN_PET_PHOTO_OFFSET) + first.length,
+                (long) secondPet.getAsLong(PetEntry.COLUMN_PET_PHOTO_OFFSET));
+        assertPhoto(second, secondPet);
+        assertPhoto(first, firstPet);
+    }
+
+    @Test
+    public void failedAppendLeavesNothing() throws IOException {
+        append(photo(100, 3));
+        long size = mFile.length();
+
+        ContentValues pet = new ContentValues();
+        try {
+            mStore.append(new ByteArrayInputStream(new byte[0]), pet);
+            fail("Appended an empty photo");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(size, mFile.length());
+        assertFalse(pet.containsKey(PetEntry.COLUMN_PET_PHOTO_OFFSET));
+    }
+
+    private ContentValues append(byte[] photo) throws IOException {
+        ContentValues pet = new ContentValues();
+        InputStream in = new ByteArrayInputStream(photo);
+        mStore.append(in, pet);
+        assertEquals(photo.length, (int) pet.getAsInteger(PetEntry.COLUMN_PET_PHOTO_LENGTH));
+        return pet;
+    }
+
+    private void assertPhoto(byte[] expected, ContentValues pet) throws IOException {
+        ByteBuffer buffer = mStore.read(pet.getAsLong(PetEntry.COLUMN_PET_PHOTO_OFFSET),
+                pet.getAsInteger(PetEntry.COLUMN_PET_PHOTO_LENGTH));
+        byte[] actual = new byte[buffer.remaining()];
+        buffer.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    /** Returns a photo of the given size whose bytes depend on the seed */
+    private static byte[] photo(int size, int seed) {
+        byte[] photo = new byte[size];
+        for (int i = 0; i < size; i++) {
+            photo[i] = (byte) (i * 31 + seed);
+        }
+        return photo;
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures the throughput of {@link PetProvider#bulkInsert} against inserting the same rows
+ * one by one, in rows per second for 10k-row batches.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetProviderBatchBenchmark {
+
+    /** Rows per batch */
+    private static final int BATCH_SIZE = 10000;
+
+    private final BenchmarkReport mReport = new BenchmarkReport(PetProviderBatchBenchmark.class);
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = PetTests.newProvider("batch_benchmark.db");
+    }
+
+    @Test
+    public void bulkInsertAgainstSingleInserts() throws Exception {
+        // Warm up the JIT and SQLite before timing either
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 1000));
+        for (ContentValues values : PetTests.pets(0, 1000)) {
+            mProvider.insert(PetContract.CONTENT_URI, values);
+        }
+
+        ContentValues[] pets = PetTests.pets(0, BATCH_SIZE);
+        long start = System.nanoTime();
+        for (ContentValues values : pets) {
+            assertNotNull(mProvider.insert(PetContract.CONTENT_URI, values));
+        }
+        long singleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        assertEquals(BATCH_SIZE, mProvider.bulkInsert(PetContract.CONTENT_URI, pets));
+        long bulkNanos = System.nanoTime() - start;
+
+        mReport.record("single_insert_rows_per_second",
+                BenchmarkReport.perSecond(BATCH_SIZE, singleNanos));
+        mReport.record("bulk_insert_rows_per_second",
+                BenchmarkReport.perSecond(BATCH_SIZE, bulkNanos));
+    }
+}
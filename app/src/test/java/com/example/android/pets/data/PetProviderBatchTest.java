@@ -0,0 +1,177 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks that {@link PetProvider#bulkInsert} and {@link PetProvider#applyBatch} write all or
+ * nothing, and that writes notify the changed pets, or the whole table for large batches, only
+ * after they commit.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetProviderBatchTest {
+
+    /** Rows in a large batch */
+    private static final int BATCH_SIZE = 1000;
+
+    private PetProvider mProvider;
+    private List<ShadowContentResolver.NotifiedUri> mNotifiedUris;
+
+    @Before
+    public void setUp() {
+        mProvider = PetTests.newProvider("batch_test.db");
+        mNotifiedUris = shadowOf(RuntimeEnvironment.application.getContentResolver())
+                .getNotifiedUris();
+        mNotifiedUris.clear();
+    }
+
+    @Test
+    public void bulkInsertNotifiesOnce() {
+        assertEquals(BATCH_SIZE,
+                mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, BATCH_SIZE)));
+
+        assertEquals(BATCH_SIZE, countPets());
+        assertEquals(1, mNotifiedUris.size());
+        assertEquals(PetContract.CONTENT_URI, mNotifiedUris.get(0).uri);
+    }
+
+    @Test
+    public void bulkInsertOfSmallBatchNotifiesEachPet() {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 3));
+
+        assertEquals(3, mNotifiedUris.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ContentUris.withAppendedId(PetContract.CONTENT_URI, i + 1),
+                    mNotifiedUris.get(i).uri);
+        }
+    }
+
+    @Test
+    public void updateBySelectionNotifiesEachChangedPet() {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 10));
+        mNotifiedUris.clear();
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+        assertEquals(2, mProvider.update(PetContract.CONTENT_URI, values,
+                PetEntry.COLUMN_PET_BREED + " = ?", new String[]{PetTests.BREEDS[1]}));
+
+        // Pets 2 and 7 have the second breed
+        assertEquals(2, mNotifiedUris.size());
+        assertEquals(ContentUris.withAppendedId(PetContract.CONTENT_URI, 2),
+                mNotifiedUris.get(0).uri);
+        assertEquals(ContentUris.withAppendedId(PetContract.CONTENT_URI, 7),
+                mNotifiedUris.get(1).uri);
+    }
+
+    @Test
+    public void bulkInsertWithInvalidRowWritesNothing() {
+        ContentValues[] pets = PetTests.pets(0, 100);
+        pets[50].put(PetEntry.COLUMN_PET_WEIGHT, -1);
+        try {
+            mProvider.bulkInsert(PetContract.CONTENT_URI, pets);
+            fail("Bulk insert took an invalid pet");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(0, countPets());
+        assertEquals(0, mNotifiedUris.size());
+    }
+
+    @Test
+    public void bulkInsertKeepsPhotos() {
+        ContentValues[] pets = PetTests.pets(0, 2);
+        pets[1].put(PetEntry.COLUMN_PET_PHOTO_OFFSET, 4096L);
+        pets[1].put(PetEntry.COLUMN_PET_PHOTO_LENGTH, 1200);
+        assertEquals(2, mProvider.bulkInsert(PetContract.CONTENT_URI, pets));
+
+        Cursor cursor = mProvider.query(PetContract.CONTENT_URI, new String[]{
+                        PetEntry.COLUMN_PET_PHOTO_OFFSET, PetEntry.COLUMN_PET_PHOTO_LENGTH},
+                null, null, PetEntry._ID);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToNext());
+            assertTrue(cursor.isNull(0));
+            assertTrue(cursor.isNull(1));
+            assertTrue(cursor.moveToNext());
+            assertEquals(4096, cursor.getLong(0));
+            assertEquals(1200, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void bulkInsertRejectsHalfAPhoto() {
+        ContentValues[] pets = PetTests.pets(0, 2);
+        pets[1].put(PetEntry.COLUMN_PET_PHOTO_OFFSET, 4096L);
+        try {
+            mProvider.bulkInsert(PetContract.CONTENT_URI, pets);
+            fail("Bulk insert took a photo without a length");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(0, countPets());
+    }
+
+    @Test
+    public void applyBatchRollsBackOnFailure() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (ContentValues values : PetTests.pets(0, 10)) {
+            operations.add(ContentProviderOperation.newInsert(PetContract.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+        }
+        // There is no pet 1000, so the expected count fails the batch
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(PetContract.CONTENT_URI, 1000))
+                .withValue(PetEntry.COLUMN_PET_WEIGHT, 3)
+                .withExpectedCount(1)
+                .build());
+        try {
+            mProvider.applyBatch(operations);
+            fail("Batch with a failing operation committed");
+        } catch (OperationApplicationException expected) {
+        }
+
+        assertEquals(0, countPets());
+        assertEquals(0, mNotifiedUris.size());
+
+        operations.remove(operations.size() - 1);
+        assertEquals(10, mProvider.applyBatch(operations).length);
+        assertEquals(10, countPets());
+        assertEquals(10, mNotifiedUris.size());
+    }
+
+    private int countPets() {
+        Cursor cursor = mProvider.query(PetContract.CONTENT_URI, new String[]{PetEntry._ID},
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.android.pets.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Counts the bytes allocated per row reading a 100k pet provider query through
+ * {@link PetRowReader}, at the shelter size the catalog is built for. Unlike the timings of
+ * the other benchmarks the count doesn't depend on the machine, so it is checked as well as
+ * recorded.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = ShadowCopyingCursorWindow.class)
+public class PetRowReaderBenchmark {
+
+    /** Pets in the shelter */
+    private static final int PETS = 100000;
+
+    private final BenchmarkReport mReport = new BenchmarkReport(PetRowReaderBenchmark.class);
+
+    @Test
+    public void allocationsPerRow() throws Exception {
+        assumeTrue(PetRowReaderTest.allocationCountingSupported());
+
+        PetProvider provider = PetTests.newProvider("row_reader_benchmark.db");
+        provider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, PETS));
+        long[] bytes = PetRowReaderTest.countReaderAllocations(provider, PETS);
+
+        mReport.record("step_bytes_per_row", bytes[0] / PETS);
+        mReport.record("reader_bytes_per_row", (bytes[1] - bytes[0]) / PETS);
+        assertTrue("Reader allocated " + bytes[1] + " bytes for " + PETS +
+                        " rows, stepping the cursor alone " + bytes[0],
+                bytes[1] - bytes[0] <= PetRowReaderTest.MAX_BYTES_PER_ROW * PETS);
+    }
+}
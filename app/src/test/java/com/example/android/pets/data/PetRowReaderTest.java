@@ -0,0 +1,207 @@
+package com.example.android.pets.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks what {@link PetRowReader} reads, and that reading the rows of a provider query through
+ * it allocates nothing per row. PetRowReaderBenchmark runs the same check over 100k pets.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = ShadowCopyingCursorWindow.class)
+public class PetRowReaderTest {
+
+    /** Pets in the shelter the allocation test reads */
+    private static final int PETS = 5000;
+
+    /** Bytes per row the reader may allocate, for whatever the JVM allocates on its own */
+    static final long MAX_BYTES_PER_ROW = 1;
+
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO_OFFSET,
+            PetEntry.COLUMN_PET_PHOTO_LENGTH};
+
+    @Test
+    public void readsTypedColumns() {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[]{7L, "Tom", "Tabby", PetEntry.GENDER_MALE, 4, 4096L, 1200});
+        cursor.addRow(new Object[]{8L, "A rather long name for a cat", "Siamese",
+                PetEntry.GENDER_FEMALE, 3, null, null});
+
+        PetRowReader row = new PetRowReader();
+        CharArrayBuffer buffer = new CharArrayBuffer(4);
+
+        assertTrue(cursor.moveToNext());
+        row.moveTo(cursor);
+        assertEquals(7, row.getId());
+        assertEquals("Tom", row.getName());
+        row.copyBreed(buffer);
+        assertEquals("Tabby", new String(buffer.data, 0, buffer.sizeCopied));
+        assertEquals(PetEntry.GENDER_MALE, row.getGender());
+        assertEquals(4, row.getWeight());
+        assertTrue(row.hasPhoto());
+        assertEquals(4096, row.getPhotoOffset());
+        assertEquals(1200, row.getPhotoLength());
+
+        assertTrue(cursor.moveToNext());
+        row.moveTo(cursor);
+        // The name doesn't fit in the buffer, which grows
+        row.copyName(buffer);
+        assertEquals("A rather long name for a cat",
+                new String(buffer.data, 0, buffer.sizeCopied));
+        assertFalse(row.hasPhoto());
+
+        Pet pet = row.toPet();
+        assertEquals(8, pet.getId());
+        assertEquals("Siamese", pet.getBreed());
+        assertEquals(PetEntry.GENDER_FEMALE, pet.getGender());
+        assertEquals(3, pet.getWeight());
+        cursor.close();
+    }
+
+    @Test
+    public void missingColumnThrows() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{PetEntry._ID});
+        cursor.addRow(new Object[]{1L});
+        assertTrue(cursor.moveToFirst());
+
+        PetRowReader row = new PetRowReader().moveTo(cursor);
+        assertEquals(1, row.getId());
+        try {
+            row.getWeight();
+            fail("Read a weight from a cursor without one");
+        } catch (IllegalStateException expected) {
+        }
+        cursor.close();
+    }
+
+    @Test
+    public void readingProviderRowsDoesNotAllocate() {
+        assumeTrue(allocationCountingSupported());
+
+        PetProvider provider = PetTests.newProvider("row_reader_test.db");
+        provider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, PETS));
+        long[] bytes = countReaderAllocations(provider, PETS);
+
+        assertTrue("Reader allocated " + bytes[1] + " bytes for " + PETS +
+                        " rows, stepping the cursor alone " + bytes[0],
+                bytes[1] - bytes[0] <= MAX_BYTES_PER_ROW * PETS);
+    }
+
+    /**
+     * Reads every pet of the provider the way the catalog binds them, and returns the bytes
+     * this thread allocated stepping through the rows without reading them, and reading them
+     * through a {@link PetRowReader}. Stepping the cursor costs the same however the columns
+     * are read, since moving into a new window fills it, so the difference is what the reader
+     * allocates itself. Both loops are warmed up first, so neither is counted while the JIT
+     * compiles it.
+     */
+    static long[] countReaderAllocations(PetProvider provider, int pets) {
+        Cursor cursor = provider.query(PetContract.CONTENT_URI, COLUMNS, null, null,
+                PetEntry._ID);
+        assertNotNull(cursor);
+        PetRowReader row = new PetRowReader();
+        CharArrayBuffer name = new CharArrayBuffer(64);
+        CharArrayBuffer breed = new CharArrayBuffer(64);
+        try {
+            assertEquals(pets, cursor.getCount());
+            for (int i = 0; i < 3; i++) {
+                step(cursor);
+                readWithReader(cursor, row, name, breed);
+            }
+
+            long start = allocatedBytes();
+            step(cursor);
+            long stepBytes = allocatedBytes() - start;
+
+            start = allocatedBytes();
+            long checksum = readWithReader(cursor, row, name, breed);
+            long readerBytes = allocatedBytes() - start;
+
+            assertEquals(expectedChecksum(pets), checksum);
+            return new long[]{stepBytes, readerBytes};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Moves through every row without reading it.
+     */
+    private static void step(Cursor cursor) {
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            // Only the cursor's own work
+        }
+    }
+
+    /**
+     * Reads every row the way {@link com.example.android.pets.PetCursorAdapter} binds it,
+     * returning a checksum so the reads can't be optimized away.
+     */
+    private static long readWithReader(Cursor cursor, PetRowReader row, CharArrayBuffer name,
+                                       CharArrayBuffer breed) {
+        long checksum = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            row.moveTo(cursor);
+            row.copyName(name);
+            row.copyBreed(breed);
+            checksum += row.getId() + name.sizeCopied + breed.sizeCopied + row.getGender() +
+                    row.getWeight();
+            if (row.hasPhoto()) {
+                checksum += row.getPhotoOffset() + row.getPhotoLength();
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Returns the checksum {@link #readWithReader} gives for the pets of {@link PetTests#pets},
+     * which have no photos.
+     */
+    private static long expectedChecksum(int pets) {
+        long checksum = 0;
+        for (int i = 0; i < pets; i++) {
+            String name = "Pet " + i;
+            String breed = PetTests.BREEDS[i % PetTests.BREEDS.length];
+            checksum += i + 1 + name.length() + breed.length() + i % 3 + i % 40;
+        }
+        return checksum;
+    }
+
+    static boolean allocationCountingSupported() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported();
+    }
+
+    /** Bytes allocated by this thread so far */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
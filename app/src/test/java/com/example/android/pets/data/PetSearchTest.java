@@ -0,0 +1,138 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the full-text search of {@link PetContract#CONTENT_SEARCH_URI}: prefix matching,
+ * ranking, input that looks like FTS syntax, and that the index follows pet changes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetSearchTest {
+
+    private static final String[] PROJECTION = {PetEntry._ID, PetEntry.COLUMN_PET_NAME};
+
+    private PetDbHelper mDbHelper;
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mDbHelper = PetTests.newDbHelper("search_test.db");
+        mProvider = PetTests.newProvider(mDbHelper);
+    }
+
+    @Test
+    public void everyWordIsPrefixMatched() {
+        insert("Goldie", "Golden Retriever");
+        insert("Goldfinger", "Labrador");
+        insert("Rex", "Retriever");
+
+        assertEquals(Arrays.asList("Goldfinger", "Goldie"), search("gold"));
+        assertEquals(Arrays.asList("Goldie"), search("Gold ret"));
+    }
+
+    @Test
+    public void nameMatchesRankAboveBreedMatches() {
+        insert("Alfie", "Collie");
+        insert("Collie", "Tabby");
+        insert("Bonnie", "Collie");
+
+        assertEquals(Arrays.asList("Collie", "Alfie", "Bonnie"), search("collie"));
+    }
+
+    @Test
+    public void searchSyntaxInTheTextIsIgnored() {
+        insert("Rex", "Beagle");
+        insert("Max", "Beagle");
+
+        // Unbalanced quotes and operators would be FTS syntax errors if passed through
+        assertEquals(Arrays.asList("Rex"), search("\"rex"));
+        assertEquals(Arrays.asList("Rex"), search("-rex*"));
+        assertEquals(0, search(" !? ").size());
+        assertEquals(0, search(null).size());
+    }
+
+    @Test
+    public void searchTakesSelectionAndLimit() {
+        insert("Pip", "Beagle", 1);
+        insert("Poppy", "Beagle", 2);
+        insert("Percy", "Beagle", 1);
+
+        Cursor cursor = mProvider.query(PetContract.buildSearchUri("beagle", 1), PROJECTION,
+                PetEntry.COLUMN_PET_GENDER + " = ?", new String[]{"1"}, null);
+        assertEquals(Arrays.asList("Percy"), names(cursor));
+
+        cursor = mProvider.query(PetContract.buildSearchUri("beagle", 10), PROJECTION,
+                PetEntry.COLUMN_PET_GENDER + " = 2", null, null);
+        assertEquals(Arrays.asList("Poppy"), names(cursor));
+    }
+
+    @Test
+    public void triggersKeepTheIndexCurrent() {
+        String[] rex = {String.valueOf(ContentUris.parseId(insert("Rex", "Beagle")))};
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Max");
+        assertEquals(1, database.update(PetContract.TABLE_NAME, values, PetEntry._ID + " = ?",
+                rex));
+        assertEquals(0, search("rex").size());
+        assertEquals(Arrays.asList("Max"), search("max beagle"));
+
+        assertEquals(1, database.delete(PetContract.TABLE_NAME, PetEntry._ID + " = ?", rex));
+        assertEquals(0, search("max").size());
+    }
+
+    private Uri insert(String name, String breed) {
+        return insert(name, breed, PetEntry.GENDER_UNKNOWN);
+    }
+
+    private Uri insert(String name, String breed, int gender) {
+        Uri uri = mProvider.insert(PetContract.CONTENT_URI, PetTests.pet(name, breed, gender, 10));
+        assertNotNull(uri);
+        assertTrue(ContentUris.parseId(uri) > 0);
+        return uri;
+    }
+
+    private List<String> search(String text) {
+        Uri uri = PetContract.CONTENT_SEARCH_URI;
+        if (text != null) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(PetContract.QUERY_PARAMETER_SEARCH, text)
+                    .build();
+        }
+        return names(mProvider.query(uri, PROJECTION, null, null, null));
+    }
+
+    private static List<String> names(Cursor cursor) {
+        assertNotNull(cursor);
+        try {
+            List<String> names = new ArrayList<>();
+            int name = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(name));
+            }
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.pets.data;
+
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the memory limit of {@link PetSnapshotCache}: the default fits a shelter of 100,000
+ * pets, and a cache that went over its limit serves snapshots again once the pets fit.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetSnapshotCacheTest {
+
+    /** Fits about 1,000 of the test pets, whose names are 5 to 8 characters */
+    private static final long MAX_BYTES = 48 * 1024;
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        PetDbHelper dbHelper = PetTests.newDbHelper("snapshot_cache_test.db");
+        PetTests.newProvider(dbHelper).bulkInsert(PetContract.CONTENT_URI,
+                PetTests.pets(0, 2000));
+        mDatabase = dbHelper.getWritableDatabase();
+    }
+
+    @Test
+    public void defaultLimitFits100000Pets() {
+        PetSnapshot.Builder builder = new PetSnapshot.Builder();
+        MatrixCursor rows = new MatrixCursor(PetSnapshot.COLUMNS);
+        for (long id = 1; id <= 1000; id++) {
+            // Names of 20 characters, longer than most
+            rows.addRow(new Object[] {id, String.format("Pet number %09d", id), 1, 0, 10,
+                    id * 1000, 1000});
+        }
+        while (rows.moveToNext()) {
+            builder.addRow(rows);
+        }
+        assertTrue(builder.build().sizeBytes() * 100 <= PetSnapshotCache.DEFAULT_MAX_BYTES);
+    }
+
+    @Test
+    public void overLimitRecoversWhenPetsFit() throws Exception {
+        PetSnapshotCache cache = new PetSnapshotCache(MAX_BYTES);
+        assertNull(cache.get(mDatabase));
+        awaitDump(cache, "over the limit");
+        // No snapshot, and no new attempt until enough pets change
+        assertNull(cache.get(mDatabase));
+        assertTrue(dump(cache), dump(cache).contains(" 1 rebuilds"));
+
+        // Deleting this many pets gets the whole table read again
+        mDatabase.delete(PetContract.TABLE_NAME, PetEntry._ID + " > 500", null);
+        for (long id = 501; id <= 2000; id++) {
+            cache.invalidate(id);
+        }
+        PetSnapshot snapshot = awaitSnapshot(cache);
+        assertEquals(500, snapshot.size());
+        assertFalse(dump(cache), dump(cache).contains("over the limit"));
+
+        // Small changes keep the snapshot current as usual
+        mDatabase.delete(PetContract.TABLE_NAME, PetEntry._ID + " = 1", null);
+        cache.invalidate(1);
+        snapshot = cache.get(mDatabase);
+        assertNotNull(snapshot);
+        assertEquals(499, snapshot.size());
+    }
+
+    /**
+     * Gets the snapshot until it has been built in the background.
+     */
+    private PetSnapshot awaitSnapshot(PetSnapshotCache cache) throws InterruptedException {
+        for (int attempt = 0; attempt < 200; attempt++) {
+            PetSnapshot snapshot = cache.get(mDatabase);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            Thread.sleep(25);
+        }
+        throw new AssertionError("The snapshot was never built");
+    }
+
+    /**
+     * Waits until the cache's dump says the given text, without asking it for the snapshot.
+     */
+    private static void awaitDump(PetSnapshotCache cache, String text)
+            throws InterruptedException {
+        for (int attempt = 0; attempt < 200; attempt++) {
+            if (dump(cache).contains(text)) {
+                return;
+            }
+            Thread.sleep(25);
+        }
+        throw new AssertionError("The dump never said \"" + text + "\": " + dump(cache));
+    }
+
+    private static String dump(PetSnapshotCache cache) {
+        StringWriter dump = new StringWriter();
+        cache.dump(new PrintWriter(dump));
+        return dump.toString();
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that pets queries answered from the {@link PetSnapshot} return exactly what SQLite
+ * returns, through rebuilds and incremental updates.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetSnapshotTest {
+
+    /** The truth the snapshot is compared with, straight from the tables */
+    private static final String SQL_LIVE_PETS = "SELECT " + PetEntry._ID + ", " +
+            PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", " +
+            PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", " +
+            PetEntry.COLUMN_PET_PHOTO_OFFSET + ", " + PetEntry.COLUMN_PET_PHOTO_LENGTH +
+            " FROM " + PetContract.TABLE_NAME + " JOIN " + PetContract.BREEDS_TABLE_NAME +
+            " USING (" + PetEntry.COLUMN_PET_BREED_ID + ") WHERE " +
+            PetEntry.COLUMN_PET_DELETED + " = 0 ORDER BY " + PetEntry._ID;
+
+    private PetDbHelper mDbHelper;
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mDbHelper = PetTests.newDbHelper("snapshot_test.db");
+        mProvider = PetTests.newProvider(mDbHelper);
+    }
+
+    @Test
+    public void rebuildReadsEveryPage() throws Exception {
+        int count = PetSnapshotCache.REBUILD_PAGE_SIZE * 2 + 17;
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, count));
+
+        Cursor cursor = awaitSnapshot();
+        try {
+            assertEquals(count, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        assertMatchesDatabase();
+    }
+
+    @Test
+    public void matchesDatabaseAfterRandomWrites() throws Exception {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 3000));
+        awaitSnapshot().close();
+
+        Random random = new Random(42);
+        ArrayList<Long> ids = new ArrayList<>();
+        for (long id = 1; id <= 3000; id++) {
+            ids.add(id);
+        }
+
+        for (int round = 0; round < 100; round++) {
+            int writes = 1 + random.nextInt(20);
+            for (int i = 0; i < writes; i++) {
+                int kind = random.nextInt(10);
+                if (kind < 3 || ids.isEmpty()) {
+                    ContentValues values = PetTests.pets(random.nextInt(1000), 1)[0];
+                    ids.add(ContentUris.parseId(
+                            mProvider.insert(PetContract.CONTENT_URI, values)));
+                } else if (kind < 7) {
+                    long id = ids.get(random.nextInt(ids.size()));
+                    ContentValues values = new ContentValues();
+                    values.put(PetEntry.COLUMN_PET_NAME, "Renamed " + round + "/" + i);
+                    values.put(PetEntry.COLUMN_PET_BREED, "Breed " + random.nextInt(30));
+                    values.put(PetEntry.COLUMN_PET_WEIGHT, random.nextInt(50));
+                    mProvider.update(ContentUris.withAppendedId(PetContract.CONTENT_URI, id),
+                            values, null, null);
+                } else {
+                    long id = ids.remove(random.nextInt(ids.size()));
+                    mProvider.delete(ContentUris.withAppendedId(PetContract.CONTENT_URI, id),
+                            null, null);
+                }
+            }
+
+            Cursor cursor = querySnapshot(PetSnapshot.COLUMNS, 0, 0);
+            try {
+                assertTrue("Served from the snapshot", isSnapshot(cursor));
+            } finally {
+                cursor.close();
+            }
+            assertMatchesDatabase();
+        }
+    }
+
+    @Test
+    public void pagesMatchDatabase() throws Exception {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 1500));
+        for (long id = 1; id <= 1500; id += 7) {
+            mProvider.delete(ContentUris.withAppendedId(PetContract.CONTENT_URI, id), null, null);
+        }
+        awaitSnapshot().close();
+
+        long afterId = 0;
+        int pets = 0;
+        String[] projection = {PetEntry._ID, PetEntry.COLUMN_PET_NAME};
+        while (true) {
+            Cursor page = querySnapshot(projection, afterId, 100);
+            try {
+                assertTrue(isSnapshot(page));
+                for (int i = 0; page.moveToNext(); i++) {
+                    long id = page.getLong(0);
+                    assertTrue(id > afterId);
+                    assertEquals("Pet " + (id - 1), page.getString(1));
+                    afterId = id;
+                    pets++;
+                }
+                if (page.getCount() < 100) {
+                    break;
+                }
+            } finally {
+                page.close();
+            }
+        }
+        assertEquals(1500 - 215, pets);
+    }
+
+    @Test
+    public void updateOfOneRowKeepsTheOtherChunks() {
+        PetSnapshot.Builder builder = new PetSnapshot.Builder();
+        MatrixCursor rows = snapshotRows(1, 20000);
+        while (rows.moveToNext()) {
+            builder.addRow(rows);
+        }
+        PetSnapshot snapshot = builder.build();
+        assertEquals(20000, snapshot.size());
+        assertEquals(20000 / PetSnapshot.CHUNK_SIZE + 1, snapshot.chunkCount());
+
+        // Rename one pet, delete another, and add one past the end
+        MatrixCursor changed = new MatrixCursor(PetSnapshot.COLUMNS);
+        changed.addRow(new Object[] {5000L, "Renamed", 2, 1, 9, null, null});
+        changed.addRow(new Object[] {20001L, "New", 1, 0, 3, 100L, 20});
+        PetSnapshot updated = snapshot.update(new long[] {5000, 7000, 20001}, changed);
+
+        assertEquals(20000, updated.size());
+        Cursor cursor = updated.query(PetSnapshot.COLUMNS, 4999, 2,
+                new String[] {null, "Tabby", "Siamese"});
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(5000, cursor.getLong(0));
+            assertEquals("Renamed", cursor.getString(1));
+            assertEquals("Siamese", cursor.getString(2));
+            assertTrue(cursor.isNull(5));
+            assertTrue(cursor.moveToNext());
+            assertEquals(5001, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+
+        cursor = updated.query(PetSnapshot.COLUMNS, 6999, 1, new String[] {null, "Tabby"});
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(7001, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+
+        cursor = updated.query(PetSnapshot.COLUMNS, 20000, 0, new String[] {null, "Tabby"});
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("New", cursor.getString(1));
+            assertEquals(100, cursor.getLong(5));
+            assertEquals(20, cursor.getInt(6));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void deletesMergeSmallChunks() {
+        PetSnapshot.Builder builder = new PetSnapshot.Builder();
+        MatrixCursor rows = snapshotRows(1, PetSnapshot.CHUNK_SIZE * 4);
+        while (rows.moveToNext()) {
+            builder.addRow(rows);
+        }
+        PetSnapshot snapshot = builder.build();
+
+        // Empty the second chunk but for one pet, then touch the third
+        long[] deleted = new long[PetSnapshot.CHUNK_SIZE - 1];
+        for (int i = 0; i < deleted.length; i++) {
+            deleted[i] = PetSnapshot.CHUNK_SIZE + 1 + i;
+        }
+        snapshot = snapshot.update(deleted, new MatrixCursor(PetSnapshot.COLUMNS));
+        assertEquals(4, snapshot.chunkCount());
+        snapshot = snapshot.update(new long[] {PetSnapshot.CHUNK_SIZE * 2 + 1},
+                snapshotRows(PetSnapshot.CHUNK_SIZE * 2 + 1, 1));
+        assertEquals(PetSnapshot.CHUNK_SIZE * 3 + 1, snapshot.size());
+        assertEquals(3, snapshot.chunkCount());
+    }
+
+    /**
+     * Rows as {@link PetSnapshot#SQL_SELECT} returns them, with _ids from {@code first}.
+     */
+    private static MatrixCursor snapshotRows(long first, int count) {
+        MatrixCursor cursor = new MatrixCursor(PetSnapshot.COLUMNS, count);
+        for (long id = first; id < first + count; id++) {
+            cursor.addRow(new Object[] {id, "Pet " + id, 1, (int) (id % 3), (int) (id % 40),
+                    null, null});
+        }
+        return cursor;
+    }
+
+    /**
+     * Queries until the snapshot has been built in the background, and returns its cursor.
+     */
+    private Cursor awaitSnapshot() throws InterruptedException {
+        for (int attempt = 0; attempt < 200; attempt++) {
+            Cursor cursor = querySnapshot(PetSnapshot.COLUMNS, 0, 0);
+            if (isSnapshot(cursor)) {
+                return cursor;
+            }
+            cursor.close();
+            Thread.sleep(25);
+        }
+        throw new AssertionError("The snapshot was never built");
+    }
+
+    private Cursor querySnapshot(String[] projection, long afterId, int limit) {
+        Cursor cursor = mProvider.query(afterId > 0 || limit > 0
+                        ? PetContract.buildPageUri(afterId, limit) : PetContract.CONTENT_URI,
+                projection, null, null, null);
+        assertNotNull(cursor);
+        return cursor;
+    }
+
+    private static boolean isSnapshot(Cursor cursor) {
+        return !(cursor instanceof PetDbHelper.QueryCursor);
+    }
+
+    private void assertMatchesDatabase() {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        Cursor expected = database.rawQuery(SQL_LIVE_PETS, null);
+        Cursor actual = querySnapshot(PetSnapshot.COLUMNS, 0, 0);
+        try {
+            assertTrue(isSnapshot(actual));
+            assertEquals(expected.getCount(), actual.getCount());
+            while (expected.moveToNext()) {
+                assertTrue(actual.moveToNext());
+                for (int column = 0; column < PetSnapshot.COLUMNS.length; column++) {
+                    assertEquals("Row " + expected.getLong(0) + " " +
+                                    PetSnapshot.COLUMNS[column],
+                            expected.getString(column), actual.getString(column));
+                }
+            }
+            assertFalse(actual.moveToNext());
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+}
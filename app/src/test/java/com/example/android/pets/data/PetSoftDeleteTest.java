@@ -0,0 +1,108 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that soft deleted pets vanish from every query and from the stats at once, while their
+ * rows stay behind as tombstones for the compactor.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetSoftDeleteTest {
+
+    private PetDbHelper mDbHelper;
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mDbHelper = PetTests.newDbHelper("soft_delete_test.db");
+        mProvider = PetTests.newProvider(mDbHelper);
+    }
+
+    @Test
+    public void softDeletedPetsAreGoneForCallers() {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 100));
+        Uri rex = mProvider.insert(PetContract.CONTENT_URI, PetTests.pet("Rex", "Beagle", 1, 12));
+
+        assertEquals(101, mProvider.delete(
+                PetContract.buildSoftDeleteUri(PetContract.CONTENT_URI), null, null));
+
+        assertEquals(0, count(mProvider.query(PetContract.CONTENT_URI, null, null, null, null)));
+        assertEquals(0, count(mProvider.query(rex, null, null, null, null)));
+        assertEquals(0, count(mProvider.query(PetContract.buildSearchUri("rex", 10), null, null,
+                null, null)));
+        assertEquals(0, petCount());
+
+        // Already deleted pets can't be changed or deleted again
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Max");
+        assertEquals(0, mProvider.update(rex, values, null, null));
+        assertEquals(0, mProvider.delete(rex, null, null));
+
+        // The rows wait for the compactor
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        assertEquals(101, DatabaseUtils.longForQuery(database,
+                "SELECT COUNT(*) FROM pets WHERE deleted <> 0", null));
+    }
+
+    @Test
+    public void newPetsAfterSoftDeleteAreCounted() {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 10));
+        Uri first = ContentUris.withAppendedId(PetContract.CONTENT_URI, 1);
+        assertEquals(1, mProvider.delete(PetContract.buildSoftDeleteUri(first), null, null));
+        assertEquals(9, petCount());
+
+        mProvider.insert(PetContract.CONTENT_URI, PetTests.pets(10, 1)[0]);
+
+        assertEquals(10, petCount());
+        assertEquals(10, count(mProvider.query(PetContract.CONTENT_URI, null, null, null, null)));
+    }
+
+    @Test
+    public void deletedColumnCannotBeWritten() {
+        ContentValues values = PetTests.pet("Rex", "Beagle", 1, 12);
+        values.put(PetEntry.COLUMN_PET_DELETED, 1);
+        try {
+            mProvider.insert(PetContract.CONTENT_URI, values);
+            fail("Inserted a tombstone");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /** Returns the overall pet count of the stats */
+    private long petCount() {
+        Cursor cursor = mProvider.query(PetContract.CONTENT_STATS_URI,
+                new String[]{StatsEntry.COLUMN_PET_COUNT},
+                StatsEntry.COLUMN_DIMENSION + " = ?",
+                new String[]{StatsEntry.DIMENSION_ALL}, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int count(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
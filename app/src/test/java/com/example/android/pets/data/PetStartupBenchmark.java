@@ -0,0 +1,165 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.widget.TextView;
+
+import com.example.android.pets.CatalogActivity;
+import com.example.android.pets.R;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Measures the catalog's cold start at 10k and 100k pets: the time from building
+ * {@link CatalogActivity}, with the provider just created and the database not yet open, to the
+ * first row of its list being bound with a pet. A full read of the 100k pets is measured too,
+ * as the cost the catalog paid before it paged.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetStartupBenchmark {
+
+    /** Cold starts timed per table size; the median is recorded */
+    private static final int STARTS = 5;
+
+    /** Pets inserted per transaction while filling the tables */
+    private static final int FILL_CHUNK = 10000;
+
+    /** Longest a start may take before the benchmark gives up on it */
+    private static final long TIMEOUT_MS = 30000;
+
+    private final BenchmarkReport mReport = new BenchmarkReport(PetStartupBenchmark.class);
+
+    @Test
+    public void timeToFirstRow() throws Exception {
+        fill("startup_10k_benchmark.db", 10000);
+        fill("startup_100k_benchmark.db", 100000);
+
+        // Warm up the JIT and the view inflation on the smaller table before timing either
+        timeToFirstRow("startup_10k_benchmark.db");
+
+        mReport.record("first_row_ms_10k_pets",
+                toMillis(medianTimeToFirstRow("startup_10k_benchmark.db")));
+        mReport.record("first_row_ms_100k_pets",
+                toMillis(medianTimeToFirstRow("startup_100k_benchmark.db")));
+        mReport.record("full_read_ms_100k_pets",
+                toMillis(timeFullRead("startup_100k_benchmark.db")));
+    }
+
+    /**
+     * Creates a database of the given name holding the given number of pets, and closes it.
+     */
+    private static void fill(String databaseName, int pets) {
+        PetDbHelper dbHelper = PetTests.newDbHelper(databaseName);
+        PetProvider provider = PetTests.newProvider(dbHelper);
+        for (int first = 0; first < pets; first += FILL_CHUNK) {
+            provider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(first, FILL_CHUNK));
+        }
+        dbHelper.close();
+    }
+
+    private static long medianTimeToFirstRow(String databaseName) {
+        long[] nanos = new long[STARTS];
+        for (int i = 0; i < STARTS; i++) {
+            nanos[i] = timeToFirstRow(databaseName);
+        }
+        Arrays.sort(nanos);
+        return nanos[STARTS / 2];
+    }
+
+    /**
+     * Starts a provider over the existing database, as at process start, then builds the
+     * catalog and runs the main thread until its first row shows a pet.
+     *
+     * @return nanoseconds from the provider's creation to the first row being bound
+     */
+    private static long timeToFirstRow(String databaseName) {
+        long start = System.nanoTime();
+        PetDbHelper dbHelper = new PetDbHelper(RuntimeEnvironment.application, databaseName);
+        startProvider(dbHelper);
+
+        ActivityController<CatalogActivity> controller =
+                Robolectric.buildActivity(CatalogActivity.class).setup();
+        try {
+            RecyclerView list = controller.get().findViewById(R.id.list);
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+            while (!isFirstRowBound(list)) {
+                if (System.nanoTime() > deadline) {
+                    fail("No pets were bound within " + TIMEOUT_MS + " ms");
+                }
+                // Hands the page to the adapter and runs the layout pass that binds it
+                ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+                Thread.yield();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            controller.pause().stop().destroy();
+            dbHelper.close();
+        }
+    }
+
+    /**
+     * Returns whether the list's first row is laid out with a pet in it. Rows are bound blank
+     * while their page is loading, so an empty name means the page hasn't arrived yet.
+     */
+    private static boolean isFirstRowBound(RecyclerView list) {
+        RecyclerView.ViewHolder holder = list.findViewHolderForAdapterPosition(0);
+        if (holder == null) {
+            return false;
+        }
+        TextView name = holder.itemView.findViewById(R.id.name);
+        return !TextUtils.isEmpty(name.getText());
+    }
+
+    /**
+     * Reads every pet through a cold provider, as the catalog did before it paged.
+     *
+     * @return nanoseconds from the provider's creation to the last row being read
+     */
+    private static long timeFullRead(String databaseName) {
+        long start = System.nanoTime();
+        PetDbHelper dbHelper = new PetDbHelper(RuntimeEnvironment.application, databaseName);
+        ContentResolver resolver = startProvider(dbHelper);
+
+        Cursor cursor = resolver.query(PetContract.CONTENT_URI, null, null, null, null);
+        assertNotNull(cursor);
+        PetRowReader row = new PetRowReader();
+        int count = 0;
+        try {
+            while (cursor.moveToNext()) {
+                row.moveTo(cursor).getWeight();
+                count++;
+            }
+        } finally {
+            cursor.close();
+            dbHelper.close();
+        }
+        assertEquals(100000, count);
+        return System.nanoTime() - start;
+    }
+
+    private static ContentResolver startProvider(PetDbHelper dbHelper) {
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY,
+                PetTests.newProvider(dbHelper));
+        return RuntimeEnvironment.application.getContentResolver();
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link PetStatementCache} builds the SQL of a query shape and compiles an insert
+ * statement only once, and that cached statements still bind each call's own values.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetStatementCacheTest {
+
+    private static final String[] PROJECTION = {PetEntry._ID, PetEntry.COLUMN_PET_NAME};
+
+    private final PetStatementCache mCache = new PetStatementCache();
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = PetTests.newDbHelper("statement_cache_test.db").getWritableDatabase();
+        mDatabase.execSQL("INSERT INTO " + PetContract.BREEDS_TABLE_NAME + " (" +
+                PetEntry.COLUMN_PET_BREED + ") VALUES ('Tabby')");
+    }
+
+    @Test
+    public void insertsReuseTheirStatement() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i + 1, mCache.insert(mDatabase, PetContract.TABLE_NAME, row(i)));
+        }
+        // Same columns put in another order still make the same statement
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        values.put(PetEntry.COLUMN_PET_BREED_ID, 1);
+        values.put(PetEntry.COLUMN_PET_NAME, "Rex");
+        assertEquals(6, mCache.insert(mDatabase, PetContract.TABLE_NAME, values));
+
+        Cursor cursor = mCache.query(mDatabase, PetContract.TABLE_NAME, PROJECTION,
+                PetEntry._ID + " = ?", new String[] {"6"}, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Rex", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+
+        assertTrue(dump(), dump().contains("Statement cache: LruCache[maxSize="
+                + PetStatementCache.MAX_STATEMENTS + ",hits=5,misses=1,"));
+    }
+
+    @Test
+    public void queriesReuseTheirSql() {
+        mCache.insert(mDatabase, PetContract.TABLE_NAME, row(0));
+        mCache.insert(mDatabase, PetContract.TABLE_NAME, row(1));
+
+        for (int id = 1; id <= 2; id++) {
+            // A new projection array each time, as callers pass
+            String[] projection = PROJECTION.clone();
+            Cursor cursor = mCache.query(mDatabase, PetContract.TABLE_NAME, projection,
+                    PetEntry._ID + " = ?", new String[] {String.valueOf(id)}, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                assertEquals("Pet " + (id - 1), cursor.getString(1));
+            } finally {
+                cursor.close();
+            }
+        }
+        mCache.query(mDatabase, PetContract.TABLE_NAME, PROJECTION, null, null,
+                PetEntry._ID, "1").close();
+
+        assertTrue(dump(), dump().contains("Query SQL cache: LruCache[maxSize="
+                + PetStatementCache.MAX_QUERY_SHAPES + ",hits=1,misses=2,"));
+    }
+
+    @Test
+    public void longForQueryBindsEachCallsArguments() {
+        mCache.insert(mDatabase, PetContract.TABLE_NAME, row(0));
+        mCache.insert(mDatabase, PetContract.TABLE_NAME, row(1));
+
+        String sql = "SELECT " + PetEntry.COLUMN_PET_WEIGHT + " FROM " + PetContract.TABLE_NAME
+                + " WHERE " + PetEntry._ID + " = ?";
+        assertEquals(0, mCache.longForQuery(mDatabase, sql, new String[] {"1"}));
+        assertEquals(1, mCache.longForQuery(mDatabase, sql, new String[] {"2"}));
+    }
+
+    /** Returns a pet as the pets table stores it, with the breed by id */
+    private static ContentValues row(int number) {
+        ContentValues values = PetTests.pets(number, 1)[0];
+        values.remove(PetEntry.COLUMN_PET_BREED);
+        values.put(PetEntry.COLUMN_PET_BREED_ID, 1);
+        return values;
+    }
+
+    private String dump() {
+        StringWriter dump = new StringWriter();
+        mCache.dump(new PrintWriter(dump));
+        return dump.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the trigger-maintained rows of {@link PetContract#CONTENT_STATS_URI} always match
+ * the stats computed from the pets themselves, as pets are inserted, updated and deleted.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetStatsTest {
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = PetTests.newProvider("stats_test.db");
+    }
+
+    @Test
+    public void emptyShelterHasOnlyTheOverallRow() {
+        Map<String, long[]> stats = readStats();
+
+        assertEquals(1, stats.size());
+        assertEquals(0, stats.get(key(StatsEntry.DIMENSION_ALL, ""))[0]);
+    }
+
+    @Test
+    public void statsFollowInsertsUpdatesAndDeletes() {
+        mProvider.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 100));
+        assertStatsMatchPets();
+
+        // Move every Beagle to another breed and gender, and change their weights
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_BREED, "Collie");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 30);
+        assertEquals(20, mProvider.update(PetContract.CONTENT_URI, values,
+                PetEntry.COLUMN_PET_BREED + " = ?", new String[]{"Beagle"}));
+        assertStatsMatchPets();
+        // The Beagle group is empty, so its row is gone
+        assertEquals(null, readStats().get(key(StatsEntry.DIMENSION_BREED, "Beagle")));
+
+        values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1);
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(PetContract.CONTENT_URI, 7),
+                values, null, null));
+        assertStatsMatchPets();
+
+        assertEquals(1, mProvider.delete(ContentUris.withAppendedId(PetContract.CONTENT_URI, 8),
+                null, null));
+        assertTrue(mProvider.delete(PetContract.CONTENT_URI,
+                PetEntry.COLUMN_PET_GENDER + " = ?", new String[]{"0"}) > 0);
+        assertStatsMatchPets();
+
+        mProvider.delete(PetContract.CONTENT_URI, null, null);
+        assertStatsMatchPets();
+    }
+
+    @Test
+    public void averageWeightIsComputedFromTheTotals() {
+        mProvider.insert(PetContract.CONTENT_URI, PetTests.pet("Rex", "Beagle", 1, 10));
+        mProvider.insert(PetContract.CONTENT_URI, PetTests.pet("Max", "Beagle", 1, 15));
+
+        Cursor cursor = mProvider.query(PetContract.CONTENT_STATS_URI,
+                new String[]{StatsEntry.COLUMN_AVERAGE_WEIGHT},
+                StatsEntry.COLUMN_DIMENSION + " = ? AND " + StatsEntry.COLUMN_VALUE + " = ?",
+                new String[]{StatsEntry.DIMENSION_BREED, "Beagle"}, null);
+        assertNotNull(cursor);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(12.5, cursor.getDouble(0), 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Recomputes the stats from every pet and checks that the stats URI returns exactly them.
+     */
+    private void assertStatsMatchPets() {
+        // The overall row is there even when there are no pets
+        Map<String, long[]> expected = new TreeMap<>();
+        expected.put(key(StatsEntry.DIMENSION_ALL, ""), new long[2]);
+        Cursor cursor = mProvider.query(PetContract.CONTENT_URI, new String[]{
+                PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_GENDER,
+                PetEntry.COLUMN_PET_WEIGHT}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            while (cursor.moveToNext()) {
+                int weight = cursor.getInt(2);
+                add(expected, key(StatsEntry.DIMENSION_ALL, ""), weight);
+                add(expected, key(StatsEntry.DIMENSION_GENDER, cursor.getString(1)), weight);
+                add(expected, key(StatsEntry.DIMENSION_BREED, cursor.getString(0)), weight);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Map<String, long[]> actual = readStats();
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, long[]> group : expected.entrySet()) {
+            long[] stats = actual.get(group.getKey());
+            assertEquals(group.getKey() + " count", group.getValue()[0], stats[0]);
+            assertEquals(group.getKey() + " weight", group.getValue()[1], stats[1]);
+        }
+    }
+
+    /** Returns the pet count and total weight of every stats row, by dimension and value */
+    private Map<String, long[]> readStats() {
+        Cursor cursor = mProvider.query(PetContract.CONTENT_STATS_URI, new String[]{
+                StatsEntry.COLUMN_DIMENSION, StatsEntry.COLUMN_VALUE,
+                StatsEntry.COLUMN_PET_COUNT, StatsEntry.COLUMN_TOTAL_WEIGHT}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            Map<String, long[]> stats = new TreeMap<>();
+            while (cursor.moveToNext()) {
+                stats.put(key(cursor.getString(0), cursor.getString(1)),
+                        new long[]{cursor.getLong(2), cursor.getLong(3)});
+            }
+            return stats;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void add(Map<String, long[]> stats, String key, int weight) {
+        long[] group = stats.get(key);
+        if (group == null) {
+            group = new long[2];
+            stats.put(key, group);
+        }
+        group[0]++;
+        group[1] += weight;
+    }
+
+    private static String key(String dimension, String value) {
+        return dimension + ":" + value;
+    }
+}
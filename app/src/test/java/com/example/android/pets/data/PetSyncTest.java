@@ -0,0 +1,432 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link PetSync} against an in-process HTTP server: what is pushed and pulled, that an
+ * interrupted sync resumes without sending acked changes again, that the server wins
+ * conflicts, and that invalid pulled changes are skipped rather than failing their batch.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetSyncTest {
+
+    /** Longest a sync may take before the test gives up on it */
+    private static final long TIMEOUT_MS = 30000;
+
+    private static final String EMPTY_PULL = "{\"changes\": [], \"cursor\": 0, \"more\": false}";
+
+    private MockWebServer mServer;
+    private PetDbHelper mDbHelper;
+    private ContentResolver mResolver;
+    private PetSync mSync;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+
+        mDbHelper = PetTests.newDbHelper("sync_test.db");
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY,
+                PetTests.newProvider(mDbHelper));
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mSync = new PetSync(RuntimeEnvironment.application, mServer.url("/shelter/").toString(),
+                mDbHelper);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void pushSendsJournalAndDropsAckedEntries() throws Exception {
+        mResolver.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 3));
+        Uri tom = mResolver.insert(PetContract.CONTENT_URI, PetTests.pet("Tom", "Tabby", 1, 4));
+        assertNotNull(tom);
+        ContentValues weight = new ContentValues();
+        weight.put(PetEntry.COLUMN_PET_WEIGHT, 5);
+        assertEquals(1, mResolver.update(tom, weight, null, null));
+        mResolver.delete(PetContract.buildSoftDeleteUri(
+                ContentUris.withAppendedId(PetContract.CONTENT_URI, 1)), null, null);
+        // Three pets were inserted, one of them deleted, and Tom inserted and updated. Each
+        // pet has one entry, moved to the end of the journal by its latest change.
+        assertEquals(4, journalSize());
+
+        mServer.enqueue(json("{\"acked\": " + lastJournalSeq() + "}"));
+        mServer.enqueue(json(EMPTY_PULL));
+        assertFinished(sync(), 4, 0);
+
+        RecordedRequest push = mServer.takeRequest();
+        assertEquals("POST", push.getMethod());
+        assertEquals("/shelter/changes", push.getPath());
+        assertEquals("gzip", push.getHeader("Content-Encoding"));
+        JSONObject body = readGzipJson(push);
+        assertNotNull(body.getString("device"));
+        JSONArray changes = body.getJSONArray("changes");
+        assertEquals(4, changes.length());
+
+        // Journal order, each pet once, in its current state
+        JSONObject updated = changes.getJSONObject(2);
+        assertFalse(updated.getBoolean("deleted"));
+        assertEquals("Tom", updated.getString(PetEntry.COLUMN_PET_NAME));
+        assertEquals("Tabby", updated.getString(PetEntry.COLUMN_PET_BREED));
+        assertEquals(5, updated.getInt(PetEntry.COLUMN_PET_WEIGHT));
+        JSONObject deleted = changes.getJSONObject(3);
+        assertTrue(deleted.getBoolean("deleted"));
+        assertFalse(deleted.has(PetEntry.COLUMN_PET_NAME));
+        long previousSeq = 0;
+        for (int i = 0; i < changes.length(); i++) {
+            long seq = changes.getJSONObject(i).getLong("seq");
+            assertTrue(seq > previousSeq);
+            previousSeq = seq;
+        }
+
+        RecordedRequest pull = mServer.takeRequest();
+        assertEquals("GET", pull.getMethod());
+        assertTrue(pull.getPath(), pull.getPath().startsWith("/shelter/changes?device=" +
+                body.getString("device") + "&since=0&limit=" + PetSync.BATCH_SIZE));
+        assertEquals(0, journalSize());
+    }
+
+    @Test
+    public void partialAckResendsOnlyUnackedChanges() throws Exception {
+        mResolver.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 10));
+        long firstSeq = lastJournalSeq() - 9;
+
+        // The server stores the first four changes, then the rest
+        mServer.enqueue(json("{\"acked\": " + (firstSeq + 3) + "}"));
+        mServer.enqueue(json("{\"acked\": " + (firstSeq + 9) + "}"));
+        mServer.enqueue(json(EMPTY_PULL));
+        assertFinished(sync(), 10, 0);
+
+        assertEquals(10, readGzipJson(mServer.takeRequest()).getJSONArray("changes").length());
+        JSONArray resent = readGzipJson(mServer.takeRequest()).getJSONArray("changes");
+        assertEquals(6, resent.length());
+        assertEquals(firstSeq + 4, resent.getJSONObject(0).getLong("seq"));
+        assertEquals(0, journalSize());
+    }
+
+    @Test
+    public void interruptedPushResumesWithoutResendingAckedChanges() throws Exception {
+        int pets = PetSync.BATCH_SIZE + 100;
+        mResolver.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, pets));
+        long firstSeq = lastJournalSeq() - pets + 1;
+        long firstBatchSeq = firstSeq + PetSync.BATCH_SIZE - 1;
+
+        // The first batch is acked, and the server goes away during the second
+        mServer.enqueue(json("{\"acked\": " + firstBatchSeq + "}"));
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        assertTrue(sync() instanceof IOException);
+        assertEquals(PetSync.BATCH_SIZE,
+                readGzipJson(mServer.takeRequest()).getJSONArray("changes").length());
+        mServer.takeRequest();
+        assertEquals(100, journalSize());
+
+        mServer.enqueue(json("{\"acked\": " + lastJournalSeq() + "}"));
+        mServer.enqueue(json(EMPTY_PULL));
+        assertFinished(sync(), 100, 0);
+
+        JSONArray changes = readGzipJson(mServer.takeRequest()).getJSONArray("changes");
+        assertEquals(100, changes.length());
+        for (int i = 0; i < changes.length(); i++) {
+            assertTrue(changes.getJSONObject(i).getLong("seq") > firstBatchSeq);
+        }
+        assertEquals(0, journalSize());
+    }
+
+    @Test
+    public void badAckFailsWithoutDroppingJournal() throws Exception {
+        mResolver.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 3));
+
+        // Acking past the last change sent can't be right
+        mServer.enqueue(json("{\"acked\": " + (lastJournalSeq() + 1) + "}"));
+        assertTrue(sync() instanceof IOException);
+        assertEquals(3, journalSize());
+    }
+
+    @Test
+    public void pullInsertsUpdatesAndDeletesWithoutJournaling() throws Exception {
+        mResolver.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 2));
+        String first = syncId(1);
+        String second = syncId(2);
+        mServer.enqueue(json("{\"acked\": " + lastJournalSeq() + "}"));
+
+        mServer.enqueue(gzipJson("{\"changes\": [" +
+                change("remote-1", "Kiwi", "Budgie", 2, 1) + ", " +
+                change(first, "Pet 0 renamed", "Tabby", 0, 9) + ", " +
+                "{\"id\": \"" + second + "\", \"deleted\": true}], " +
+                "\"cursor\": 42, \"more\": false}"));
+        assertFinished(sync(), 2, 3);
+
+        ContentValues kiwi = readPet("remote-1");
+        assertNotNull(kiwi);
+        assertEquals("Budgie", kiwi.getAsString(PetEntry.COLUMN_PET_BREED));
+        assertEquals("Pet 0 renamed", readPet(first).getAsString(PetEntry.COLUMN_PET_NAME));
+        assertNull(readPet(second));
+        // Nothing pulled is pushed back
+        assertEquals(0, journalSize());
+
+        // The next pull starts at the saved cursor, and with no journal there is no push
+        mServer.enqueue(json(EMPTY_PULL));
+        assertFinished(sync(), 0, 0);
+        mServer.takeRequest();
+        mServer.takeRequest();
+        RecordedRequest pull = mServer.takeRequest();
+        assertEquals("GET", pull.getMethod());
+        assertTrue(pull.getPath(), pull.getPath().contains("&since=42&"));
+    }
+
+    @Test
+    public void pulledChangeWinsOverPendingLocalChange() throws Exception {
+        mResolver.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 1));
+        final String syncId = syncId(1);
+        final long ackedSeq = lastJournalSeq();
+
+        // The pet is edited here after the push, while the server sends its own edit of it
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("POST".equals(request.getMethod())) {
+                    return json("{\"acked\": " + ackedSeq + "}");
+                }
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_NAME, "Local name");
+                values.put(PetEntry.COLUMN_PET_WEIGHT, 30);
+                assertEquals(1, mResolver.update(PetContract.CONTENT_URI, values,
+                        PetEntry.COLUMN_PET_SYNC_ID + "=?", new String[]{syncId}));
+                return json("{\"changes\": [" + change(syncId, "Server name", "Tabby", 1, 7) +
+                        "], \"cursor\": 1, \"more\": false}");
+            }
+        });
+        assertFinished(sync(), 1, 1);
+
+        ContentValues pet = readPet(syncId);
+        assertEquals("Server name", pet.getAsString(PetEntry.COLUMN_PET_NAME));
+        assertEquals(7, (int) pet.getAsInteger(PetEntry.COLUMN_PET_WEIGHT));
+        // The local edit is gone from the journal, so it is never pushed over the server's
+        assertEquals(0, journalSize());
+    }
+
+    @Test
+    public void pulledChangeDoesNotUndoLocalDeletion() throws Exception {
+        mResolver.bulkInsert(PetContract.CONTENT_URI, PetTests.pets(0, 1));
+        String syncId = syncId(1);
+        mResolver.delete(PetContract.buildSoftDeleteUri(PetContract.CONTENT_URI),
+                PetEntry.COLUMN_PET_SYNC_ID + "=?", new String[]{syncId});
+
+        mServer.enqueue(json("{\"acked\": " + lastJournalSeq() + "}"));
+        mServer.enqueue(json("{\"changes\": [" + change(syncId, "Back again", "Tabby", 1, 7) +
+                "], \"cursor\": 1, \"more\": false}"));
+        assertFinished(sync(), 1, 1);
+
+        assertNull(readPet(syncId));
+    }
+
+    @Test
+    public void invalidPulledChangesAreSkipped() throws Exception {
+        mServer.enqueue(json("{\"changes\": [" +
+                "{\"deleted\": false, \"name\": \"No id\", \"breed\": \"Tabby\"}, " +
+                "{\"id\": \"no-breed\", \"deleted\": false, \"name\": \"Rex\"}, " +
+                "{\"id\": \"null-name\", \"deleted\": false, \"name\": null, " +
+                "\"breed\": \"Tabby\"}, " +
+                "{\"id\": \"bad-weight\", \"deleted\": false, \"name\": \"Max\", " +
+                "\"breed\": \"Beagle\", \"weight\": \"heavy\"}, " +
+                "{\"id\": \"bad-gender\", \"deleted\": false, \"name\": \"Sam\", " +
+                "\"breed\": \"Beagle\", \"gender\": 9}, " +
+                change("valid", "Kiwi", "Budgie", 2, 1) + "], " +
+                "\"cursor\": 6, \"more\": true}"));
+        mServer.enqueue(json("{\"changes\": [], \"cursor\": 6, \"more\": false}"));
+        // Changes that can't be read aren't counted; those the provider would reject are
+        assertFinished(sync(), 0, 3);
+
+        assertEquals(1, countPets());
+        assertNotNull(readPet("valid"));
+        // The batch counts as applied, so the next request moves past it
+        mServer.takeRequest();
+        assertTrue(mServer.takeRequest().getPath().contains("&since=6&"));
+    }
+
+    @Test
+    public void interruptedPullResumesFromSavedCursor() throws Exception {
+        mServer.enqueue(json("{\"changes\": [" + change("remote-1", "Kiwi", "Budgie", 2, 1) +
+                "], \"cursor\": 10, \"more\": true}"));
+        mServer.enqueue(new MockResponse().setResponseCode(500));
+        assertTrue(sync() instanceof IOException);
+        assertNotNull(readPet("remote-1"));
+
+        mServer.enqueue(json("{\"changes\": [" + change("remote-2", "Max", "Beagle", 1, 30) +
+                "], \"cursor\": 11, \"more\": false}"));
+        assertFinished(sync(), 0, 1);
+
+        mServer.takeRequest();
+        assertTrue(mServer.takeRequest().getPath().contains("&since=10&"));
+        assertTrue(mServer.takeRequest().getPath().contains("&since=10&"));
+        assertEquals(2, countPets());
+    }
+
+    /**
+     * Runs a sync and waits for its callback.
+     *
+     * @return an {@code int[] {pushed, pulled}} if the sync finished, or the exception it
+     * failed with
+     */
+    private Object sync() throws InterruptedException {
+        final List<Object> result = new ArrayList<>();
+        mSync.requestSync(new PetSync.Callback() {
+            @Override
+            public void onSyncFinished(int pushed, int pulled) {
+                result.add(new int[]{pushed, pulled});
+            }
+
+            @Override
+            public void onSyncFailed(Exception e) {
+                result.add(e);
+            }
+        });
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (result.isEmpty()) {
+            if (System.nanoTime() > deadline) {
+                fail("Sync didn't finish within " + TIMEOUT_MS + " ms");
+            }
+            // The callback is posted to the main thread, which the test runs as
+            ShadowLooper.runUiThreadTasks();
+            Thread.sleep(5);
+        }
+        return result.get(0);
+    }
+
+    private static void assertFinished(Object result, int pushed, int pulled) {
+        if (result instanceof Exception) {
+            throw new AssertionError("Sync failed", (Exception) result);
+        }
+        int[] counts = (int[]) result;
+        assertEquals("pushed", pushed, counts[0]);
+        assertEquals("pulled", pulled, counts[1]);
+    }
+
+    private static String change(String syncId, String name, String breed, int gender,
+                                 int weight) {
+        return "{\"id\": \"" + syncId + "\", \"deleted\": false, " +
+                "\"name\": \"" + name + "\", \"breed\": \"" + breed + "\", " +
+                "\"gender\": " + gender + ", \"weight\": " + weight + "}";
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse()
+                .setHeader("Content-Type", "application/json; charset=utf-8")
+                .setBody(body);
+    }
+
+    private static MockResponse gzipJson(String body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        return new MockResponse()
+                .setHeader("Content-Type", "application/json; charset=utf-8")
+                .setHeader("Content-Encoding", "gzip")
+                .setBody(new Buffer().write(bytes.toByteArray()));
+    }
+
+    private static JSONObject readGzipJson(RecordedRequest request) throws Exception {
+        InputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(request.getBody().readByteArray()));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return new JSONObject(body.toString("UTF-8"));
+    }
+
+    private long journalSize() {
+        return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                PetContract.CHANGES_TABLE_NAME);
+    }
+
+    private long lastJournalSeq() {
+        return DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(),
+                "SELECT ifnull(max(seq), 0) FROM " + PetContract.CHANGES_TABLE_NAME, null);
+    }
+
+    private String syncId(long id) {
+        return DatabaseUtils.stringForQuery(mDbHelper.getReadableDatabase(),
+                "SELECT " + PetEntry.COLUMN_PET_SYNC_ID + " FROM " + PetContract.TABLE_NAME +
+                        " WHERE " + PetEntry._ID + " = ?", new String[]{String.valueOf(id)});
+    }
+
+    /**
+     * Returns the name, breed, gender and weight of the live pet with the given sync id, or
+     * null if there is none.
+     */
+    private ContentValues readPet(String syncId) {
+        Cursor cursor = mResolver.query(PetContract.CONTENT_URI, new String[]{
+                        PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                        PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT},
+                PetEntry.COLUMN_PET_SYNC_ID + "=?", new String[]{syncId}, null);
+        assertNotNull(cursor);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return PetTests.pet(cursor.getString(0), cursor.getString(1), cursor.getInt(2),
+                    cursor.getInt(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long countPets() {
+        Cursor cursor = mResolver.query(PetContract.CONTENT_URI, new String[]{PetEntry._ID},
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Helpers shared by the data layer tests.
+ */
+final class PetTests {
+
+    /** Breeds the test pets get */
+    static final String[] BREEDS = {"Tabby", "Siamese", "Beagle", "Labrador", "Poodle"};
+
+    private PetTests() {}
+
+    /**
+     * Returns a provider over a fresh database file of the given name, so tests never see
+     * each other's pets or the shelter database.
+     */
+    static PetProvider newProvider(String databaseName) {
+        return newProvider(newDbHelper(databaseName));
+    }
+
+    static PetProvider newProvider(PetDbHelper dbHelper) {
+        PetProvider provider = new PetProvider(dbHelper);
+        provider.attachInfo(RuntimeEnvironment.application, null);
+        return provider;
+    }
+
+    /**
+     * Returns a helper over a fresh database file of the given name.
+     */
+    static PetDbHelper newDbHelper(String databaseName) {
+        Context context = RuntimeEnvironment.application;
+        context.deleteDatabase(databaseName);
+        return new PetDbHelper(context, databaseName);
+    }
+
+    /**
+     * Returns the values of a pet.
+     */
+    static ContentValues pet(String name, String breed, int gender, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return values;
+    }
+
+    /**
+     * Returns the values of the given number of pets, numbered from {@code first}.
+     */
+    static ContentValues[] pets(int first, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            int n = first + i;
+            values[i] = pet("Pet " + n, BREEDS[n % BREEDS.length], n % 3, n % 40);
+        }
+        return values;
+    }
+}
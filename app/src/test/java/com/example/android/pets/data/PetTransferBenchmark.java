@@ -0,0 +1,66 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+
+import com.example.android.pets.data.PetTransfer.Format;
+import com.example.android.pets.data.PetTransferTest.CountingOutputStream;
+import com.example.android.pets.data.PetTransferTest.GeneratedCsv;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures {@link PetTransfer} import and export throughput in pets per second, for 100k pets
+ * streamed from and to memory so only the transfer itself is timed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = ShadowCopyingCursorWindow.class)
+public class PetTransferBenchmark {
+
+    /** Pets imported and exported */
+    private static final int PETS = 100000;
+
+    private final BenchmarkReport mReport = new BenchmarkReport(PetTransferBenchmark.class);
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void csvImportAndExport() throws Exception {
+        // Warm up the JIT and SQLite before timing
+        useNewDatabase("transfer_warm_up_benchmark.db");
+        PetTransfer.importPets(mResolver, new GeneratedCsv(PetTransfer.IMPORT_CHUNK_SIZE),
+                Format.CSV, null);
+        useNewDatabase("transfer_benchmark.db");
+
+        long start = System.nanoTime();
+        assertEquals(PETS, PetTransfer.importPets(mResolver, new GeneratedCsv(PETS),
+                Format.CSV, null));
+        long importNanos = System.nanoTime() - start;
+
+        CountingOutputStream out = new CountingOutputStream();
+        start = System.nanoTime();
+        assertEquals(PETS, PetTransfer.exportPets(mResolver, out, Format.CSV, null));
+        long exportNanos = System.nanoTime() - start;
+
+        mReport.record("csv_import_pets_per_second", BenchmarkReport.perSecond(PETS, importNanos));
+        mReport.record("csv_export_pets_per_second", BenchmarkReport.perSecond(PETS, exportNanos));
+        mReport.record("csv_export_bytes", out.count);
+    }
+
+    private static void useNewDatabase(String databaseName) {
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY,
+                PetTests.newProvider(databaseName));
+    }
+}
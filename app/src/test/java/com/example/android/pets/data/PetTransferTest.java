@@ -0,0 +1,292 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetTransfer.Format;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PetTransfer} exports and imports pets without losing or changing any, that
+ * a bad record keeps the chunks before it, and that progress is reported per chunk and page.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = ShadowCopyingCursorWindow.class)
+public class PetTransferTest {
+
+    /** Pets in the round trips; more than one chunk and page, and not a multiple of either */
+    private static final int PETS = 2500;
+
+    /** Pets whose text needs quoting or escaping in one format or the other */
+    private static final ContentValues[] AWKWARD_PETS = {
+            PetTests.pet("Rex, Jr.", "Great Dane", 1, 60),
+            PetTests.pet("Say \"hi\"", "Parrot", 0, 1),
+            PetTests.pet("Two\nlines", "Beagle\r\nmix", 2, 12),
+            PetTests.pet("Caf\u00e9 \u732b", "\u00c9cureuil", 0, 0),
+            PetTests.pet("No breed", "", 0, 3),
+            PetTests.pet("Ace,,Two", "\\", 1, 7)};
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        useNewDatabase("transfer_export_test.db");
+    }
+
+    @Test
+    public void csvRoundTripKeepsEveryPet() throws Exception {
+        assertRoundTrip(Format.CSV);
+    }
+
+    @Test
+    public void jsonRoundTripKeepsEveryPet() throws Exception {
+        assertRoundTrip(Format.JSON);
+    }
+
+    @Test
+    public void csvImportMatchesColumnsByHeader() throws Exception {
+        String csv = "weight,unknown,name,gender\r\n" +
+                "12,x,Rex,1\r\n" +
+                "\r\n" +
+                "3,y,\"Tom, \"\"the cat\"\"\",\n";
+        assertEquals(2, PetTransfer.importPets(mResolver, utf8(csv), Format.CSV, null));
+
+        List<ContentValues> pets = readPets();
+        assertEquals(2, pets.size());
+        assertPet(PetTests.pet("Rex", "", 1, 12), pets.get(0));
+        assertPet(PetTests.pet("Tom, \"the cat\"", "", PetEntry.GENDER_UNKNOWN, 3), pets.get(1));
+    }
+
+    @Test
+    public void invalidRecordKeepsEarlierChunks() throws Exception {
+        StringBuilder csv = new StringBuilder("name,breed,gender,weight\n");
+        int bad = PetTransfer.IMPORT_CHUNK_SIZE + PetTransfer.IMPORT_CHUNK_SIZE / 2;
+        for (int i = 0; i < PetTransfer.IMPORT_CHUNK_SIZE * 2; i++) {
+            csv.append("Pet ").append(i).append(",Tabby,0,").append(i == bad ? "-1" : "4")
+                    .append('\n');
+        }
+        try {
+            PetTransfer.importPets(mResolver, utf8(csv.toString()), Format.CSV, null);
+            fail("Imported a pet with a negative weight");
+        } catch (IOException expected) {
+            // The header is record 1
+            assertTrue(expected.getMessage(),
+                    expected.getMessage().contains("record " + (bad + 2)));
+        }
+
+        assertEquals(PetTransfer.IMPORT_CHUNK_SIZE, readPets().size());
+    }
+
+    @Test
+    public void invalidJsonPetIsReported() throws Exception {
+        String json = "[{\"name\": \"Rex\", \"weight\": 3}, {\"name\": \"Tom\", \"gender\": 9}]";
+        try {
+            PetTransfer.importPets(mResolver, utf8(json), Format.JSON, null);
+            fail("Imported a pet with an invalid gender");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("pet 2"));
+        }
+
+        // Both pets were in the first chunk, so neither was inserted
+        assertEquals(0, readPets().size());
+    }
+
+    @Test
+    public void progressIsReportedPerChunkAndPage() throws Exception {
+        int pets = PetTransfer.IMPORT_CHUNK_SIZE * 3;
+        RecordingListener importProgress = new RecordingListener();
+        assertEquals(pets, PetTransfer.importPets(mResolver, new GeneratedCsv(pets), Format.CSV,
+                importProgress));
+
+        RecordingListener exportProgress = new RecordingListener();
+        CountingOutputStream out = new CountingOutputStream();
+        assertEquals(pets, PetTransfer.exportPets(mResolver, out, Format.CSV, exportProgress));
+
+        // One report per chunk or page, each further along than the last
+        assertEquals(3, importProgress.reports.size());
+        assertProgress(importProgress.reports);
+        assertProgress(exportProgress.reports);
+        assertEquals(new GeneratedCsv(pets).length(), out.count);
+    }
+
+    /**
+     * Exports pets, awkward ones included, in the given format, imports the file into an empty
+     * database, and checks that both databases hold the same pets in the same order.
+     */
+    private void assertRoundTrip(Format format) throws IOException {
+        List<ContentValues> pets = new ArrayList<>();
+        for (ContentValues pet : AWKWARD_PETS) {
+            pets.add(pet);
+        }
+        for (ContentValues pet : PetTests.pets(0, PETS - AWKWARD_PETS.length)) {
+            pets.add(pet);
+        }
+        mResolver.bulkInsert(PetContract.CONTENT_URI, pets.toArray(new ContentValues[0]));
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        assertEquals(PETS, PetTransfer.exportPets(mResolver, file, format, null));
+
+        useNewDatabase("transfer_import_test.db");
+        RecordingListener progress = new RecordingListener();
+        assertEquals(PETS, PetTransfer.importPets(mResolver,
+                new ByteArrayInputStream(file.toByteArray()), format, progress));
+        assertProgress(progress.reports);
+
+        List<ContentValues> imported = readPets();
+        assertEquals(PETS, imported.size());
+        for (int i = 0; i < PETS; i++) {
+            assertPet(pets.get(i), imported.get(i));
+        }
+    }
+
+    /**
+     * Points the content resolver at a provider over a new, empty database.
+     */
+    private static void useNewDatabase(String databaseName) {
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY,
+                PetTests.newProvider(databaseName));
+    }
+
+    /**
+     * Returns the name, breed, gender and weight of every pet, in _id order.
+     */
+    private List<ContentValues> readPets() {
+        Cursor cursor = mResolver.query(PetContract.CONTENT_URI, new String[]{
+                PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT}, null, null, null);
+        List<ContentValues> pets = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                pets.add(PetTests.pet(cursor.getString(0), cursor.getString(1),
+                        cursor.getInt(2), cursor.getInt(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return pets;
+    }
+
+    private static void assertPet(ContentValues expected, ContentValues actual) {
+        for (String column : new String[]{PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT}) {
+            assertEquals(column + " of " + expected.getAsString(PetEntry.COLUMN_PET_NAME),
+                    expected.getAsString(column), actual.getAsString(column));
+        }
+    }
+
+    static void assertProgress(List<Long> reports) {
+        assertTrue("No progress reported", reports.size() > 0);
+        for (int i = 1; i < reports.size(); i++) {
+            assertTrue("Progress went from " + reports.get(i - 1) + " to " + reports.get(i),
+                    reports.get(i) >= reports.get(i - 1));
+        }
+    }
+
+    private static InputStream utf8(String text) {
+        return new ByteArrayInputStream(text.getBytes(UTF_8));
+    }
+
+    static class RecordingListener implements PetTransfer.ProgressListener {
+        final List<Long> reports = new ArrayList<>();
+
+        @Override
+        public void onProgress(long pets) {
+            reports.add(pets);
+        }
+    }
+
+    /**
+     * CSV of numbered pets, in the layout {@link PetTransfer} exports, produced a record at a
+     * time so a large import never has the whole file in memory.
+     */
+    static class GeneratedCsv extends InputStream {
+        private static final String HEADER = "name,breed,gender,weight\n";
+
+        private final int mPets;
+        private int mNext;
+        private byte[] mRecord = HEADER.getBytes();
+        private int mPosition;
+
+        GeneratedCsv(int pets) {
+            mPets = pets;
+        }
+
+        @Override
+        public int read() {
+            if (mPosition == mRecord.length) {
+                if (mNext == mPets) {
+                    return -1;
+                }
+                mRecord = record(mNext++).getBytes();
+                mPosition = 0;
+            }
+            return mRecord[mPosition++];
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int read = 0;
+            while (read < length) {
+                int b = read();
+                if (b == -1) {
+                    return read == 0 ? -1 : read;
+                }
+                buffer[offset + read++] = (byte) b;
+            }
+            return read;
+        }
+
+        /** Size of the whole file in bytes */
+        long length() {
+            long length = HEADER.length();
+            for (int i = 0; i < mPets; i++) {
+                length += record(i).length();
+            }
+            return length;
+        }
+
+        private static String record(int n) {
+            return "Pet " + n + "," + PetTests.BREEDS[n % PetTests.BREEDS.length] + "," +
+                    n % 3 + "," + n % 40 + "\n";
+        }
+    }
+
+    static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures inserts per second through {@link PetWriteQueue} for group sizes from 1 to
+ * {@link PetWriteQueue#MAX_GROUP_SIZE}, against committing every insert on its own.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetWriteQueueBenchmark {
+
+    /** Group sizes swept, each passed to the queue's constructor */
+    private static final int[] GROUP_SIZES = {1, 16, 64, 256};
+
+    /** Inserts timed per round */
+    private static final int WRITES = 2000;
+
+    /** Rounds timed per configuration; the first ones warm up, and the best counts */
+    private static final int ROUNDS = 3;
+
+    private final BenchmarkReport mReport = new BenchmarkReport(PetWriteQueueBenchmark.class);
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        PetProvider provider = PetTests.newProvider("write_queue_benchmark.db");
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY, provider);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void groupSizes() throws Exception {
+        long singleNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            singleNanos = Math.min(singleNanos, insertSingly(PetTests.pets(0, WRITES)));
+        }
+        mReport.record("single_commit_inserts_per_second",
+                BenchmarkReport.perSecond(WRITES, singleNanos));
+
+        for (int groupSize : GROUP_SIZES) {
+            PetWriteQueue queue = new PetWriteQueue(mResolver, groupSize,
+                    PetWriteQueue.MAX_GROUP_DELAY_MS);
+            long groupedNanos = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                groupedNanos = Math.min(groupedNanos,
+                        insertGrouped(queue, PetTests.pets(0, WRITES)));
+            }
+            mReport.record("group_" + groupSize + "_inserts_per_second",
+                    BenchmarkReport.perSecond(WRITES, groupedNanos));
+        }
+    }
+
+    /**
+     * Inserts the pets one transaction each, returning the nanoseconds taken.
+     */
+    private long insertSingly(ContentValues[] pets) {
+        long start = System.nanoTime();
+        for (ContentValues values : pets) {
+            assertNotNull(mResolver.insert(PetContract.CONTENT_URI, values));
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Inserts the pets through the queue, returning the nanoseconds until all committed.
+     */
+    private static long insertGrouped(PetWriteQueue queue, ContentValues[] pets)
+            throws Exception {
+        long start = System.nanoTime();
+        List<Future<Uri>> writes = new ArrayList<>(pets.length);
+        for (ContentValues values : pets) {
+            writes.add(queue.insert(values, PetWriteQueue.Durability.FIRE_AND_FORGET));
+        }
+        queue.flush();
+        long elapsed = System.nanoTime() - start;
+
+        for (Future<Uri> write : writes) {
+            assertNotNull(write.get());
+        }
+        return elapsed;
+    }
+}
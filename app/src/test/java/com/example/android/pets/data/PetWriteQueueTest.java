@@ -0,0 +1,214 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PetWriter} saves go through the {@link PetWriteQueue} in order, and that
+ * every queued write completes exactly once, even when its caller is interrupted or a listener
+ * throws. PetWriteQueueBenchmark measures the group commits.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetWriteQueueTest {
+
+    private ContentResolver mResolver;
+    private PetWriteQueue mQueue;
+    private PetWriter mWriter;
+
+    @Before
+    public void setUp() {
+        PetProvider provider = PetTests.newProvider("write_queue_test.db");
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY, provider);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mQueue = new PetWriteQueue(mResolver, PetWriteQueue.MAX_GROUP_SIZE,
+                PetWriteQueue.MAX_GROUP_DELAY_MS);
+        mWriter = new PetWriter(mResolver, null, mQueue);
+    }
+
+    @Test
+    public void writerSavesEveryPet() throws Exception {
+        ContentValues[] pets = PetTests.pets(0, 500);
+        RecordingCallback callback = new RecordingCallback(pets.length);
+        for (int i = 0; i < pets.length; i++) {
+            mWriter.save("editor " + i, null, pets[i], callback);
+        }
+        callback.await();
+
+        assertEquals(pets.length, callback.uris.size());
+        assertEquals(0, callback.failures.size());
+        assertEquals(pets.length, countPets());
+    }
+
+    @Test
+    public void saveAfterInsertUpdatesTheSamePet() throws Exception {
+        RecordingCallback callback = new RecordingCallback(3);
+        mWriter.save("editor", null, PetTests.pet("Tom", "Tabby", 1, 4), callback);
+        mWriter.save("editor", null, PetTests.pet("Tommy", "Tabby", 1, 5), callback);
+        mWriter.save("editor", null, PetTests.pet("Thomas", "Tabby", 1, 6), callback);
+        callback.await();
+
+        assertEquals(0, callback.failures.size());
+        assertEquals(1, countPets());
+        Cursor cursor = mResolver.query(callback.uris.get(0),
+                new String[]{PetEntry.COLUMN_PET_NAME}, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Thomas", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void updateOfMissingPetFails() throws Exception {
+        RecordingCallback callback = new RecordingCallback(1);
+        mWriter.save("editor", ContentUris.withAppendedId(PetContract.CONTENT_URI, 12345),
+                PetTests.pet("Ghost", "Tabby", 0, 1), callback);
+        callback.await();
+
+        assertEquals(0, callback.uris.size());
+        assertEquals(1, callback.failures.size());
+    }
+
+    @Test
+    public void deleteRunsAfterQueuedSaves() throws Exception {
+        ContentValues[] pets = PetTests.pets(0, 300);
+        RecordingCallback callback = new RecordingCallback(pets.length + 1);
+        for (int i = 0; i < pets.length; i++) {
+            mWriter.save("editor " + i, null, pets[i], callback);
+        }
+        mWriter.deleteAll(callback);
+        callback.await();
+
+        assertEquals(0, callback.failures.size());
+        assertEquals(0, countPets());
+    }
+
+    @Test
+    public void interruptedEnqueueFailsTheWrite() throws Exception {
+        final AtomicInteger done = new AtomicInteger();
+        PetWriteQueue.Listener<Uri> listener = new PetWriteQueue.Listener<Uri>() {
+            @Override
+            public void onDone(Future<Uri> write) {
+                done.incrementAndGet();
+            }
+        };
+
+        // An interrupted caller can't wait for room in the queue, so the write never gets in
+        Thread.currentThread().interrupt();
+        Future<Uri> write = mQueue.insert(PetTests.pet("Rex", "Beagle", 1, 12),
+                PetWriteQueue.Durability.FIRE_AND_FORGET, listener);
+        assertTrue(Thread.interrupted());
+
+        assertTrue(write.isDone());
+        assertEquals(1, done.get());
+        try {
+            write.get();
+            fail("Interrupted write succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+        mQueue.flush();
+        assertEquals(0, countPets());
+    }
+
+    @Test
+    public void throwingListenerDoesNotRepeatTheGroup() throws Exception {
+        PetWriteQueue.Listener<Uri> throwing = new PetWriteQueue.Listener<Uri>() {
+            @Override
+            public void onDone(Future<Uri> write) {
+                throw new IllegalStateException("Listener failed");
+            }
+        };
+
+        List<Future<Uri>> writes = new ArrayList<>();
+        ContentValues[] pets = PetTests.pets(0, 10);
+        for (int i = 0; i < pets.length; i++) {
+            writes.add(mQueue.insert(pets[i], PetWriteQueue.Durability.FIRE_AND_FORGET,
+                    i == 0 ? throwing : null));
+        }
+        mQueue.flush();
+
+        for (Future<Uri> write : writes) {
+            assertNotNull(write.get());
+        }
+        assertEquals(pets.length, countPets());
+        // The queue is still running
+        assertNotNull(mQueue.insert(PetTests.pet("Rex", "Beagle", 1, 12),
+                PetWriteQueue.Durability.SYNCHRONOUS).get());
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    private int countPets() {
+        Cursor cursor = mResolver.query(PetContract.CONTENT_URI, new String[]{PetEntry._ID},
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Collects the results of writer callbacks, which arrive on the main looper.
+     */
+    private static class RecordingCallback implements PetWriter.Callback {
+        final List<Uri> uris = new ArrayList<>();
+        final List<Exception> failures = new ArrayList<>();
+        private final CountDownLatch mLatch;
+
+        RecordingCallback(int expected) {
+            mLatch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public synchronized void onSuccess(Uri petUri) {
+            uris.add(petUri);
+            mLatch.countDown();
+        }
+
+        @Override
+        public synchronized void onFailure(Exception e) {
+            failures.add(e);
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            long deadline = System.nanoTime() / 1000000 + 30000;
+            while (!mLatch.await(10, TimeUnit.MILLISECONDS)) {
+                ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+                assertTrue("Timed out waiting for the writer",
+                        System.nanoTime() / 1000000 < deadline);
+            }
+        }
+    }
+}
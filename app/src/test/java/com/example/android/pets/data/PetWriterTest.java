@@ -0,0 +1,171 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PetWriter} validates before queueing, merges saves with the same key, turns
+ * a save that follows an insert into an update, and reports failed writes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetWriterTest {
+
+    /** Longest the test waits for a write */
+    private static final long TIMEOUT_MS = 10000;
+
+    private PetProvider mProvider;
+    private PetWriter mWriter;
+
+    @Before
+    public void setUp() {
+        mProvider = PetTests.newProvider("writer_test.db");
+        ShadowContentResolver.registerProviderInternal(PetContract.CONTENT_AUTHORITY, mProvider);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        mWriter = new PetWriter(resolver, null, new PetWriteQueue(resolver,
+                PetWriteQueue.MAX_GROUP_SIZE, PetWriteQueue.MAX_GROUP_DELAY_MS));
+    }
+
+    @Test
+    public void invalidValuesFailWithoutWriting() {
+        ContentValues values = PetTests.pet("Rex", "Beagle", 1, 12);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, -1);
+        ResultCallback callback = new ResultCallback();
+
+        mWriter.save(new Object(), null, values, callback);
+
+        // Reported before anything was queued
+        ShadowLooper.runUiThreadTasks();
+        assertTrue(callback.failure instanceof IllegalArgumentException);
+        assertEquals(0, countPets());
+    }
+
+    @Test
+    public void savesWithTheSameKeyWriteOnePet() {
+        Object key = new Object();
+        ResultCallback first = new ResultCallback();
+        ResultCallback second = new ResultCallback();
+
+        mWriter.save(key, null, PetTests.pet("Rex", "Beagle", 1, 12), first);
+        mWriter.save(key, null, PetTests.pet("Max", "Beagle", 1, 13), second);
+        first.await();
+        second.await();
+
+        // Whether the second save was merged or followed the insert, it changed the same pet
+        assertEquals(1, countPets());
+        assertNotNull(first.petUri);
+        assertEquals(first.petUri, second.petUri);
+        assertEquals("Max", name(second.petUri));
+    }
+
+    @Test
+    public void savesWithOtherKeysWriteAPetEach() {
+        ResultCallback first = new ResultCallback();
+        ResultCallback second = new ResultCallback();
+
+        mWriter.save(new Object(), null, PetTests.pet("Rex", "Beagle", 1, 12), first);
+        mWriter.save(new Object(), null, PetTests.pet("Max", "Beagle", 1, 13), second);
+        first.await();
+        second.await();
+
+        assertEquals(2, countPets());
+    }
+
+    @Test
+    public void updateOfDeletedPetFails() {
+        Uri petUri = ContentUris.withAppendedId(PetContract.CONTENT_URI, 42);
+        ResultCallback callback = new ResultCallback();
+
+        mWriter.save(new Object(), petUri, PetTests.pet("Rex", "Beagle", 1, 12), callback);
+        callback.await();
+
+        assertNull(callback.petUri);
+        assertTrue(callback.failure instanceof IllegalStateException);
+        assertEquals(0, countPets());
+    }
+
+    private int countPets() {
+        Cursor cursor = mProvider.query(PetContract.CONTENT_URI, new String[]{PetEntry._ID},
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String name(Uri petUri) {
+        Cursor cursor = mProvider.query(petUri, new String[]{PetEntry.COLUMN_PET_NAME},
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Records the result the writer posts to the main thread.
+     */
+    private static class ResultCallback implements PetWriter.Callback {
+        final List<Uri> results = new ArrayList<>();
+        Uri petUri;
+        Exception failure;
+
+        @Override
+        public void onSuccess(Uri petUri) {
+            this.petUri = petUri;
+            results.add(petUri);
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            failure = e;
+            results.add(null);
+        }
+
+        /**
+         * Runs the main thread until the result arrives.
+         */
+        void await() {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+            while (results.isEmpty()) {
+                if (System.nanoTime() > deadline) {
+                    fail("The write never finished");
+                }
+                ShadowLooper.runUiThreadTasks();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            assertEquals(1, results.size());
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.android.pets.data;
+
+import android.database.CharArrayBuffer;
+import android.database.CursorWindow;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowCursorWindow;
+
+/**
+ * Robolectric's cursor window leaves {@link CursorWindow#copyStringToBuffer} a no-op, so the
+ * buffer stays empty. Copies the string the way the framework does, for code that reads text
+ * through {@link CharArrayBuffer}s, like {@link PetRowReader#copyName}.
+ */
+@Implements(CursorWindow.class)
+public class ShadowCopyingCursorWindow extends ShadowCursorWindow {
+
+    @Implementation
+    protected static void nativeCopyStringToBuffer(long windowPtr, int row, int column,
+                                                   CharArrayBuffer buffer) {
+        String value = nativeGetString(windowPtr, row, column);
+        if (value == null) {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        int length = value.length();
+        if (buffer.data == null || buffer.data.length < length) {
+            buffer.data = new char[length];
+        }
+        value.getChars(0, length, buffer.data, 0);
+        buffer.sizeCopied = length;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.pets.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link PetLoadGenerator} on the JVM and fails when it hits an error, or when its
+ * throughput or latency percentiles regress past the checked-in baseline, relative to the
+ * reference read of the run.
+ *
+ * Like the benchmarks, it only runs in its own task, {@code loadRegressionDebugUnitTest}, which
+ * CI runs and which passes these system properties (see app/build.gradle):
+ * <ul>
+ * <li>{@code pets.load.baseline}: path of the checked-in baseline file</li>
+ * <li>{@code pets.load.record}: true to write the results to that file instead of checking
+ * them, from {@code -PrecordLoadBaseline}</li>
+ * <li>{@code pets.load.tolerance}: allowed regression as a fraction, from
+ * {@code -PloadTolerance}</li>
+ * </ul>
+ *
+ * The baseline was recorded under Robolectric 4.1 on SDK 28, as configured for the unit tests;
+ * re-record it when either changes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetLoadRegressionTest {
+
+    /** Baseline resource, from src/testDebug/resources */
+    private static final String BASELINE_RESOURCE = "pet_load_baseline.properties";
+
+    /** Allowed regression unless the build gives one; the JVM is noisier than a device */
+    private static final double DEFAULT_TOLERANCE = 0.5;
+
+    @Test
+    public void loadStaysWithinBaseline() throws Exception {
+        // Warms up the JIT before anything is timed
+        new PetLoadGenerator(RuntimeEnvironment.application, warmUpConfig()).run();
+
+        PetLoadGenerator.Result result = new PetLoadGenerator(RuntimeEnvironment.application,
+                timedConfig()).run();
+
+        if (Boolean.getBoolean("pets.load.record")) {
+            record(result);
+            return;
+        }
+
+        Properties baseline = loadBaseline();
+        assertNotNull("No load baseline; record one with " +
+                "./gradlew loadRegressionDebugUnitTest -PrecordLoadBaseline", baseline);
+        double tolerance = Double.parseDouble(System.getProperty("pets.load.tolerance",
+                String.valueOf(DEFAULT_TOLERANCE)));
+        List<String> regressions = PetLoadGenerator.findRegressions(result, baseline, tolerance);
+        assertTrue("Load regressed past the baseline: " + regressions + "\n" + result,
+                regressions.isEmpty());
+    }
+
+    private static PetLoadGenerator.Config warmUpConfig() {
+        PetLoadGenerator.Config config = timedConfig();
+        config.pets = 1000;
+        config.operations = 2000;
+        return config;
+    }
+
+    /**
+     * The run the baseline is for; smaller than a device run, to keep the task quick, but with
+     * as many threads as the catalog, its loaders and the write queue use at once.
+     */
+    private static PetLoadGenerator.Config timedConfig() {
+        PetLoadGenerator.Config config = new PetLoadGenerator.Config();
+        config.pets = 3000;
+        config.threads = 4;
+        config.operations = 4000;
+        return config;
+    }
+
+    private static void record(PetLoadGenerator.Result result) throws IOException {
+        String path = System.getProperty("pets.load.baseline");
+        assertNotNull("pets.load.baseline isn't set; record through Gradle", path);
+        OutputStream out = new FileOutputStream(new File(path));
+        try {
+            result.toProperties().store(out, "Pet load baseline, from PetLoadRegressionTest");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Properties loadBaseline() throws IOException {
+        InputStream in = PetLoadRegressionTest.class.getClassLoader()
+                .getResourceAsStream(BASELINE_RESOURCE);
+        if (in == null) {
+            return null;
+        }
+        try {
+            Properties baseline = new Properties();
+            baseline.load(in);
+            return baseline;
+        } finally {
+            in.close();
+        }
+    }
+}